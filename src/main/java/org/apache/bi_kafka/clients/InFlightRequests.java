@@ -19,6 +19,7 @@ import java.util.List;
 import java.util.Map;
 
 import org.apache.bi_kafka.clients.NetworkClient.InFlightRequest;
+import org.apache.bi_kafka.common.utils.TimerWheel;
 
 /**
  * The set of requests which have been sent or are being sent but haven't yet
@@ -28,6 +29,12 @@ final class InFlightRequests {
 
 	private final int maxInFlightRequestsPerConnection;
 	private final Map<String, org.apache.bi_kafka.common.utils.Deque<NetworkClient.InFlightRequest>> requests = new HashMap<String, org.apache.bi_kafka.common.utils.Deque<NetworkClient.InFlightRequest>>();
+	/*
+	 * The requests keyed by send time. The clock of the wheel runs request timeout
+	 * behind the current time, so the requests it expires are the ones that timed
+	 * out. Created with the first request.
+	 */
+	private TimerWheel<NetworkClient.InFlightRequest> sendTimes;
 
 	public InFlightRequests(int maxInFlightRequestsPerConnection) {
 		this.maxInFlightRequestsPerConnection = maxInFlightRequestsPerConnection;
@@ -44,6 +51,16 @@ final class InFlightRequests {
 			this.requests.put(destination, reqs);
 		}
 		reqs.addFirst(request);
+		if (sendTimes == null)
+			sendTimes = new TimerWheel<NetworkClient.InFlightRequest>(1L, 64, request.sendTimeMs - 1);
+		// the send time can only be behind the clock of the wheel if the system clock went back
+		request.sendTimeout = sendTimes.schedule(request, Math.max(request.sendTimeMs, sendTimes.currentTimeMs() + 1));
+	}
+
+	private NetworkClient.InFlightRequest completed(NetworkClient.InFlightRequest request) {
+		if (request != null && request.sendTimeout != null)
+			request.sendTimeout.cancel();
+		return request;
 	}
 
 	/**
@@ -61,7 +78,7 @@ final class InFlightRequests {
 	 * given node
 	 */
 	public NetworkClient.InFlightRequest completeNext(String node) {
-		return requestQueue(node).pollLast();
+		return completed(requestQueue(node).pollLast());
 	}
 
 	/**
@@ -81,7 +98,7 @@ final class InFlightRequests {
 	 * @return The request
 	 */
 	public NetworkClient.InFlightRequest completeLastSent(String node) {
-		return requestQueue(node).pollFirst();
+		return completed(requestQueue(node).pollFirst());
 	}
 
 	/**
@@ -128,7 +145,10 @@ final class InFlightRequests {
 		if (reqs == null) {
 			return Collections.emptyList();
 		} else {
-			return requests.remove(node);
+			org.apache.bi_kafka.common.utils.Deque<NetworkClient.InFlightRequest> removed = requests.remove(node);
+			for (NetworkClient.InFlightRequest request : removed)
+				completed(request);
+			return removed;
 		}
 	}
 
@@ -142,17 +162,12 @@ final class InFlightRequests {
 	 */
 	public List<String> getNodesWithTimedOutRequests(long now, int requestTimeout) {
 		List<String> nodeIds = new LinkedList<String>();
-		for (Map.Entry<String, org.apache.bi_kafka.common.utils.Deque<NetworkClient.InFlightRequest>> requestEntry : requests
-				.entrySet()) {
-			String nodeId = requestEntry.getKey();
-			org.apache.bi_kafka.common.utils.Deque<NetworkClient.InFlightRequest> deque = requestEntry.getValue();
-
-			if (!deque.isEmpty()) {
-				NetworkClient.InFlightRequest request = deque.peekLast();
-				long timeSinceSend = now - request.sendTimeMs;
-				if (timeSinceSend > requestTimeout)
-					nodeIds.add(nodeId);
-			}
+		if (sendTimes == null)
+			return nodeIds;
+		// a request is timed out once more than requestTimeout has passed since it was sent
+		for (NetworkClient.InFlightRequest request : sendTimes.advance(now - requestTimeout - 1)) {
+			if (!nodeIds.contains(request.destination))
+				nodeIds.add(request.destination);
 		}
 
 		return nodeIds;
@@ -24,6 +24,7 @@ import org.apache.bi_kafka.common.protocol.ProtoUtils;
 import org.apache.bi_kafka.common.protocol.types.Struct;
 import org.apache.bi_kafka.common.requests.*;
 import org.apache.bi_kafka.common.utils.Time;
+import org.apache.bi_kafka.common.utils.TimerWheel;
 import org.apache.bi_kafka.common.utils.Utils;
 import org.bi_slf4j.Logger;
 import org.bi_slf4j.LoggerFactory;
@@ -775,6 +776,8 @@ public class NetworkClient implements KafkaClient {
         final Send send;
         final long sendTimeMs;
         final long createdTimeMs;
+        // the entry of the request in the send times of the in-flight requests
+        TimerWheel.Timeout<InFlightRequest> sendTimeout;
 
         public InFlightRequest(RequestHeader header,
                                long createdTimeMs,
@@ -136,6 +136,11 @@ public interface Consumer<K, V> extends Closeable {
      */
     public Map<String, List<PartitionInfo>> listTopics();
 
+    /**
+     * @see KafkaConsumer#warmUp(Collection, long)
+     */
+    public void warmUp(Collection<String> topics, long timeout);
+
     /**
      * @see KafkaConsumer#paused()
      */
@@ -1706,6 +1706,67 @@ public class KafkaConsumer<K, V> implements Consumer<K, V> {
 		}
 	}
 
+	/**
+	 * Fetch the metadata of the given topics and connect to the leaders of their
+	 * partitions, so that the first fetches from them pay neither the metadata
+	 * round trip nor the connection setup. The metadata of all the topics is
+	 * fetched in a single metadata request, then the connections to all the
+	 * leaders are opened in parallel and their supported API versions exchanged.
+	 * 
+	 * @param topics  The topics to be consumed
+	 * @param timeout The maximum time in ms to wait for the metadata and the
+	 *                connections
+	 * @throws org.apache.bi_kafka.common.errors.WakeupException             if
+	 *                                                                     {@link #wakeup()}
+	 *                                                                     is called
+	 *                                                                     before or
+	 *                                                                     while this
+	 *                                                                     function is
+	 *                                                                     called
+	 * @throws org.apache.bi_kafka.common.errors.InterruptException          if the
+	 *                                                                     calling
+	 *                                                                     thread is
+	 *                                                                     interrupted
+	 *                                                                     before or
+	 *                                                                     while this
+	 *                                                                     function is
+	 *                                                                     called
+	 * @throws org.apache.bi_kafka.common.errors.TimeoutException            if the
+	 *                                                                     metadata or
+	 *                                                                     the
+	 *                                                                     connections
+	 *                                                                     are not
+	 *                                                                     ready
+	 *                                                                     within the
+	 *                                                                     timeout
+	 * @throws org.apache.bi_kafka.common.errors.TopicAuthorizationException if not
+	 *                                                                     authorized
+	 *                                                                     to some of
+	 *                                                                     the topics
+	 */
+	public void warmUp(Collection<String> topics, long timeout) {
+		acquire();
+		try {
+			long startMs = time.milliseconds();
+			Map<String, List<PartitionInfo>> topicMetadata = fetcher
+					.getTopicMetadata(new MetadataRequest.Builder(new ArrayList<String>(topics)), timeout);
+			Set<Node> leaders = new HashSet<Node>();
+			for (List<PartitionInfo> partitions : topicMetadata.values()) {
+				for (PartitionInfo partition : partitions) {
+					if (partition.leader() != null && !partition.leader().isEmpty())
+						leaders.add(partition.leader());
+				}
+			}
+			long remainingMs = Math.max(0, timeout - (time.milliseconds() - startMs));
+			if (!client.awaitReady(leaders, remainingMs))
+				throw new org.apache.bi_kafka.common.errors.TimeoutException(
+						"Failed to connect to the leaders of the topics after " + timeout + " ms.");
+			log.debug("Warmed up the metadata of topics {} and the connections to {}", topics, leaders);
+		} finally {
+			release();
+		}
+	}
+
 	/**
 	 * Suspend fetching from the requested partitions. Future calls to
 	 * {@link #poll(long)} will not return any records from these partitions until
@@ -248,6 +248,10 @@ public class MockConsumer<K, V> implements Consumer<K, V> {
         return partitions;
     }
 
+    public void warmUp(Collection<String> topics, long timeout) {
+        ensureNotClosed();
+    }
+
     public void updatePartitions(String topic, List<PartitionInfo> partitions) {
         ensureNotClosed();
         this.partitions.put(topic, partitions);
@@ -459,6 +459,39 @@ public class ConsumerNetworkClient implements Closeable {
         }
     }
 
+    /**
+     * Connect to the given nodes in parallel and wait until requests can be sent to all of them, which includes the
+     * exchange of their supported API versions.
+     *
+     * @param nodes The nodes to connect to
+     * @param timeout The maximum time in ms to wait
+     * @return true if all the nodes are ready within the timeout
+     * @throws WakeupException if {@link #wakeup()} is called from another thread
+     * @throws InterruptException if the calling thread is interrupted
+     */
+    public boolean awaitReady(Collection<Node> nodes, long timeout) {
+        long startMs = time.milliseconds();
+        Set<Node> pending = new HashSet<Node>(nodes);
+        while (true) {
+            long now = time.milliseconds();
+            long pollTimeout = timeout - (now - startMs);
+            synchronized (this) {
+                for (Iterator<Node> iter = pending.iterator(); iter.hasNext(); ) {
+                    Node node = iter.next();
+                    if (client.ready(node, now))
+                        iter.remove();
+                    else
+                        pollTimeout = Math.min(pollTimeout, client.connectionDelay(node, now));
+                }
+            }
+            if (pending.isEmpty())
+                return true;
+            if (now - startMs >= timeout)
+                return false;
+            poll(Math.max(0, pollTimeout));
+        }
+    }
+
     public class RequestFutureCompletionHandler implements RequestCompletionHandler {
         private final RequestFuture<ClientResponse> future;
         private ClientResponse response;
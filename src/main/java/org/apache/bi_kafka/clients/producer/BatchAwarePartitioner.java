@@ -0,0 +1,39 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.bi_kafka.clients.producer;
+
+import org.apache.bi_kafka.common.Cluster;
+
+/**
+ * A partitioner which is told when the partition it chose for a record has no open batch with room for it.
+ * <p>
+ * Before a new batch is created for a record whose partition was computed by this partitioner, the producer calls
+ * {@link #onNewBatch(String, Cluster, int)} and then asks the partitioner for the partition of the record again. This
+ * lets a partitioner keep sending to the same partition until its batch is full or has been drained by the sender.
+ */
+public interface BatchAwarePartitioner extends Partitioner {
+
+    /**
+     * Notify the partitioner that a new batch is about to be created for the given partition.
+     *
+     * @param topic The topic name
+     * @param cluster The current cluster metadata
+     * @param prevPartition The partition previously returned for the record, which needs a new batch
+     */
+    public void onNewBatch(String topic, Cluster cluster, int prevPartition);
+
+}
@@ -14,28 +14,44 @@ package org.apache.bi_kafka.clients.producer;
 
 import org.apache.bi_kafka.clients.ClientUtils;
 import org.apache.bi_kafka.clients.Metadata;
+import org.apache.bi_kafka.clients.ManualMetadataUpdater;
 import org.apache.bi_kafka.clients.NetworkClient;
+import org.apache.bi_kafka.clients.producer.internals.BatchCompressor;
+import org.apache.bi_kafka.clients.producer.internals.BatchSpill;
+import org.apache.bi_kafka.clients.producer.internals.CallbackExecutor;
+import org.apache.bi_kafka.clients.producer.internals.FutureRecordMetadata;
+import org.apache.bi_kafka.clients.producer.internals.MetadataWaitQueue;
+import org.apache.bi_kafka.clients.producer.internals.NodeLoadTracker;
 import org.apache.bi_kafka.clients.producer.internals.ProducerInterceptors;
 import org.apache.bi_kafka.clients.producer.internals.RecordAccumulator;
+import org.apache.bi_kafka.clients.producer.internals.SendRateLimiter;
 import org.apache.bi_kafka.clients.producer.internals.Sender;
+import org.apache.bi_kafka.clients.producer.internals.SenderGroup;
+import org.apache.bi_kafka.clients.producer.internals.TopicMemoryQuotas;
 import org.apache.bi_kafka.common.*;
 import org.apache.bi_kafka.common.config.ConfigException;
 import org.apache.bi_kafka.common.errors.*;
 import org.apache.bi_kafka.common.internals.ClusterResourceListeners;
 import org.apache.bi_kafka.common.metrics.*;
 import org.apache.bi_kafka.common.network.ChannelBuilder;
+import org.apache.bi_kafka.common.network.NetworkReceive;
 import org.apache.bi_kafka.common.network.Selector;
+import org.apache.bi_kafka.common.record.CompressionConfig;
 import org.apache.bi_kafka.common.record.CompressionType;
+import org.apache.bi_kafka.common.record.KafkaLZ4BlockOutputStream;
 import org.apache.bi_kafka.common.record.Record;
+import org.apache.bi_kafka.common.record.RecordValueWriter;
 import org.apache.bi_kafka.common.record.Records;
+import org.apache.bi_kafka.common.serialization.BufferSerializer;
 import org.apache.bi_kafka.common.serialization.Serializer;
 import org.apache.bi_kafka.common.utils.AppInfoParser;
-import org.apache.bi_kafka.common.utils.KafkaThread;
 import org.apache.bi_kafka.common.utils.Time;
 import org.bi_slf4j.Logger;
 import org.bi_slf4j.LoggerFactory;
 
+import java.io.File;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -123,9 +139,8 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
     private final long totalMemorySize;
     private final Metadata metadata;
     private final RecordAccumulator accumulator;
-    private final Sender sender;
+    private final SenderGroup senders;
     private final Metrics metrics;
-    private final Thread ioThread;
     private final CompressionType compressionType;
     private final Sensor errors;
     private final Time time;
@@ -135,6 +150,12 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
     private final long maxBlockTimeMs;
     private final int requestTimeoutMs;
     private final ProducerInterceptors<K, V> interceptors;
+    private final CallbackExecutor callbackExecutor;
+    private final BatchCompressor compressor;
+    private final BatchSpill spill;
+    private final MetadataWaitQueue<K, V> waitQueue;
+    private final SendRateLimiter rateLimiter;
+    private final boolean serializeValueOnAppend;
 
     /**
      * A producer is instantiated by providing a set of key-value pairs as configuration. Valid configuration strings
@@ -274,41 +295,115 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
                 this.requestTimeoutMs = config.getInt(ProducerConfig.REQUEST_TIMEOUT_MS_CONFIG);
             }
 
+            long lingerMs = config.getLong(ProducerConfig.LINGER_MS_CONFIG);
+            long minLingerMs = "adaptive".equals(config.getString(ProducerConfig.LINGER_MODE_CONFIG)) ?
+                    config.getLong(ProducerConfig.LINGER_MIN_MS_CONFIG) : lingerMs;
+            int callbackThreads = config.getInt(ProducerConfig.CALLBACK_EXECUTOR_THREADS_CONFIG);
+            this.callbackExecutor = callbackThreads == 0 ? null : new CallbackExecutor(clientId, callbackThreads,
+                    config.getInt(ProducerConfig.CALLBACK_EXECUTOR_QUEUE_SIZE_CONFIG), metrics, time);
+            boolean deferCompression = this.compressionType != CompressionType.NONE &&
+                    "drain".equals(config.getString(ProducerConfig.COMPRESSION_MODE_CONFIG));
+            int compressionThreads = config.getInt(ProducerConfig.COMPRESSION_THREADS_CONFIG);
+            // without compression threads the deferred compression is done by the I/O thread when sending
+            this.compressor = deferCompression && compressionThreads > 0 ?
+                    new BatchCompressor(clientId, compressionThreads, metrics, time) : null;
+            this.serializeValueOnAppend = "append".equals(config.getString(ProducerConfig.VALUE_SERIALIZATION_MODE_CONFIG));
+            String spillDir = config.getString(ProducerConfig.BUFFER_SPILL_DIR_CONFIG).trim();
+            this.spill = spillDir.length() == 0 ? null : new BatchSpill(new File(spillDir), clientId,
+                    config.getLong(ProducerConfig.BUFFER_SPILL_MAX_BYTES_CONFIG),
+                    config.getInt(ProducerConfig.BUFFER_SPILL_SEGMENT_BYTES_CONFIG), metrics, time);
+            List<String> topicQuotas = config.getList(ProducerConfig.BUFFER_MEMORY_TOPIC_QUOTAS_CONFIG);
+            long defaultTopicQuota = config.getLong(ProducerConfig.BUFFER_MEMORY_TOPIC_DEFAULT_BYTES_CONFIG);
+            TopicMemoryQuotas quotas = topicQuotas.isEmpty() && defaultTopicQuota == 0 ? null :
+                    new TopicMemoryQuotas(topicQuotas, defaultTopicQuota, metrics, time);
             this.accumulator = new RecordAccumulator(config.getInt(ProducerConfig.BATCH_SIZE_CONFIG),
                     this.totalMemorySize,
-                    this.compressionType,
-                    config.getLong(ProducerConfig.LINGER_MS_CONFIG),
+                    compressionConfig(config, this.compressionType),
+                    deferCompression,
+                    lingerMs,
+                    minLingerMs,
+                    config.getList(ProducerConfig.PRIORITY_TOPICS_CONFIG),
+                    config.getLong(ProducerConfig.PRIORITY_LINGER_MS_CONFIG),
                     retryBackoffMs,
+                    "concurrent".equals(config.getString(ProducerConfig.BATCH_APPEND_MODE_CONFIG)),
+                    "direct".equals(config.getString(ProducerConfig.BUFFER_MEMORY_TYPE_CONFIG)),
+                    this.interceptors,
+                    this.callbackExecutor,
+                    this.spill,
+                    quotas,
                     metrics,
                     time);
+            // the senders record the load of the nodes only for a partitioner which uses it
+            NodeLoadTracker load = null;
+            if (this.partitioner instanceof LoadAwarePartitioner) {
+                load = new NodeLoadTracker(this.accumulator);
+                ((LoadAwarePartitioner) this.partitioner).setProducerLoad(load);
+            }
+
+            this.waitQueue = "queue".equals(config.getString(ProducerConfig.METADATA_WAIT_MODE_CONFIG)) ?
+                    new MetadataWaitQueue<K, V>(this.accumulator, this.partitioner, this.interceptors,
+                            config.getInt(ProducerConfig.METADATA_WAIT_QUEUE_SIZE_CONFIG), this.maxBlockTimeMs, metrics, time) : null;
+            long maxBytesPerSec = config.getLong(ProducerConfig.SEND_MAX_BYTES_PER_SECOND_CONFIG);
+            long maxRecordsPerSec = config.getLong(ProducerConfig.SEND_MAX_RECORDS_PER_SECOND_CONFIG);
+            long topicMaxBytesPerSec = config.getLong(ProducerConfig.SEND_TOPIC_MAX_BYTES_PER_SECOND_CONFIG);
+            long topicMaxRecordsPerSec = config.getLong(ProducerConfig.SEND_TOPIC_MAX_RECORDS_PER_SECOND_CONFIG);
+            this.rateLimiter = maxBytesPerSec == 0 && maxRecordsPerSec == 0 && topicMaxBytesPerSec == 0 && topicMaxRecordsPerSec == 0 ? null :
+                    new SendRateLimiter(maxBytesPerSec, maxRecordsPerSec, topicMaxBytesPerSec, topicMaxRecordsPerSec,
+                            "reject".equals(config.getString(ProducerConfig.SEND_RATE_LIMIT_MODE_CONFIG)), metrics, time);
 
             List<InetSocketAddress> addresses = ClientUtils.parseAndValidateAddresses(config.getList(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG));
             this.metadata.update(Cluster.bootstrap(addresses), time.milliseconds());
             ChannelBuilder channelBuilder = ClientUtils.createChannelBuilder(config.values());
-            NetworkClient client = new NetworkClient(
-                    new Selector(config.getLong(ProducerConfig.CONNECTIONS_MAX_IDLE_MS_CONFIG), this.metrics, time, "producer", channelBuilder),
-                    this.metadata,
-                    clientId,
-                    config.getInt(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION),
-                    config.getLong(ProducerConfig.RECONNECT_BACKOFF_MS_CONFIG),
-                    config.getInt(ProducerConfig.SEND_BUFFER_CONFIG),
-                    config.getInt(ProducerConfig.RECEIVE_BUFFER_CONFIG),
-                    this.requestTimeoutMs,
-                    time,
-                    true);
-            this.sender = new Sender(client,
-                    this.metadata,
-                    this.accumulator,
-                    config.getInt(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION) == 1,
-                    config.getInt(ProducerConfig.MAX_REQUEST_SIZE_CONFIG),
-                    (short) parseAcks(config.getString(ProducerConfig.ACKS_CONFIG)),
-                    config.getInt(ProducerConfig.RETRIES_CONFIG),
-                    this.metrics,
-                    Time.SYSTEM,
-                    this.requestTimeoutMs);
-            String ioThreadName = "kafka-producer-network-thread" + (clientId.length() > 0 ? " | " + clientId : "");
-            this.ioThread = new KafkaThread(ioThreadName, this.sender, true);
-            this.ioThread.start();
+            int numSenders = config.getInt(ProducerConfig.SENDER_THREADS_CONFIG);
+            this.senders = new SenderGroup(numSenders);
+            for (int i = 0; i < numSenders; i++) {
+                // the selectors of several senders register their metrics with the index of their thread
+                Selector selector = numSenders == 1 ?
+                        new Selector(config.getLong(ProducerConfig.CONNECTIONS_MAX_IDLE_MS_CONFIG), this.metrics, time, "producer", channelBuilder) :
+                        new Selector(NetworkReceive.UNLIMITED, config.getLong(ProducerConfig.CONNECTIONS_MAX_IDLE_MS_CONFIG), this.metrics, time,
+                                "producer", Collections.singletonMap("sender-thread", String.valueOf(i)), true, channelBuilder);
+                // only the first sender updates the metadata, the others ask it to
+                ManualMetadataUpdater metadataUpdater = i == 0 ? null : this.senders.followerMetadataUpdater(this.metadata);
+                NetworkClient client = metadataUpdater == null ?
+                        new NetworkClient(
+                                selector,
+                                this.metadata,
+                                clientId,
+                                config.getInt(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION),
+                                config.getLong(ProducerConfig.RECONNECT_BACKOFF_MS_CONFIG),
+                                config.getInt(ProducerConfig.SEND_BUFFER_CONFIG),
+                                config.getInt(ProducerConfig.RECEIVE_BUFFER_CONFIG),
+                                this.requestTimeoutMs,
+                                time,
+                                true) :
+                        new NetworkClient(
+                                selector,
+                                metadataUpdater,
+                                clientId,
+                                config.getInt(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION),
+                                config.getLong(ProducerConfig.RECONNECT_BACKOFF_MS_CONFIG),
+                                config.getInt(ProducerConfig.SEND_BUFFER_CONFIG),
+                                config.getInt(ProducerConfig.RECEIVE_BUFFER_CONFIG),
+                                this.requestTimeoutMs,
+                                time,
+                                true);
+                this.senders.add(new Sender(client,
+                        this.metadata,
+                        this.accumulator,
+                        config.getInt(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION) == 1,
+                        config.getInt(ProducerConfig.MAX_REQUEST_SIZE_CONFIG),
+                        (short) parseAcks(config.getString(ProducerConfig.ACKS_CONFIG)),
+                        config.getInt(ProducerConfig.RETRIES_CONFIG),
+                        this.metrics,
+                        Time.SYSTEM,
+                        this.requestTimeoutMs,
+                        this.senders,
+                        i,
+                        this.compressor,
+                        i == 0 ? this.waitQueue : null,
+                        load));
+            }
+            this.senders.start("kafka-producer-network-thread", clientId);
 
             this.errors = this.metrics.sensor("errors");
 
@@ -325,6 +420,23 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
         }
     }
 
+    private static CompressionConfig compressionConfig(ProducerConfig config, CompressionType compressionType) {
+        int level = config.getInt(ProducerConfig.COMPRESSION_LEVEL_CONFIG);
+        if (compressionType == CompressionType.GZIP && level > CompressionConfig.MAX_GZIP_LEVEL)
+            throw new ConfigException(ProducerConfig.COMPRESSION_LEVEL_CONFIG, level, "The level of gzip must be no more than " + CompressionConfig.MAX_GZIP_LEVEL);
+        String blockSize = config.getString(ProducerConfig.COMPRESSION_LZ4_BLOCK_SIZE_CONFIG);
+        int lz4BlockSize;
+        if ("4mb".equals(blockSize))
+            lz4BlockSize = KafkaLZ4BlockOutputStream.BLOCKSIZE_4MB;
+        else if ("1mb".equals(blockSize))
+            lz4BlockSize = KafkaLZ4BlockOutputStream.BLOCKSIZE_1MB;
+        else if ("256kb".equals(blockSize))
+            lz4BlockSize = KafkaLZ4BlockOutputStream.BLOCKSIZE_256KB;
+        else
+            lz4BlockSize = KafkaLZ4BlockOutputStream.BLOCKSIZE_64KB;
+        return new CompressionConfig(compressionType, level, lz4BlockSize);
+    }
+
     private static int parseAcks(String acksString) {
         try {
             return acksString.trim().equalsIgnoreCase("all") ? -1 : Integer.parseInt(acksString.trim());
@@ -402,7 +514,8 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
      * Note that callbacks will generally execute in the I/O thread of the producer and so should be reasonably fast or
      * they will delay the sending of messages from other threads. If you want to execute blocking or computationally
      * expensive callbacks it is recommended to use your own {@link java.util.concurrent.Executor} in the callback body
-     * to parallelize processing.
+     * to parallelize processing, or to set <code>callback.executor.threads</code> to run the callbacks on dedicated
+     * threads, which keeps the callbacks of a partition in order.
      *
      * @param record The record to send
      * @param callback A user-supplied callback to execute when the record has been acknowledged by the server (null
@@ -411,6 +524,7 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
      * @throws InterruptException If the thread is interrupted while blocked
      * @throws SerializationException If the key or value are not valid objects given the configured serializers
      * @throws TimeoutException If the time taken for fetching metadata or allocating memory for the record has surpassed <code>max.block.ms</code>.
+     * @throws QuotaViolationException If the record is over the send rate limits and <code>send.rate.limit.mode</code> is <code>reject</code>
      * @throws KafkaException If a Kafka related error occurs that does not belong to the public API exceptions.
      *
      */
@@ -426,41 +540,74 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
     @SuppressWarnings({ "rawtypes", "unchecked" })
 	private Future<RecordMetadata> doSend(ProducerRecord<K, V> record, Callback callback) {
         TopicPartition tp = null;
+        // the size the record took from the send rate limits until it is appended
+        int rateLimitedSize = -1;
         try {
-            // first make sure the metadata for the topic is available
-            ClusterAndWaitTime clusterAndWaitTime = waitOnMetadata(record.topic(), record.partition(), maxBlockTimeMs);
+            // first make sure the metadata for the topic is available, or park the record until it is
+            ClusterAndWaitTime clusterAndWaitTime;
+            ParkAttempt parkAttempt = null;
+            if (waitQueue != null) {
+                long startMs = time.milliseconds();
+                parkAttempt = parkIfMetadataMissing(record, callback);
+                if (parkAttempt != null && parkAttempt.future != null)
+                    return parkAttempt.future;
+                // a record which was not parked after all keeps the tokens it took, and the time it waited for them
+                if (parkAttempt != null && rateLimiter != null)
+                    rateLimitedSize = parkAttempt.serializedSize;
+                clusterAndWaitTime = new ClusterAndWaitTime(metadata.fetch(), time.milliseconds() - startMs);
+            } else {
+                clusterAndWaitTime = waitOnMetadata(record.topic(), record.partition(), maxBlockTimeMs);
+            }
             long remainingWaitMs = Math.max(0, maxBlockTimeMs - clusterAndWaitTime.waitedOnMetadataMs);
             Cluster cluster = clusterAndWaitTime.cluster;
             byte[] serializedKey;
-            try {
-                serializedKey = keySerializer.serialize(record.topic(), record.key());
-            } catch (ClassCastException cce) {
-                throw new SerializationException("Can't convert key of class " + record.key().getClass().getName() +
-                        " to class " + producerConfig.getClass(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG).getName() +
-                        " specified in key.serializer");
-            }
-            byte[] serializedValue;
-            try {
-                serializedValue = valueSerializer.serialize(record.topic(), record.value());
-            } catch (ClassCastException cce) {
-                throw new SerializationException("Can't convert value of class " + record.value().getClass().getName() +
-                        " to class " + producerConfig.getClass(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG).getName() +
-                        " specified in value.serializer");
+            RecordValueWriter valueWriter = null;
+            byte[] serializedValue = null;
+            if (parkAttempt != null) {
+                serializedKey = parkAttempt.serializedKey;
+                serializedValue = parkAttempt.serializedValue;
+            } else {
+                serializedKey = serializeKey(record);
+                // a buffer serializer writes the value straight into the batch when the record is appended
+                if (serializeValueOnAppend && valueSerializer instanceof BufferSerializer && accumulator.supportsValueWriters())
+                    valueWriter = valueWriter(record);
+                else
+                    serializedValue = serializeValue(record);
             }
 
             int partition = partition(record, serializedKey, serializedValue, cluster);
-            int serializedSize = Records.LOG_OVERHEAD + Record.recordSize(serializedKey, serializedValue);
+            int serializedSize = Records.LOG_OVERHEAD + (valueWriter == null ? Record.recordSize(serializedKey, serializedValue) :
+                    Record.recordSize(Record.CURRENT_MAGIC_VALUE, serializedKey == null ? 0 : serializedKey.length, Math.max(valueWriter.sizeUpperBound(), 0)));
             ensureValidRecordSize(serializedSize);
+            if (rateLimiter != null && parkAttempt == null) {
+                remainingWaitMs = Math.max(0, remainingWaitMs - rateLimiter.acquire(record.topic(), serializedSize, remainingWaitMs));
+                rateLimitedSize = serializedSize;
+            }
             tp = new TopicPartition(record.topic(), partition);
             long timestamp = record.timestamp() == null ? time.milliseconds() : record.timestamp();
             log.trace("Sending record {} with callback {} to topic {} partition {}",
                     new Object[]{record, callback, record.topic(), partition});
-            // producer callback will make sure to call both 'callback' and interceptor callback
-            Callback interceptCallback = this.interceptors == null ? callback : new InterceptorCallback(callback, this.interceptors, tp);
-            RecordAccumulator.RecordAppendResult result = accumulator.append(tp, timestamp, serializedKey, serializedValue, interceptCallback, remainingWaitMs);
+            // the batch notifies the interceptors before calling the callback once the record is acknowledged
+            // a partitioner tracking new batches may move the record elsewhere instead of starting one on this partition
+            boolean abortOnNewBatch = record.partition() == null && partitioner instanceof BatchAwarePartitioner;
+            RecordAccumulator.RecordAppendResult result = valueWriter == null ?
+                    accumulator.append(tp, timestamp, serializedKey, serializedValue, callback, remainingWaitMs, abortOnNewBatch) :
+                    accumulator.append(tp, timestamp, serializedKey, valueWriter, callback, remainingWaitMs, abortOnNewBatch);
+            if (result.abortForNewBatch) {
+                int prevPartition = partition;
+                ((BatchAwarePartitioner) partitioner).onNewBatch(record.topic(), cluster, prevPartition);
+                partition = partition(record, serializedKey, serializedValue, cluster);
+                tp = new TopicPartition(record.topic(), partition);
+                log.trace("Retrying append of record {} to topic {} partition {} instead of partition {} which needs a new batch",
+                        new Object[]{record, record.topic(), partition, prevPartition});
+                result = valueWriter == null ?
+                        accumulator.append(tp, timestamp, serializedKey, serializedValue, callback, remainingWaitMs, false) :
+                        accumulator.append(tp, timestamp, serializedKey, valueWriter, callback, remainingWaitMs, false);
+            }
+            rateLimitedSize = -1;
             if (result.batchIsFull || result.newBatchCreated) {
                 log.trace("Waking up the sender since topic {} partition {} is either full or getting a new batch", record.topic(), partition);
-                this.sender.wakeup();
+                this.senders.wakeup(cluster, tp);
             }
             return result.future;
             // handling exceptions and record the errors;
@@ -495,9 +642,331 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
             if (this.interceptors != null)
                 this.interceptors.onSendError(record, tp, e);
             throw new KafkaException(e.getMessage());
+        } finally {
+            // a record which failed to be appended gives back the tokens it took
+            if (rateLimitedSize >= 0)
+                rateLimiter.release(record.topic(), rateLimitedSize);
+        }
+    }
+
+    /**
+     * Asynchronously send a list of records and invoke the provided callback for each of them when its send has been
+     * acknowledged.
+     * <p>
+     * This is equivalent to calling {@link #send(ProducerRecord, Callback)} for each record in the order of the list,
+     * but the metadata of each topic is only waited for once and the records of each partition are appended to the
+     * record accumulator together, taking the lock of the partition once per batch rather than twice per record.
+     * <p>
+     * As with {@link #send(ProducerRecord, Callback)}, a record which fails before it is appended, e.g. because it is
+     * too large, gets a failed future and its callback is invoked with the error. All the records of a topic fail if
+     * its metadata is not available within <code>max.block.ms</code>, which bounds the blocking of the whole call.
+     * If an exception is thrown, the records before the failing one may already have been appended and will be sent,
+     * and the interceptors are notified of the error for the records which were not.
+     *
+     * @param records The records to send
+     * @param callback A user-supplied callback to execute for each record when it has been acknowledged by the server
+     *        (null indicates no callback)
+     * @return The futures of the records, in the order of the list
+     *
+     * @throws InterruptException If the thread is interrupted while blocked
+     * @throws SerializationException If the key or value of a record are not valid objects given the configured serializers
+     * @throws QuotaViolationException If a record is over the send rate limits and <code>send.rate.limit.mode</code> is
+     *         <code>reject</code>, in which case the records of the list before it are sent
+     * @throws KafkaException If a Kafka related error occurs that does not belong to the public API exceptions.
+     */
+    public List<Future<RecordMetadata>> sendAll(List<ProducerRecord<K, V>> records, Callback callback) {
+        long startMs = time.milliseconds();
+        List<Future<RecordMetadata>> futures = new ArrayList<Future<RecordMetadata>>(records.size());
+        // intercept the records and group them by topic, keeping their order within each topic
+        List<ProducerRecord<K, V>> interceptedRecords = new ArrayList<ProducerRecord<K, V>>(records.size());
+        Map<String, List<Integer>> topics = new LinkedHashMap<String, List<Integer>>();
+        for (ProducerRecord<K, V> record : records) {
+            ProducerRecord<K, V> interceptedRecord = this.interceptors == null ? record : this.interceptors.onSend(record);
+            List<Integer> indexes = topics.get(interceptedRecord.topic());
+            if (indexes == null) {
+                indexes = new ArrayList<Integer>();
+                topics.put(interceptedRecord.topic(), indexes);
+            }
+            indexes.add(interceptedRecords.size());
+            interceptedRecords.add(interceptedRecord);
+            futures.add(null);
+        }
+        for (Iterator<Map.Entry<String, List<Integer>>> iter = topics.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry<String, List<Integer>> topic = iter.next();
+            long remainingWaitMs = Math.max(0, maxBlockTimeMs - (time.milliseconds() - startMs));
+            try {
+                doSendAll(topic.getKey(), interceptedRecords, topic.getValue(), callback, futures, remainingWaitMs);
+            } catch (RuntimeException e) {
+                // the interceptors were told about the records of the remaining topics, which are not sent either
+                while (iter.hasNext())
+                    notifySendErrors(interceptedRecords, iter.next().getValue(), futures, e);
+                throw e;
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * Send the records of one topic, setting their futures at their index in <code>futures</code>
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private void doSendAll(String topic,
+                           List<ProducerRecord<K, V>> records,
+                           List<Integer> indexes,
+                           Callback callback,
+                           List<Future<RecordMetadata>> futures,
+                           long maxWaitMs) {
+        // wait for the metadata once, covering the highest partition given explicitly
+        Integer maxPartition = null;
+        for (int index : indexes) {
+            Integer partition = records.get(index).partition();
+            if (partition != null && (maxPartition == null || partition > maxPartition))
+                maxPartition = partition;
+        }
+        if (waitQueue != null && !metadataReady(topic, maxPartition)) {
+            // the records of the topic are parked one by one until its metadata is available, doSend records the
+            // error of a record which fails and notifies the interceptors about it
+            for (int i = 0; i < indexes.size(); i++) {
+                int index = indexes.get(i);
+                try {
+                    futures.set(index, doSend(records.get(index), callback));
+                } catch (RuntimeException e) {
+                    notifySendErrors(records, indexes.subList(i + 1, indexes.size()), futures, e);
+                    throw e;
+                }
+            }
+            return;
+        }
+        Map<Integer, PartitionRecords> partitions = new LinkedHashMap<Integer, PartitionRecords>();
+        try {
+            ClusterAndWaitTime clusterAndWaitTime;
+            try {
+                clusterAndWaitTime = waitOnMetadata(topic, maxPartition, maxWaitMs);
+            } catch (ApiException e) {
+                for (int index : indexes)
+                    futures.set(index, failRecord(records.get(index), null, callback, e));
+                return;
+            }
+            long remainingWaitMs = Math.max(0, maxWaitMs - clusterAndWaitTime.waitedOnMetadataMs);
+            Cluster cluster = clusterAndWaitTime.cluster;
+
+            // serialize and partition the records, grouping them by partition in the order of the list
+            QuotaViolationException rejected = null;
+            for (int index : indexes) {
+                ProducerRecord<K, V> record = records.get(index);
+                TopicPartition tp = null;
+                try {
+                    byte[] serializedKey = serializeKey(record);
+                    byte[] serializedValue = serializeValue(record);
+                    int partition = partition(record, serializedKey, serializedValue, cluster);
+                    int serializedSize = Records.LOG_OVERHEAD + Record.recordSize(serializedKey, serializedValue);
+                    ensureValidRecordSize(serializedSize);
+                    if (rateLimiter != null)
+                        remainingWaitMs = Math.max(0, remainingWaitMs - rateLimiter.acquire(topic, serializedSize, remainingWaitMs));
+                    tp = new TopicPartition(topic, partition);
+                    long timestamp = record.timestamp() == null ? time.milliseconds() : record.timestamp();
+                    PartitionRecords partitionRecords = partitions.get(partition);
+                    if (partitionRecords == null) {
+                        partitionRecords = new PartitionRecords(tp);
+                        partitions.put(partition, partitionRecords);
+                    }
+                    partitionRecords.add(index, timestamp, serializedKey, serializedValue, callback, serializedSize);
+                } catch (ApiException e) {
+                    futures.set(index, failRecord(record, tp, callback, e));
+                } catch (QuotaViolationException e) {
+                    // the records before the rejected one are still appended
+                    rejected = e;
+                    break;
+                }
+            }
+
+            // the appends of all the partitions share what is left of the blocking time
+            long appendStartMs = time.milliseconds();
+            for (PartitionRecords partitionRecords : partitions.values()) {
+                TopicPartition tp = partitionRecords.tp;
+                int count = partitionRecords.indexes.size();
+                FutureRecordMetadata[] appended = new FutureRecordMetadata[count];
+                partitionRecords.appended = appended;
+                log.trace("Sending {} records with callback {} to topic {} partition {}",
+                        new Object[]{count, callback, topic, tp.partition()});
+                try {
+                    RecordAccumulator.RecordAppendResult result = accumulator.appendAll(tp,
+                            partitionRecords.timestamps(),
+                            partitionRecords.keys.toArray(new byte[count][]),
+                            partitionRecords.values.toArray(new byte[count][]),
+                            partitionRecords.callbacks.toArray(new Callback[count]),
+                            appended,
+                            Math.max(0, remainingWaitMs - (time.milliseconds() - appendStartMs)));
+                    if (result.batchIsFull || result.newBatchCreated) {
+                        log.trace("Waking up the sender since topic {} partition {} is either full or getting a new batch", topic, tp.partition());
+                        this.senders.wakeup(cluster, tp);
+                    }
+                    // let a partitioner sticking to this partition move on once it starts a new batch
+                    if (result.newBatchCreated && partitioner instanceof BatchAwarePartitioner)
+                        ((BatchAwarePartitioner) partitioner).onNewBatch(topic, cluster, tp.partition());
+                } catch (ApiException e) {
+                    for (int i = 0; i < count; i++) {
+                        int index = partitionRecords.indexes.get(i);
+                        if (appended[i] == null)
+                            futures.set(index, failRecord(records.get(index), tp, callback, e));
+                    }
+                } finally {
+                    for (int i = 0; i < count; i++) {
+                        if (appended[i] != null)
+                            futures.set(partitionRecords.indexes.get(i), appended[i]);
+                    }
+                }
+            }
+            if (rejected != null)
+                throw rejected;
+        } catch (InterruptedException e) {
+            this.errors.record();
+            notifySendErrors(records, indexes, futures, e);
+            throw new InterruptException(e);
+        } catch (BufferExhaustedException e) {
+            this.errors.record();
+            this.metrics.sensor("buffer-exhausted-records").record();
+            notifySendErrors(records, indexes, futures, e);
+            throw e;
+        } catch (KafkaException e) {
+            this.errors.record();
+            notifySendErrors(records, indexes, futures, e);
+            throw e;
+        } catch (Exception e) {
+            notifySendErrors(records, indexes, futures, e);
+            throw new KafkaException(e.getMessage());
+        } finally {
+            // the records which failed to be appended give back the tokens they took
+            if (rateLimiter != null)
+                releaseRateLimits(topic, partitions.values());
+        }
+    }
+
+    /**
+     * Fail a record which could not be appended with an API exception, as {@link #doSend(ProducerRecord, Callback)} does
+     */
+    private Future<RecordMetadata> failRecord(ProducerRecord<K, V> record, TopicPartition tp, Callback callback, ApiException e) {
+        log.debug("Exception occurred during message send:", e);
+        if (callback != null)
+            callback.onCompletion(null, e);
+        this.errors.record();
+        if (this.interceptors != null)
+            this.interceptors.onSendError(record, tp, e);
+        return new FutureFailure(e);
+    }
+
+    /**
+     * Give back the tokens of the send rate limits taken by the records of a topic which were not appended
+     */
+    private void releaseRateLimits(String topic, Collection<PartitionRecords> partitions) {
+        for (PartitionRecords partitionRecords : partitions) {
+            for (int i = 0; i < partitionRecords.sizes.size(); i++) {
+                if (partitionRecords.appended == null || partitionRecords.appended[i] == null)
+                    rateLimiter.release(topic, partitionRecords.sizes.get(i));
+            }
+        }
+    }
+
+    /**
+     * Notify the interceptors about the records of a topic which were neither appended nor failed before an exception
+     * aborted the send
+     */
+    private void notifySendErrors(List<ProducerRecord<K, V>> records, List<Integer> indexes,
+                                  List<Future<RecordMetadata>> futures, Exception e) {
+        if (this.interceptors == null)
+            return;
+        for (int index : indexes) {
+            if (futures.get(index) == null)
+                this.interceptors.onSendError(records.get(index), null, e);
+        }
+    }
+
+    private byte[] serializeKey(ProducerRecord<K, V> record) {
+        try {
+            return keySerializer.serialize(record.topic(), record.key());
+        } catch (ClassCastException cce) {
+            throw new SerializationException("Can't convert key of class " + record.key().getClass().getName() +
+                    " to class " + producerConfig.getClass(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG).getName() +
+                    " specified in key.serializer");
+        }
+    }
+
+    private byte[] serializeValue(ProducerRecord<K, V> record) {
+        try {
+            return valueSerializer.serialize(record.topic(), record.value());
+        } catch (ClassCastException cce) {
+            throw valueClassMismatch(record);
+        }
+    }
+
+    /**
+     * The writer serializing the value into the batch of the record, the value being cast when its size is computed
+     */
+    @SuppressWarnings("unchecked")
+    private RecordValueWriter valueWriter(ProducerRecord<K, V> record) {
+        try {
+            return new SerializingValueWriter<V>((BufferSerializer<V>) valueSerializer, record.topic(), record.value());
+        } catch (ClassCastException cce) {
+            throw valueClassMismatch(record);
         }
     }
 
+    private SerializationException valueClassMismatch(ProducerRecord<K, V> record) {
+        return new SerializationException("Can't convert value of class " + record.value().getClass().getName() +
+                " to class " + producerConfig.getClass(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG).getName() +
+                " specified in value.serializer");
+    }
+
+    /**
+     * Park the record in the wait queue if the metadata of its topic is missing, or records of its topic are already
+     * parked, and request a metadata update.
+     *
+     * @return The attempt, with the future of the record if it was parked, or null if the record can be appended right
+     *         away without being serialized first
+     */
+    private ParkAttempt parkIfMetadataMissing(ProducerRecord<K, V> record, Callback callback) throws InterruptedException {
+        String topic = record.topic();
+        boolean metadataReady = metadataReady(topic, record.partition());
+        if (metadataReady && !waitQueue.isParked(topic))
+            return null;
+        Cluster cluster = metadata.fetch();
+        if (cluster.unauthorizedTopics().contains(topic))
+            throw new TopicAuthorizationException(topic);
+        byte[] serializedKey = serializeKey(record);
+        byte[] serializedValue = serializeValue(record);
+        int serializedSize = Records.LOG_OVERHEAD + Record.recordSize(serializedKey, serializedValue);
+        ensureValidRecordSize(serializedSize);
+        long throttledMs = rateLimiter == null ? 0 : rateLimiter.acquire(topic, serializedSize, maxBlockTimeMs);
+        long timestamp = record.timestamp() == null ? time.milliseconds() : record.timestamp();
+        Future<RecordMetadata> future;
+        try {
+            future = waitQueue.park(record, serializedKey, serializedValue, timestamp, serializedSize, callback, metadataReady, throttledMs);
+        } catch (RuntimeException e) {
+            // a record which fails to be parked gives back its tokens
+            if (rateLimiter != null)
+                rateLimiter.release(topic, serializedSize);
+            throw e;
+        }
+        if (future != null) {
+            if (!metadataReady) {
+                log.trace("Requesting metadata update for topic {}.", topic);
+                metadata.requestUpdate();
+            }
+            senders.wakeupMetadataSender();
+        }
+        return new ParkAttempt(future, serializedKey, serializedValue, serializedSize);
+    }
+
+    /**
+     * Whether the metadata has the topic, and the given partition if not null, after adding the topic to the metadata
+     * topic list if it is not there already
+     */
+    private boolean metadataReady(String topic, Integer partition) {
+        metadata.add(topic);
+        Integer partitionsCount = metadata.fetch().partitionCountForTopic(topic);
+        return partitionsCount != null && (partition == null || partition < partitionsCount);
+    }
+
     /**
      * Wait for cluster metadata including partitions for the given topic to be available.
      * @param topic The topic we want metadata for
@@ -525,7 +994,7 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
         do {
             log.trace("Requesting metadata update for topic {}.", topic);
             int version = metadata.requestUpdate();
-            sender.wakeup();
+            senders.wakeupMetadataSender();
             try {
                 metadata.awaitUpdate(version, remainingWaitMs);
             } catch (TimeoutException ex) {
@@ -596,8 +1065,16 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
      */
     public void flush() {
         log.trace("Flushing accumulated records in producer.");
+        if (this.waitQueue != null) {
+            // the records waiting for metadata are appended or failed within max.block.ms
+            try {
+                this.waitQueue.awaitParked(Long.MAX_VALUE);
+            } catch (InterruptedException e) {
+                throw new InterruptException("Flush interrupted.", e);
+            }
+        }
         this.accumulator.beginFlush();
-        this.sender.wakeup();
+        this.senders.wakeup();
         try {
             this.accumulator.awaitFlushCompletion();
         } catch (InterruptedException e) {
@@ -617,6 +1094,68 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
         }
     }
 
+    /**
+     * Fetch the metadata of the given topics and connect to the leaders of their partitions, so that the first records
+     * sent to them pay neither the metadata round trip nor the connection setup. The metadata of all the topics is
+     * fetched in a single metadata request, then the connections to all the leaders are opened in parallel and their
+     * supported API versions exchanged.
+     *
+     * @param topics The topics to be sent to
+     * @param timeout The maximum time in ms to wait for the metadata and the connections
+     * @throws TimeoutException If the metadata or the connections are not ready within the timeout
+     * @throws TopicAuthorizationException If the producer is not authorized to write to some of the topics
+     * @throws InterruptException If the thread is interrupted while blocked
+     */
+    public void warmUp(Collection<String> topics, long timeout) {
+        long startMs = time.milliseconds();
+        try {
+            // add all the topics before requesting the update, so that a single request fetches them
+            for (String topic : topics)
+                metadata.add(topic);
+            Cluster cluster = metadata.fetch();
+            while (!hasMetadata(cluster, topics)) {
+                long remainingMs = timeout - (time.milliseconds() - startMs);
+                if (remainingMs <= 0)
+                    throw new TimeoutException("Failed to update metadata after " + timeout + " ms.");
+                log.trace("Requesting metadata update for topics {}.", topics);
+                int version = metadata.requestUpdate();
+                senders.wakeupMetadataSender();
+                try {
+                    metadata.awaitUpdate(version, remainingMs);
+                } catch (TimeoutException e) {
+                    throw new TimeoutException("Failed to update metadata after " + timeout + " ms.");
+                }
+                cluster = metadata.fetch();
+                Set<String> unauthorizedTopics = new HashSet<String>(topics);
+                unauthorizedTopics.retainAll(cluster.unauthorizedTopics());
+                if (!unauthorizedTopics.isEmpty())
+                    throw new TopicAuthorizationException(unauthorizedTopics);
+            }
+
+            Set<Node> leaders = new HashSet<Node>();
+            for (String topic : topics) {
+                for (PartitionInfo partition : cluster.partitionsForTopic(topic)) {
+                    if (partition.leader() != null && !partition.leader().isEmpty())
+                        leaders.add(partition.leader());
+                }
+            }
+            long remainingMs = Math.max(0, timeout - (time.milliseconds() - startMs));
+            if (!senders.awaitReady(leaders, remainingMs))
+                throw new TimeoutException("Failed to connect to the leaders of the topics after " + timeout + " ms.");
+            log.debug("Warmed up the metadata of topics {} and the connections to {}", topics, leaders);
+        } catch (InterruptedException e) {
+            throw new InterruptException(e);
+        }
+    }
+
+    private static boolean hasMetadata(Cluster cluster, Collection<String> topics) {
+        for (String topic : topics) {
+            if (cluster.partitionCountForTopic(topic) == null)
+                return false;
+        }
+        return true;
+    }
+
     /**
      * Get the full set of internal metrics maintained by the producer.
      */
@@ -666,18 +1205,29 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
         log.info("Closing the Kafka producer with timeoutMillis = {} ms.", timeUnit.toMillis(timeout));
         // this will keep track of the first encountered exception
         AtomicReference<Throwable> firstException = new AtomicReference<Throwable>();
-        boolean invokedFromCallback = Thread.currentThread() == this.ioThread;
+        long closeStartMs = time.milliseconds();
+        boolean invokedFromCallback = (this.senders != null && this.senders.isSenderThread(Thread.currentThread())) ||
+                (this.callbackExecutor != null && this.callbackExecutor.isCallbackThread(Thread.currentThread()));
         if (timeout > 0) {
             if (invokedFromCallback) {
                 log.warn("Overriding close timeout {} ms to 0 ms in order to prevent useless blocking due to self-join. " +
                     "This means you have incorrectly invoked close with a non-zero timeout from the producer call-back.", timeout);
             } else {
                 // Try to close gracefully.
-                if (this.sender != null)
-                    this.sender.initiateClose();
-                if (this.ioThread != null) {
+                if (this.waitQueue != null) {
+                    // let the records waiting for metadata reach the accumulator before it stops accepting them
+                    try {
+                        this.waitQueue.awaitParked(timeUnit.toMillis(timeout));
+                    } catch (InterruptedException t) {
+                        firstException.compareAndSet(null, t);
+                        log.error("Interrupted while waiting for the records waiting for metadata", t);
+                    }
+                }
+                if (this.senders != null) {
+                    this.senders.initiateClose();
                     try {
-                        this.ioThread.join(timeUnit.toMillis(timeout));
+                        // join(0) would wait forever
+                        this.senders.join(Math.max(1, timeUnit.toMillis(timeout) - (time.milliseconds() - closeStartMs)));
                     } catch (InterruptedException t) {
                         firstException.compareAndSet(null, t);
                         log.error("Interrupted while joining ioThread", t);
@@ -686,20 +1236,42 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
             }
         }
 
-        if (this.sender != null && this.ioThread != null && this.ioThread.isAlive()) {
+        if (this.senders != null && this.senders.isAlive()) {
             log.info("Proceeding to force close the producer since pending requests could not be completed " +
                 "within timeout {} ms.", timeout);
-            this.sender.forceClose();
-            // Only join the sender thread when not calling from callback.
+            this.senders.forceClose();
+            // Only join the sender threads when not calling from callback.
             if (!invokedFromCallback) {
                 try {
-                    this.ioThread.join();
+                    this.senders.join(0);
                 } catch (InterruptedException e) {
                     firstException.compareAndSet(null, e);
                 }
             }
         }
 
+        if (this.compressor != null) {
+            // the senders are done, only the batches of requests abandoned by a forced close may be left
+            long remainingMs = invokedFromCallback ? 0 : Math.max(0, timeUnit.toMillis(timeout) - (time.milliseconds() - closeStartMs));
+            try {
+                this.compressor.close(remainingMs);
+            } catch (InterruptedException e) {
+                firstException.compareAndSet(null, e);
+                log.error("Interrupted while waiting for the compression threads", e);
+            }
+        }
+        if (this.callbackExecutor != null) {
+            // let the callback threads run the callbacks of the batches completed by the sender
+            long remainingMs = invokedFromCallback ? 0 : Math.max(0, timeUnit.toMillis(timeout) - (time.milliseconds() - closeStartMs));
+            try {
+                this.callbackExecutor.close(remainingMs);
+            } catch (InterruptedException e) {
+                firstException.compareAndSet(null, e);
+                log.error("Interrupted while waiting for the callback threads", e);
+            }
+        }
+        if (this.spill != null)
+            this.spill.close();
         ClientUtils.closeQuietly(interceptors, "producer interceptors", firstException);
         ClientUtils.closeQuietly(metrics, "producer metrics", firstException);
         ClientUtils.closeQuietly(keySerializer, "producer keySerializer", firstException);
@@ -743,6 +1315,85 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
         }
     }
 
+    /**
+     * The serialized records of one partition passed to {@link #sendAll(List, Callback)}
+     */
+    /**
+     * A record which was serialized, and took its tokens from the send rate limits, to be parked. If it was not
+     * parked after all, because the records of its topic were appended meanwhile, it is appended with them.
+     */
+    private static final class ParkAttempt {
+        // the future of the parked record, null if it was not parked
+        final Future<RecordMetadata> future;
+        final byte[] serializedKey;
+        final byte[] serializedValue;
+        final int serializedSize;
+
+        ParkAttempt(Future<RecordMetadata> future, byte[] serializedKey, byte[] serializedValue, int serializedSize) {
+            this.future = future;
+            this.serializedKey = serializedKey;
+            this.serializedValue = serializedValue;
+            this.serializedSize = serializedSize;
+        }
+    }
+
+    private static class PartitionRecords {
+        final TopicPartition tp;
+        final List<Integer> indexes = new ArrayList<Integer>();
+        final List<Long> timestamps = new ArrayList<Long>();
+        final List<byte[]> keys = new ArrayList<byte[]>();
+        final List<byte[]> values = new ArrayList<byte[]>();
+        final List<Callback> callbacks = new ArrayList<Callback>();
+        final List<Integer> sizes = new ArrayList<Integer>();
+        // the futures of the records once they are appended, null for the records which were not
+        FutureRecordMetadata[] appended;
+
+        PartitionRecords(TopicPartition tp) {
+            this.tp = tp;
+        }
+
+        void add(int index, long timestamp, byte[] key, byte[] value, Callback callback, int size) {
+            indexes.add(index);
+            timestamps.add(timestamp);
+            keys.add(key);
+            values.add(value);
+            callbacks.add(callback);
+            sizes.add(size);
+        }
+
+        long[] timestamps() {
+            long[] array = new long[timestamps.size()];
+            for (int i = 0; i < array.length; i++)
+                array[i] = timestamps.get(i);
+            return array;
+        }
+    }
+
+    /**
+     * Writes the value of a record with a {@link BufferSerializer} when it is appended to a batch
+     */
+    private static class SerializingValueWriter<V> implements RecordValueWriter {
+        private final BufferSerializer<V> serializer;
+        private final String topic;
+        private final V value;
+        private final int sizeUpperBound;
+
+        SerializingValueWriter(BufferSerializer<V> serializer, String topic, V value) {
+            this.serializer = serializer;
+            this.topic = topic;
+            this.value = value;
+            this.sizeUpperBound = serializer.serializedSizeUpperBound(topic, value);
+        }
+
+        public int sizeUpperBound() {
+            return sizeUpperBound;
+        }
+
+        public void writeTo(ByteBuffer buffer) {
+            serializer.serialize(topic, value, buffer);
+        }
+    }
+
     private static class FutureFailure implements Future<RecordMetadata> {
 
         private final ExecutionException exception;
@@ -773,33 +1424,4 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
 
     }
 
-    /**
-     * A callback called when producer request is complete. It in turn calls user-supplied callback (if given) and
-     * notifies producer interceptors about the request completion.
-     */
-    private static class InterceptorCallback<K, V> implements Callback {
-        private final Callback userCallback;
-        private final ProducerInterceptors<K, V> interceptors;
-        private final TopicPartition tp;
-
-        public InterceptorCallback(Callback userCallback, ProducerInterceptors<K, V> interceptors,
-                                   TopicPartition tp) {
-            this.userCallback = userCallback;
-            this.interceptors = interceptors;
-            this.tp = tp;
-        }
-
-        public void onCompletion(RecordMetadata metadata, Exception exception) {
-            if (this.interceptors != null) {
-                if (metadata == null) {
-                    this.interceptors.onAcknowledgement(new RecordMetadata(tp, -1, -1, Record.NO_TIMESTAMP, -1, -1, -1),
-                                                        exception);
-                } else {
-                    this.interceptors.onAcknowledgement(metadata, exception);
-                }
-            }
-            if (this.userCallback != null)
-                this.userCallback.onCompletion(metadata, exception);
-        }
-    }
 }
@@ -0,0 +1,34 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.bi_kafka.clients.producer;
+
+/**
+ * A partitioner which is given the live load of the producer, to send less records to the partitions of slow brokers.
+ * <p>
+ * The producer calls {@link #setProducerLoad(ProducerLoad)} once after configuring the partitioner and before the
+ * first record is partitioned.
+ */
+public interface LoadAwarePartitioner extends Partitioner {
+
+    /**
+     * Set the source of the load of the producer
+     *
+     * @param load The load of the producer's senders and accumulator
+     */
+    public void setProducerLoad(ProducerLoad load);
+
+}
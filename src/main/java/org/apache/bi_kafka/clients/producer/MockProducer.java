@@ -23,6 +23,7 @@ import java.util.concurrent.TimeUnit;
 import org.apache.bi_kafka.clients.producer.internals.DefaultPartitioner;
 import org.apache.bi_kafka.clients.producer.internals.FutureRecordMetadata;
 import org.apache.bi_kafka.clients.producer.internals.ProduceRequestResult;
+import org.apache.bi_kafka.clients.producer.internals.RecordCompletions;
 import org.apache.bi_kafka.common.*;
 import org.apache.bi_kafka.common.record.Record;
 import org.apache.bi_kafka.common.serialization.Serializer;
@@ -106,7 +107,9 @@ public class MockProducer<K, V> implements Producer<K, V> {
             partition = partition(record, this.cluster);
         TopicPartition topicPartition = new TopicPartition(record.topic(), partition);
         ProduceRequestResult result = new ProduceRequestResult(topicPartition);
-        FutureRecordMetadata future = new FutureRecordMetadata(result, 0, Record.NO_TIMESTAMP, 0, 0, 0);
+        RecordCompletions recordCompletions = new RecordCompletions();
+        recordCompletions.add(0, Record.NO_TIMESTAMP, 0, 0, 0, null);
+        FutureRecordMetadata future = new FutureRecordMetadata(result, recordCompletions, 0);
         long offset = nextOffset(topicPartition);
         Completion completion = new Completion(offset,
                                                new RecordMetadata(topicPartition, 0, offset, Record.NO_TIMESTAMP, 0, 0, 0),
@@ -119,6 +122,18 @@ public class MockProducer<K, V> implements Producer<K, V> {
         return future;
     }
 
+    /**
+     * Adds the records to the list of sent records in the order of the list.
+     *
+     * @see #history()
+     */
+    public synchronized List<Future<RecordMetadata>> sendAll(List<ProducerRecord<K, V>> records, Callback callback) {
+        List<Future<RecordMetadata>> futures = new ArrayList<Future<RecordMetadata>>(records.size());
+        for (ProducerRecord<K, V> record : records)
+            futures.add(send(record, callback));
+        return futures;
+    }
+
     /**
      * Get the next offset for this topic/partition
      */
@@ -143,6 +158,9 @@ public class MockProducer<K, V> implements Producer<K, V> {
         return this.cluster.partitionsForTopic(topic);
     }
 
+    public void warmUp(Collection<String> topics, long timeout) {
+    }
+
     public Map<MetricName, Metric> metrics() {
         return Collections.emptyMap();
     }
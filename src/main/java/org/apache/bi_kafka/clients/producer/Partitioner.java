@@ -35,7 +35,9 @@ public interface Partitioner extends Configurable, Closeable {
      * @param key The key to partition on (or null if no key)
      * @param keyBytes The serialized key to partition on( or null if no key)
      * @param value The value to partition on or null
-     * @param valueBytes The serialized value to partition on or null
+     * @param valueBytes The serialized value to partition on or null. It is also null for a non-null value when
+     *        <code>value.serialization.mode</code> is <code>append</code>, the value being serialized only once the
+     *        record is appended to the batch of its partition.
      * @param cluster The current cluster metadata
      */
     public int partition(String topic, Object key, byte[] keyBytes, Object value, byte[] valueBytes, Cluster cluster);
@@ -17,6 +17,7 @@
 package org.apache.bi_kafka.clients.producer;
 
 import java.io.Closeable;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Future;
@@ -46,6 +47,14 @@ public interface Producer<K, V> extends Closeable {
      * Send a record and invoke the given callback when the record has been acknowledged by the server
      */
     public Future<RecordMetadata> send(ProducerRecord<K, V> record, Callback callback);
+
+    /**
+     * Send a list of records and invoke the given callback for each record when it has been acknowledged by the
+     * server. Records of the same partition are sent in the order of the list.
+     *
+     * @return The futures of the records, in the order of the list
+     */
+    public List<Future<RecordMetadata>> sendAll(List<ProducerRecord<K, V>> records, Callback callback);
     
     /**
      * Flush any accumulated records from the producer. Blocks until all sends are complete.
@@ -58,6 +67,11 @@ public interface Producer<K, V> extends Closeable {
      */
     public List<PartitionInfo> partitionsFor(String topic);
 
+    /**
+     * Fetch the metadata of the given topics and connect to the leaders of their partitions ahead of the first send
+     */
+    public void warmUp(Collection<String> topics, long timeout);
+
     /**
      * Return a map of metrics maintained by the producer
      */
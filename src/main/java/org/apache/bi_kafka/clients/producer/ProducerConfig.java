@@ -73,6 +73,16 @@ public class ProducerConfig extends AbstractConfig {
                                                  + "batching entirely). A very large batch size may use memory a bit more wastefully as we will always allocate a "
                                                  + "buffer of the specified batch size in anticipation of additional records.";
 
+    /** <code>batch.append.mode</code> */
+    public static final String BATCH_APPEND_MODE_CONFIG = "batch.append.mode";
+    private static final String BATCH_APPEND_MODE_DOC = "How concurrent <code>send()</code> calls append records to the open batch of a partition. With <code>synchronized</code> "
+                                                        + "every append takes the lock of the partition's batch queue. With <code>concurrent</code> appenders reserve space in "
+                                                        + "the open batch with an atomic compare-and-set and copy their records into it in parallel, and the lock is only taken "
+                                                        + "when the open batch is full and a new one has to be created. This reduces contention when many threads write to a few "
+                                                        + "partitions. The concurrent mode only applies when <code>compression.type</code> is <code>none</code> or the "
+                                                        + "<code>compression.mode</code> is <code>drain</code>, since compressed batches are otherwise written through a single "
+                                                        + "compression stream.";
+
     /** <code>acks</code> */
     public static final String ACKS_CONFIG = "acks";
     private static final String ACKS_DOC = "The number of acknowledgments the producer requires the leader to have received before considering a request complete. This controls the "
@@ -115,6 +125,59 @@ public class ProducerConfig extends AbstractConfig {
                                                 + "specified time waiting for more records to show up. This setting defaults to 0 (i.e. no delay). Setting <code>" + LINGER_MS_CONFIG + "=5</code>, "
                                                 + "for example, would have the effect of reducing the number of requests sent but would add up to 5ms of latency to records sent in the absense of load.";
 
+    /** <code>linger.mode</code> */
+    public static final String LINGER_MODE_CONFIG = "linger.mode";
+    private static final String LINGER_MODE_DOC = "With <code>static</code> every batch lingers for <code>" + LINGER_MS_CONFIG + "</code>. With <code>adaptive</code> "
+                                                  + "the linger time of each partition is chosen between <code>linger.min.ms</code> and <code>" + LINGER_MS_CONFIG + "</code> "
+                                                  + "from moving averages of the rate at which its records arrive and of how full its batches get: partitions that "
+                                                  + "rarely get records linger for the lower bound, partitions whose batches fill up linger for the upper bound and "
+                                                  + "other partitions linger for about the time it takes to fill a batch. The chosen times are reported by the "
+                                                  + "<code>linger-ms-avg</code> and <code>linger-ms-max</code> metrics.";
+
+    /** <code>linger.min.ms</code> */
+    public static final String LINGER_MIN_MS_CONFIG = "linger.min.ms";
+    private static final String LINGER_MIN_MS_DOC = "The lower bound of the linger time with <code>" + LINGER_MODE_CONFIG + "=adaptive</code>. Values larger "
+                                                    + "than <code>" + LINGER_MS_CONFIG + "</code> make the linger time static.";
+
+    /** <code>priority.topics</code> */
+    public static final String PRIORITY_TOPICS_CONFIG = "priority.topics";
+    private static final String PRIORITY_TOPICS_DOC = "The names or regular expressions of the topics in the priority lane, e.g. topics of latency critical control "
+                                                      + "events. Their batches linger for <code>priority.linger.ms</code> and are put into each produce request before the "
+                                                      + "batches of the other topics, which fill the rest of the request up to <code>max.request.size</code>. "
+                                                      + "The records of a partition stay in order, as all the partitions of a topic are in the same lane.";
+
+    /** <code>priority.linger.ms</code> */
+    public static final String PRIORITY_LINGER_MS_CONFIG = "priority.linger.ms";
+    private static final String PRIORITY_LINGER_MS_DOC = "The linger time of the batches of the topics in <code>" + PRIORITY_TOPICS_CONFIG + "</code>, which replaces "
+                                                         + "<code>" + LINGER_MS_CONFIG + "</code> and <code>" + LINGER_MODE_CONFIG + "</code> for them.";
+
+    /** <code>send.max.bytes.per.second</code> */
+    public static final String SEND_MAX_BYTES_PER_SECOND_CONFIG = "send.max.bytes.per.second";
+    private static final String SEND_MAX_BYTES_PER_SECOND_DOC = "The bytes per second the producer sends at most, counting the serialized size of the records. "
+                                                                + "The sends are paced evenly to this rate as they are made, rather than throttled by the brokers "
+                                                                + "once their quota is exceeded. 0 disables the limit.";
+
+    /** <code>send.max.records.per.second</code> */
+    public static final String SEND_MAX_RECORDS_PER_SECOND_CONFIG = "send.max.records.per.second";
+    private static final String SEND_MAX_RECORDS_PER_SECOND_DOC = "The records per second the producer sends at most. 0 disables the limit.";
+
+    /** <code>send.topic.max.bytes.per.second</code> */
+    public static final String SEND_TOPIC_MAX_BYTES_PER_SECOND_CONFIG = "send.topic.max.bytes.per.second";
+    private static final String SEND_TOPIC_MAX_BYTES_PER_SECOND_DOC = "The bytes per second the producer sends at most to each topic, on top of <code>"
+                                                                      + SEND_MAX_BYTES_PER_SECOND_CONFIG + "</code>. 0 disables the limit.";
+
+    /** <code>send.topic.max.records.per.second</code> */
+    public static final String SEND_TOPIC_MAX_RECORDS_PER_SECOND_CONFIG = "send.topic.max.records.per.second";
+    private static final String SEND_TOPIC_MAX_RECORDS_PER_SECOND_DOC = "The records per second the producer sends at most to each topic, on top of <code>"
+                                                                        + SEND_MAX_RECORDS_PER_SECOND_CONFIG + "</code>. 0 disables the limit.";
+
+    /** <code>send.rate.limit.mode</code> */
+    public static final String SEND_RATE_LIMIT_MODE_CONFIG = "send.rate.limit.mode";
+    private static final String SEND_RATE_LIMIT_MODE_DOC = "What <code>send()</code> does with a record over the send rate limits. <code>block</code> waits until "
+                                                           + "the record is within the limits, failing it with a <code>TimeoutException</code> if that takes longer than "
+                                                           + "<code>max.block.ms</code>. <code>reject</code> throws a <code>QuotaViolationException</code> "
+                                                           + "right away instead, leaving it to the application to drop or retry the record.";
+
     /** <code>client.id</code> */
     public static final String CLIENT_ID_CONFIG = CommonClientConfigs.CLIENT_ID_CONFIG;
 
@@ -161,6 +224,43 @@ public class ProducerConfig extends AbstractConfig {
                                                     + "not all memory the producer uses is used for buffering. Some additional memory will be used for compression (if "
                                                     + "compression is enabled) as well as for maintaining in-flight requests.";
 
+    /** <code>buffer.memory.type</code> */
+    public static final String BUFFER_MEMORY_TYPE_CONFIG = "buffer.memory.type";
+    private static final String BUFFER_MEMORY_TYPE_DOC = "The kind of buffers backing <code>" + BUFFER_MEMORY_CONFIG + "</code>. With <code>heap</code> the record batches "
+                                                         + "are heap byte buffers. With <code>direct</code> they are direct byte buffers allocated outside of the Java heap, "
+                                                         + "which are written to the socket without being copied into a temporary direct buffer first and keep the buffered "
+                                                         + "records out of the old generation. Direct buffers which are not kept in the pool are released as soon as their "
+                                                         + "batch is deallocated.";
+
+    /** <code>buffer.memory.topic.quotas</code> */
+    public static final String BUFFER_MEMORY_TOPIC_QUOTAS_CONFIG = "buffer.memory.topic.quotas";
+    private static final String BUFFER_MEMORY_TOPIC_QUOTAS_DOC = "Byte budgets of the topics within <code>" + BUFFER_MEMORY_CONFIG + "</code>, as a list of <code>topic:bytes</code> "
+                                                                 + "entries where the topic is a name or a regular expression matched against the whole name. The first "
+                                                                 + "matching entry applies. Once the batches of a topic use its budget, sends to that topic block for "
+                                                                 + "<code>" + MAX_BLOCK_MS_CONFIG + "</code> while sends to other topics go on, so a topic which can not be "
+                                                                 + "delivered does not use up the memory of all the topics. Batches spilled to disk count against the budget.";
+
+    /** <code>buffer.memory.topic.default.bytes</code> */
+    public static final String BUFFER_MEMORY_TOPIC_DEFAULT_BYTES_CONFIG = "buffer.memory.topic.default.bytes";
+    private static final String BUFFER_MEMORY_TOPIC_DEFAULT_BYTES_DOC = "The byte budget of the topics matching no entry of <code>" + BUFFER_MEMORY_TOPIC_QUOTAS_CONFIG + "</code>. "
+                                                                        + "0 leaves them limited by <code>" + BUFFER_MEMORY_CONFIG + "</code> only.";
+
+    /** <code>buffer.spill.dir</code> */
+    public static final String BUFFER_SPILL_DIR_CONFIG = "buffer.spill.dir";
+    private static final String BUFFER_SPILL_DIR_DOC = "A local directory the record batches waiting to be sent are spilled to when <code>" + BUFFER_MEMORY_CONFIG + "</code> is exhausted, "
+                                                       + "rather than blocking the send. The newest batches are written to disk and read back into memory in order once they "
+                                                       + "are about to be sent, e.g. to ride out a broker being unavailable for a while. The spilled batches are not synced and "
+                                                       + "do not survive a restart. Spilling is disabled if empty.";
+
+    /** <code>buffer.spill.max.bytes</code> */
+    public static final String BUFFER_SPILL_MAX_BYTES_CONFIG = "buffer.spill.max.bytes";
+    private static final String BUFFER_SPILL_MAX_BYTES_DOC = "The maximum number of bytes of the record batches spilled to <code>" + BUFFER_SPILL_DIR_CONFIG + "</code>. Once "
+                                                             + "it is reached the send blocks for <code>" + MAX_BLOCK_MS_CONFIG + "</code> as without spilling.";
+
+    /** <code>buffer.spill.segment.bytes</code> */
+    public static final String BUFFER_SPILL_SEGMENT_BYTES_CONFIG = "buffer.spill.segment.bytes";
+    private static final String BUFFER_SPILL_SEGMENT_BYTES_DOC = "The size of the files the spilled batches are appended to. A file is deleted once all its batches are sent.";
+
     /** <code>retry.backoff.ms</code> */
     public static final String RETRY_BACKOFF_MS_CONFIG = CommonClientConfigs.RETRY_BACKOFF_MS_CONFIG;
 
@@ -170,6 +270,43 @@ public class ProducerConfig extends AbstractConfig {
                                                        + " values are <code>none</code>, <code>gzip</code>, <code>snappy</code>, or <code>lz4</code>. "
                                                        + "Compression is of full batches of data, so the efficacy of batching will also impact the compression ratio (more batching means better compression).";
 
+    /** <code>compression.mode</code> */
+    public static final String COMPRESSION_MODE_CONFIG = "compression.mode";
+    private static final String COMPRESSION_MODE_DOC = "When the records are compressed. With <code>append</code> they are compressed by <code>send()</code> as they are appended "
+                                                       + "to their batch, while holding the lock of the partition's batch queue. With <code>drain</code> they are appended uncompressed "
+                                                       + "and a batch is compressed once it is drained to be sent, on the <code>compression.threads</code> compression threads. "
+                                                       + "The requests sent are the same, but <code>batch.size</code> then bounds the uncompressed size of a batch, so it should be "
+                                                       + "raised by the expected compression ratio to send batches as large as in the append mode. The drain mode also supports "
+                                                       + "the concurrent <code>batch.append.mode</code>.";
+
+    /** <code>value.serialization.mode</code> */
+    public static final String VALUE_SERIALIZATION_MODE_CONFIG = "value.serialization.mode";
+    private static final String VALUE_SERIALIZATION_MODE_DOC = "When the values are serialized. With <code>send</code> they are serialized to a byte array by <code>send()</code> "
+                                                               + "before the record is partitioned. With <code>append</code> a value serializer implementing <code>BufferSerializer</code> "
+                                                               + "encodes the value straight into the batch, saving the copy, but it then runs while holding the lock of the partition's "
+                                                               + "batch queue and the partitioner gets a null <code>valueBytes</code>, so a partitioner hashing the serialized value "
+                                                               + "can not be used. The append mode only applies to batches written uncompressed, i.e. without compression or with the "
+                                                               + "<code>drain</code> <code>" + COMPRESSION_MODE_CONFIG + "</code>, and the <code>synchronized</code> "
+                                                               + "<code>batch.append.mode</code>, otherwise the values are serialized by <code>send()</code>.";
+
+    /** <code>compression.threads</code> */
+    public static final String COMPRESSION_THREADS_CONFIG = "compression.threads";
+    private static final String COMPRESSION_THREADS_DOC = "The number of threads compressing the drained batches when <code>" + COMPRESSION_MODE_CONFIG + "</code> is "
+                                                          + "<code>drain</code>. The batches of a request are compressed in parallel. With 0 they are compressed by the I/O thread.";
+
+    /** <code>compression.level</code> */
+    public static final String COMPRESSION_LEVEL_CONFIG = "compression.level";
+    private static final String COMPRESSION_LEVEL_DOC = "The compression level of <code>" + COMPRESSION_TYPE_CONFIG + "</code>, -1 for the default level of the codec. "
+                                                        + "For <code>gzip</code> a deflate level from 0 (no compression) to 9 (best compression). For <code>lz4</code> 0 "
+                                                        + "uses the fast compressor and a level from 1 to 17 the high compression (HC) compressor at that level, "
+                                                        + "which compresses better but much slower while decompressing as fast. It is ignored by <code>snappy</code>.";
+
+    /** <code>compression.lz4.block.size</code> */
+    public static final String COMPRESSION_LZ4_BLOCK_SIZE_CONFIG = "compression.lz4.block.size";
+    private static final String COMPRESSION_LZ4_BLOCK_SIZE_DOC = "The size of the blocks <code>lz4</code> compresses independently, one of <code>64kb</code>, "
+                                                                 + "<code>256kb</code>, <code>1mb</code> or <code>4mb</code>. Larger blocks may compress large batches "
+                                                                 + "better, at the cost of larger compression buffers for every batch being compressed or decompressed.";
+
     /** <code>metrics.sample.window.ms</code> */
     public static final String METRICS_SAMPLE_WINDOW_MS_CONFIG = CommonClientConfigs.METRICS_SAMPLE_WINDOW_MS_CONFIG;
 
@@ -208,6 +345,17 @@ public class ProducerConfig extends AbstractConfig {
     public static final String PARTITIONER_CLASS_CONFIG = "partitioner.class";
     private static final String PARTITIONER_CLASS_DOC = "Partitioner class that implements the <code>Partitioner</code> interface.";
 
+    /** <code>partitioner.keyless.mode</code> */
+    public static final String PARTITIONER_KEYLESS_MODE_CONFIG = "partitioner.keyless.mode";
+    private static final String PARTITIONER_KEYLESS_MODE_DOC = "How the default partitioner spreads records without a key. With <code>round-robin</code> each record "
+                                                               + "goes to the next available partition of the topic. With <code>sticky</code> records go to the same "
+                                                               + "partition until a new batch is needed for it, i.e. its batch is full or was sent, and then to another "
+                                                               + "available partition. This produces fewer and larger batches, which compress better and are sent sooner "
+                                                               + "at the same <code>" + LINGER_MS_CONFIG + "</code>. <code>load-aware</code> sticks to a partition "
+                                                               + "like <code>sticky</code> but picks the next one at random weighted by the producer's load, so "
+                                                               + "partitions whose leader has a much higher request latency or more in-flight requests than the "
+                                                               + "other leaders, or which have more queued bytes, get less records.";
+
     /** <code>request.timeout.ms</code> */
     public static final String REQUEST_TIMEOUT_MS_CONFIG = CommonClientConfigs.REQUEST_TIMEOUT_MS_CONFIG;
     private static final String REQUEST_TIMEOUT_MS_DOC = CommonClientConfigs.REQUEST_TIMEOUT_MS_DOC
@@ -220,9 +368,53 @@ public class ProducerConfig extends AbstractConfig {
                                                         + "Implementing the <code>ProducerInterceptor</code> interface allows you to intercept (and possibly mutate) the records "
                                                         + "received by the producer before they are published to the Kafka cluster. By default, there are no interceptors.";
 
+    /** <code>callback.executor.threads</code> */
+    public static final String CALLBACK_EXECUTOR_THREADS_CONFIG = "callback.executor.threads";
+    private static final String CALLBACK_EXECUTOR_THREADS_DOC = "The number of threads running the callbacks and interceptor acknowledgements of the sent records. "
+                                                                + "With 0 they run on the I/O thread of the producer, where a slow callback delays the requests to every broker. "
+                                                                + "Otherwise each partition is assigned to one of the threads, so the callbacks of a partition still run in the order of the offsets.";
+
+    /** <code>callback.executor.queue.size</code> */
+    public static final String CALLBACK_EXECUTOR_QUEUE_SIZE_CONFIG = "callback.executor.queue.size";
+    private static final String CALLBACK_EXECUTOR_QUEUE_SIZE_DOC = "The maximum number of completed batches waiting for their callbacks on each callback thread when "
+                                                                   + "<code>" + CALLBACK_EXECUTOR_THREADS_CONFIG + "</code> is positive. The I/O thread blocks when the queue "
+                                                                   + "of a callback thread is full.";
+
+    /** <code>sender.threads</code> */
+    public static final String SENDER_THREADS_CONFIG = "sender.threads";
+    private static final String SENDER_THREADS_DOC = "The number of I/O threads sending the accumulated records, each with its own connections. "
+                                                     + "Each broker is assigned to one of the threads by its id, so the requests to a broker are still sent by a single thread, "
+                                                     + "while a slow broker or a thread busy compressing or completing batches no longer holds up the requests to the others. "
+                                                     + "The first thread also keeps the metadata up to date.";
+
+    /** <code>metadata.wait.mode</code> */
+    public static final String METADATA_WAIT_MODE_CONFIG = "metadata.wait.mode";
+    private static final String METADATA_WAIT_MODE_DOC = "How <code>send()</code> handles a record whose topic is not in the metadata yet. With <code>block</code> the send "
+                                                         + "blocks until the metadata of the topic is fetched, for up to <code>" + MAX_BLOCK_MS_CONFIG + "</code>. With <code>queue</code> "
+                                                         + "the serialized record is parked in a queue of its topic, with its size counted against <code>" + BUFFER_MEMORY_CONFIG + "</code>, "
+                                                         + "and the send returns right away. The I/O thread partitions and appends the parked records in order once the "
+                                                         + "metadata of the topic arrives, or fails them through their callback after <code>" + MAX_BLOCK_MS_CONFIG + "</code>. "
+                                                         + "A send still blocks on a full buffer memory once the metadata is known.";
+
+    /** <code>metadata.wait.queue.size</code> */
+    public static final String METADATA_WAIT_QUEUE_SIZE_CONFIG = "metadata.wait.queue.size";
+    private static final String METADATA_WAIT_QUEUE_SIZE_DOC = "The maximum number of records of a topic waiting for its metadata when <code>" + METADATA_WAIT_MODE_CONFIG + "</code> "
+                                                               + "is <code>queue</code>. The send throws a <code>BufferExhaustedException</code> once the queue of the topic is full.";
+
     static {
         CONFIG = new ConfigDef().define(BOOTSTRAP_SERVERS_CONFIG, Type.LIST, Importance.HIGH, CommonClientConfigs.BOOTSTRAP_SERVERS_DOC)
                                 .define(BUFFER_MEMORY_CONFIG, Type.LONG, 32 * 1024 * 1024L, atLeast(0L), Importance.HIGH, BUFFER_MEMORY_DOC)
+                                .define(BUFFER_MEMORY_TYPE_CONFIG,
+                                        Type.STRING,
+                                        "heap",
+                                        in("heap", "direct"),
+                                        Importance.LOW,
+                                        BUFFER_MEMORY_TYPE_DOC)
+                                .define(BUFFER_MEMORY_TOPIC_QUOTAS_CONFIG, Type.LIST, "", Importance.LOW, BUFFER_MEMORY_TOPIC_QUOTAS_DOC)
+                                .define(BUFFER_MEMORY_TOPIC_DEFAULT_BYTES_CONFIG, Type.LONG, 0L, atLeast(0L), Importance.LOW, BUFFER_MEMORY_TOPIC_DEFAULT_BYTES_DOC)
+                                .define(BUFFER_SPILL_DIR_CONFIG, Type.STRING, "", Importance.LOW, BUFFER_SPILL_DIR_DOC)
+                                .define(BUFFER_SPILL_MAX_BYTES_CONFIG, Type.LONG, 1024 * 1024 * 1024L, atLeast(0L), Importance.LOW, BUFFER_SPILL_MAX_BYTES_DOC)
+                                .define(BUFFER_SPILL_SEGMENT_BYTES_CONFIG, Type.INT, 64 * 1024 * 1024, atLeast(1024 * 1024), Importance.LOW, BUFFER_SPILL_SEGMENT_BYTES_DOC)
                                 .define(RETRIES_CONFIG, Type.INT, 0, between(0, Integer.MAX_VALUE), Importance.HIGH, RETRIES_DOC)
                                 .define(ACKS_CONFIG,
                                         Type.STRING,
@@ -231,9 +423,54 @@ public class ProducerConfig extends AbstractConfig {
                                         Importance.HIGH,
                                         ACKS_DOC)
                                 .define(COMPRESSION_TYPE_CONFIG, Type.STRING, "none", Importance.HIGH, COMPRESSION_TYPE_DOC)
+                                .define(COMPRESSION_MODE_CONFIG,
+                                        Type.STRING,
+                                        "append",
+                                        in("append", "drain"),
+                                        Importance.LOW,
+                                        COMPRESSION_MODE_DOC)
+                                .define(VALUE_SERIALIZATION_MODE_CONFIG,
+                                        Type.STRING,
+                                        "send",
+                                        in("send", "append"),
+                                        Importance.LOW,
+                                        VALUE_SERIALIZATION_MODE_DOC)
+                                .define(COMPRESSION_THREADS_CONFIG, Type.INT, 1, atLeast(0), Importance.LOW, COMPRESSION_THREADS_DOC)
+                                .define(COMPRESSION_LEVEL_CONFIG, Type.INT, -1, between(-1, 17), Importance.LOW, COMPRESSION_LEVEL_DOC)
+                                .define(COMPRESSION_LZ4_BLOCK_SIZE_CONFIG,
+                                        Type.STRING,
+                                        "64kb",
+                                        in("64kb", "256kb", "1mb", "4mb"),
+                                        Importance.LOW,
+                                        COMPRESSION_LZ4_BLOCK_SIZE_DOC)
                                 .define(BATCH_SIZE_CONFIG, Type.INT, 16384, atLeast(0), Importance.MEDIUM, BATCH_SIZE_DOC)
+                                .define(BATCH_APPEND_MODE_CONFIG,
+                                        Type.STRING,
+                                        "synchronized",
+                                        in("synchronized", "concurrent"),
+                                        Importance.LOW,
+                                        BATCH_APPEND_MODE_DOC)
                                 .define(TIMEOUT_CONFIG, Type.INT, 30 * 1000, atLeast(0), Importance.MEDIUM, TIMEOUT_DOC)
                                 .define(LINGER_MS_CONFIG, Type.LONG, 0, atLeast(0L), Importance.MEDIUM, LINGER_MS_DOC)
+                                .define(LINGER_MODE_CONFIG,
+                                        Type.STRING,
+                                        "static",
+                                        in("static", "adaptive"),
+                                        Importance.LOW,
+                                        LINGER_MODE_DOC)
+                                .define(LINGER_MIN_MS_CONFIG, Type.LONG, 0, atLeast(0L), Importance.LOW, LINGER_MIN_MS_DOC)
+                                .define(PRIORITY_TOPICS_CONFIG, Type.LIST, "", Importance.LOW, PRIORITY_TOPICS_DOC)
+                                .define(PRIORITY_LINGER_MS_CONFIG, Type.LONG, 0, atLeast(0L), Importance.LOW, PRIORITY_LINGER_MS_DOC)
+                                .define(SEND_MAX_BYTES_PER_SECOND_CONFIG, Type.LONG, 0L, atLeast(0L), Importance.LOW, SEND_MAX_BYTES_PER_SECOND_DOC)
+                                .define(SEND_MAX_RECORDS_PER_SECOND_CONFIG, Type.LONG, 0L, atLeast(0L), Importance.LOW, SEND_MAX_RECORDS_PER_SECOND_DOC)
+                                .define(SEND_TOPIC_MAX_BYTES_PER_SECOND_CONFIG, Type.LONG, 0L, atLeast(0L), Importance.LOW, SEND_TOPIC_MAX_BYTES_PER_SECOND_DOC)
+                                .define(SEND_TOPIC_MAX_RECORDS_PER_SECOND_CONFIG, Type.LONG, 0L, atLeast(0L), Importance.LOW, SEND_TOPIC_MAX_RECORDS_PER_SECOND_DOC)
+                                .define(SEND_RATE_LIMIT_MODE_CONFIG,
+                                        Type.STRING,
+                                        "block",
+                                        in("block", "reject"),
+                                        Importance.LOW,
+                                        SEND_RATE_LIMIT_MODE_DOC)
                                 .define(CLIENT_ID_CONFIG, Type.STRING, "", Importance.MEDIUM, CommonClientConfigs.CLIENT_ID_DOC)
                                 .define(SEND_BUFFER_CONFIG, Type.INT, 128 * 1024, atLeast(-1), Importance.MEDIUM, CommonClientConfigs.SEND_BUFFER_DOC)
                                 .define(RECEIVE_BUFFER_CONFIG, Type.INT, 32 * 1024, atLeast(-1), Importance.MEDIUM, CommonClientConfigs.RECEIVE_BUFFER_DOC)
@@ -297,11 +534,27 @@ public class ProducerConfig extends AbstractConfig {
                                         Type.CLASS,
                                         DefaultPartitioner.class,
                                         Importance.MEDIUM, PARTITIONER_CLASS_DOC)
+                                .define(PARTITIONER_KEYLESS_MODE_CONFIG,
+                                        Type.STRING,
+                                        "round-robin",
+                                        in("round-robin", "sticky", "load-aware"),
+                                        Importance.LOW,
+                                        PARTITIONER_KEYLESS_MODE_DOC)
                                 .define(INTERCEPTOR_CLASSES_CONFIG,
                                         Type.LIST,
                                         null,
                                         Importance.LOW,
                                         INTERCEPTOR_CLASSES_DOC)
+                                .define(CALLBACK_EXECUTOR_THREADS_CONFIG, Type.INT, 0, atLeast(0), Importance.LOW, CALLBACK_EXECUTOR_THREADS_DOC)
+                                .define(CALLBACK_EXECUTOR_QUEUE_SIZE_CONFIG, Type.INT, 1024, atLeast(1), Importance.LOW, CALLBACK_EXECUTOR_QUEUE_SIZE_DOC)
+                                .define(SENDER_THREADS_CONFIG, Type.INT, 1, atLeast(1), Importance.LOW, SENDER_THREADS_DOC)
+                                .define(METADATA_WAIT_MODE_CONFIG,
+                                        Type.STRING,
+                                        "block",
+                                        in("block", "queue"),
+                                        Importance.LOW,
+                                        METADATA_WAIT_MODE_DOC)
+                                .define(METADATA_WAIT_QUEUE_SIZE_CONFIG, Type.INT, 1000, atLeast(1), Importance.LOW, METADATA_WAIT_QUEUE_SIZE_DOC)
 
                                 // security support
                                 .define(CommonClientConfigs.SECURITY_PROTOCOL_CONFIG,
@@ -0,0 +1,43 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.bi_kafka.clients.producer;
+
+import org.apache.bi_kafka.common.Node;
+import org.apache.bi_kafka.common.TopicPartition;
+
+/**
+ * The live load of a producer towards the brokers it sends to, as seen by its sender threads and record accumulator.
+ * All the methods are safe to call from any thread and return a recent, not necessarily current, view.
+ */
+public interface ProducerLoad {
+
+    /**
+     * The number of produce requests sent to the node which have not completed yet
+     */
+    public int inFlightRequests(Node node);
+
+    /**
+     * The moving average of the latency of the produce requests to the node, or -1 if none has completed yet
+     */
+    public double requestLatencyMs(Node node);
+
+    /**
+     * The bytes of the records appended to the partition which have not been drained by a sender yet
+     */
+    public long queuedBytes(TopicPartition tp);
+
+}
@@ -0,0 +1,84 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.bi_kafka.clients.producer.internals;
+
+/**
+ * Chooses the linger time of each partition between a lower and an upper bound from moving averages of the rate at
+ * which records arrive for it and of how full its batches are when they are drained.
+ * <p>
+ * A partition whose batches fill up anyway lingers for the upper bound, since its batches are sent when full and a
+ * long linger only keeps the last batch of a burst waiting for more records. A partition which is not expected to
+ * get even one more record within the upper bound lingers for the lower bound, since waiting would only add latency.
+ * Any other partition lingers for about the time it takes to fill a batch at its current rate.
+ * <p>
+ * The estimates are only updated by the sender thread when it drains a batch.
+ */
+final class AdaptiveLinger {
+
+    // the weight of a new sample in the moving averages
+    private static final double ALPHA = 0.2;
+    // the average fill ratio from which batches are considered to fill up before lingering ends
+    private static final double FULL_RATIO = 0.9;
+
+    private final long minLingerMs;
+    private final long maxLingerMs;
+    private final int batchSize;
+
+    AdaptiveLinger(long minLingerMs, long maxLingerMs, int batchSize) {
+        this.minLingerMs = minLingerMs;
+        this.maxLingerMs = maxLingerMs;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * The linger time of the partition, the upper bound until a batch of it was drained
+     */
+    long lingerMs(PartitionBatchTable.Entry entry) {
+        return entry.lingerMs < 0 ? maxLingerMs : entry.lingerMs;
+    }
+
+    /**
+     * Update the estimates of the partition with a batch drained for the first time and choose its next linger time
+     *
+     * @param entry The partition of the batch
+     * @param batch The drained batch, which must be closed
+     * @param nowMs The current time
+     */
+    void onDrain(PartitionBatchTable.Entry entry, RecordBatch batch, long nowMs) {
+        if (batch.attempts > 0)
+            return;
+        long ageMs = Math.max(nowMs - batch.createdMs, 1L);
+        double recordsPerMs = (double) batch.recordCount / ageMs;
+        double bytesPerMs = (double) batch.sizeInBytes() / ageMs;
+        double fillRatio = Math.min((double) batch.sizeInBytes() / batchSize, 1.0);
+        if (entry.lingerMs < 0) {
+            entry.recordsPerMs = recordsPerMs;
+            entry.bytesPerMs = bytesPerMs;
+            entry.fillRatio = fillRatio;
+        } else {
+            entry.recordsPerMs += ALPHA * (recordsPerMs - entry.recordsPerMs);
+            entry.bytesPerMs += ALPHA * (bytesPerMs - entry.bytesPerMs);
+            entry.fillRatio += ALPHA * (fillRatio - entry.fillRatio);
+        }
+        entry.lingerMs = chooseLingerMs(entry.recordsPerMs, entry.bytesPerMs, entry.fillRatio);
+    }
+
+    private long chooseLingerMs(double recordsPerMs, double bytesPerMs, double fillRatio) {
+        if (fillRatio >= FULL_RATIO)
+            return maxLingerMs;
+        if (recordsPerMs * maxLingerMs < 1.0)
+            return minLingerMs;
+        double fillTimeMs = Math.ceil(batchSize / bytesPerMs);
+        return Math.max(minLingerMs, Math.min(maxLingerMs, (long) fillTimeMs));
+    }
+}
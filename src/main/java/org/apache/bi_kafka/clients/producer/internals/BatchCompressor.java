@@ -0,0 +1,224 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.bi_kafka.clients.producer.internals;
+
+import org.apache.bi_kafka.common.MetricName;
+import org.apache.bi_kafka.common.metrics.Measurable;
+import org.apache.bi_kafka.common.metrics.MetricConfig;
+import org.apache.bi_kafka.common.metrics.Metrics;
+import org.apache.bi_kafka.common.metrics.Sensor;
+import org.apache.bi_kafka.common.metrics.stats.Avg;
+import org.apache.bi_kafka.common.metrics.stats.Max;
+import org.apache.bi_kafka.common.utils.KafkaThread;
+import org.apache.bi_kafka.common.utils.Time;
+import org.bi_slf4j.Logger;
+import org.bi_slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compresses drained batches on a fixed number of threads. With deferred compression the records of a batch are
+ * appended uncompressed, so that appending threads neither pay for the compression nor hold the lock of the partition
+ * while compressing, and the batch is compressed here once it is drained to be sent.
+ * <p>
+ * The batches of a produce request are compressed in parallel and the sender is notified once the last one is done.
+ * The queue of batches is not bounded since a sender has at most one request per node being compressed.
+ */
+public final class BatchCompressor {
+
+    private static final Logger log = LoggerFactory.getLogger(BatchCompressor.class);
+
+    private static final long POLL_INTERVAL_MS = 100L;
+
+    private final BlockingQueue<Task> queue;
+    private final List<Thread> threads;
+    private final Sensor compressionTimeSensor;
+    private final Time time;
+    private volatile boolean closed;
+
+    /**
+     * Create and start the compression threads
+     *
+     * @param clientId The client id, appended to the name of the threads
+     * @param numThreads The number of compression threads
+     * @param metrics The metrics
+     * @param time The time instance to use
+     */
+    public BatchCompressor(String clientId, int numThreads, Metrics metrics, Time time) {
+        if (numThreads <= 0)
+            throw new IllegalArgumentException("The number of compression threads must be positive: " + numThreads);
+        this.queue = new LinkedBlockingQueue<Task>();
+        this.threads = new ArrayList<Thread>(numThreads);
+        this.time = time;
+        this.closed = false;
+        String metricGrpName = "producer-metrics";
+        this.compressionTimeSensor = registerMetrics(metrics, metricGrpName);
+        for (int i = 0; i < numThreads; i++) {
+            String name = "kafka-producer-compression-thread-" + i + (clientId.length() > 0 ? " | " + clientId : "");
+            Thread thread = new KafkaThread(name, new Runnable() {
+                public void run() {
+                    runTasks();
+                }
+            }, true);
+            threads.add(thread);
+        }
+        for (Thread thread : threads)
+            thread.start();
+    }
+
+    private Sensor registerMetrics(Metrics metrics, String metricGrpName) {
+        MetricName metricName = metrics.metricName("compression-queue-size", metricGrpName, "The number of drained batches waiting to be compressed");
+        metrics.addMetric(metricName, new Measurable() {
+            public double measure(MetricConfig config, long now) {
+                return queue.size();
+            }
+        });
+        Sensor sensor = metrics.sensor("compression-time");
+        metricName = metrics.metricName("compression-time-avg", metricGrpName, "The average time in ms spent compressing a batch");
+        sensor.add(metricName, new Avg());
+        metricName = metrics.metricName("compression-time-max", metricGrpName, "The maximum time in ms spent compressing a batch");
+        sensor.add(metricName, new Max());
+        return sensor;
+    }
+
+    /**
+     * Compress the given batches on the compression threads. The batches are compressed on the calling thread once
+     * the compressor is closed.
+     *
+     * @param batches The batches of a produce request, closed for appends
+     * @param completion Notified on the thread compressing the last batch
+     */
+    void compress(List<RecordBatch> batches, Completion completion) {
+        Request request = new Request(batches.size(), completion);
+        for (RecordBatch batch : batches) {
+            Task task = new Task(batch, request);
+            if (closed || !queue.offer(task))
+                task.run();
+        }
+        // the threads may have found the queue empty and stopped since the check above
+        if (closed) {
+            Task task = queue.poll();
+            while (task != null) {
+                task.run();
+                task = queue.poll();
+            }
+        }
+    }
+
+    private void runTasks() {
+        // keep compressing the queued batches after a close, until the queue is drained
+        while (!closed || !queue.isEmpty()) {
+            Task task;
+            try {
+                task = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (task != null)
+                task.run();
+        }
+    }
+
+    /**
+     * Whether the given thread is one of the compression threads
+     */
+    public boolean isCompressionThread(Thread thread) {
+        return threads.contains(thread);
+    }
+
+    /**
+     * Stop accepting batches and wait for the compression threads to compress the batches already queued
+     *
+     * @param timeoutMs The maximum time to wait
+     */
+    public void close(long timeoutMs) throws InterruptedException {
+        this.closed = true;
+        long deadlineMs = time.milliseconds() + timeoutMs;
+        for (Thread thread : threads) {
+            if (thread == Thread.currentThread())
+                continue;
+            long remainingMs = deadlineMs - time.milliseconds();
+            if (remainingMs <= 0)
+                break;
+            thread.join(remainingMs);
+        }
+        if (!queue.isEmpty())
+            log.warn("{} batch(es) have not been compressed within the close timeout of {} ms", queue.size(), timeoutMs);
+    }
+
+    /**
+     * Notified once all the batches of a request are compressed
+     */
+    interface Completion {
+        /**
+         * @param failures The batches which failed to be compressed, with their error
+         */
+        void onCompletion(Map<RecordBatch, RuntimeException> failures);
+    }
+
+    private static final class Request {
+        private final AtomicInteger remaining;
+        private final Completion completion;
+        private volatile Map<RecordBatch, RuntimeException> failures;
+
+        Request(int numBatches, Completion completion) {
+            this.remaining = new AtomicInteger(numBatches);
+            this.completion = completion;
+            this.failures = null;
+        }
+
+        synchronized void failed(RecordBatch batch, RuntimeException e) {
+            if (failures == null)
+                failures = new ConcurrentHashMap<RecordBatch, RuntimeException>();
+            failures.put(batch, e);
+        }
+
+        void batchDone() {
+            if (remaining.decrementAndGet() == 0) {
+                Map<RecordBatch, RuntimeException> failed = failures;
+                completion.onCompletion(failed == null ? Collections.<RecordBatch, RuntimeException>emptyMap() : failed);
+            }
+        }
+    }
+
+    private final class Task implements Runnable {
+        private final RecordBatch batch;
+        private final Request request;
+
+        Task(RecordBatch batch, Request request) {
+            this.batch = batch;
+            this.request = request;
+        }
+
+        public void run() {
+            long startNs = time.nanoseconds();
+            try {
+                batch.close();
+            } catch (RuntimeException e) {
+                log.error("Error compressing a batch of topic-partition '{}'", batch.topicPartition, e);
+                request.failed(batch, e);
+            }
+            compressionTimeSensor.record((time.nanoseconds() - startNs) / 1000000.0);
+            request.batchDone();
+        }
+    }
+
+}
@@ -0,0 +1,264 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.bi_kafka.clients.producer.internals;
+
+import org.apache.bi_kafka.common.KafkaException;
+import org.apache.bi_kafka.common.MetricName;
+import org.apache.bi_kafka.common.metrics.Measurable;
+import org.apache.bi_kafka.common.metrics.MetricConfig;
+import org.apache.bi_kafka.common.metrics.Metrics;
+import org.apache.bi_kafka.common.metrics.Sensor;
+import org.apache.bi_kafka.common.metrics.stats.Avg;
+import org.apache.bi_kafka.common.metrics.stats.Max;
+import org.apache.bi_kafka.common.metrics.stats.Rate;
+import org.apache.bi_kafka.common.record.FileRecords;
+import org.apache.bi_kafka.common.record.MemoryRecords;
+import org.apache.bi_kafka.common.utils.Time;
+import org.apache.bi_kafka.common.utils.Utils;
+import org.bi_slf4j.Logger;
+import org.bi_slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The disk tier of the record accumulator. When the buffer memory is exhausted the closed batches waiting in the
+ * accumulator are written to local segment files, so that their buffers can be reused for new batches, and they are
+ * read back into buffer memory when they are drained. A spilled batch keeps its place in the queue of its partition, so
+ * the records are still sent in order.
+ * <p>
+ * The segments are written in sequence and rolled once they reach the segment size. A segment is deleted once all
+ * the batches it holds have been read back or completed. The spilled records are not synced to disk: they do not
+ * survive the process, just as the records in memory.
+ */
+public final class BatchSpill {
+
+    private static final Logger log = LoggerFactory.getLogger(BatchSpill.class);
+
+    private final File dir;
+    private final String prefix;
+    private final long maxBytes;
+    private final int segmentBytes;
+    private final Time time;
+    private final Sensor spillSensor;
+    private final Sensor spillTimeSensor;
+    private final Sensor replaySensor;
+    private final List<Segment> segments;
+    private Segment active;
+    private final AtomicLong spilledBytes;
+    private boolean closed;
+
+    /**
+     * @param dir The directory of the segment files
+     * @param clientId The client id, used as the prefix of the segment files
+     * @param maxBytes The maximum number of bytes of the batches spilled at a time
+     * @param segmentBytes The size a segment is rolled at
+     * @param metrics The metrics
+     * @param time The time instance to use
+     */
+    public BatchSpill(File dir, String clientId, long maxBytes, int segmentBytes, Metrics metrics, Time time) {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new KafkaException("Failed to create the spill directory " + dir);
+        this.dir = dir;
+        this.prefix = "producer-" + (clientId.length() > 0 ? clientId : "spill") + "-";
+        this.maxBytes = maxBytes;
+        this.segmentBytes = segmentBytes;
+        this.time = time;
+        this.segments = new ArrayList<Segment>();
+        this.active = null;
+        this.spilledBytes = new AtomicLong(0);
+        this.closed = false;
+
+        String metricGrpName = "producer-metrics";
+        MetricName metricName = metrics.metricName("spill-bytes", metricGrpName, "The number of bytes of the batches spilled to disk, waiting to be sent.");
+        metrics.addMetric(metricName, new Measurable() {
+            public double measure(MetricConfig config, long now) {
+                return spilledBytes();
+            }
+        });
+        this.spillSensor = metrics.sensor("spill");
+        metricName = metrics.metricName("spill-rate", metricGrpName, "The average number of bytes per second spilled to disk.");
+        this.spillSensor.add(metricName, new Rate());
+        this.spillTimeSensor = metrics.sensor("spill-time");
+        metricName = metrics.metricName("spill-time-avg", metricGrpName, "The average time in ms to write a batch to disk.");
+        this.spillTimeSensor.add(metricName, new Avg());
+        metricName = metrics.metricName("spill-time-max", metricGrpName, "The maximum time in ms to write a batch to disk.");
+        this.spillTimeSensor.add(metricName, new Max());
+        this.replaySensor = metrics.sensor("spill-replay");
+        metricName = metrics.metricName("spill-replay-rate", metricGrpName, "The average number of spilled bytes per second read back to be sent.");
+        this.replaySensor.add(metricName, new Rate());
+    }
+
+    /**
+     * Write the records of a closed batch to the active segment.
+     *
+     * @return The location of the records, or null if spilling them would exceed the maximum spill size
+     */
+    public SpilledRecords spill(MemoryRecords records) throws IOException {
+        int size = records.sizeInBytes();
+        long startNs = time.nanoseconds();
+        SpilledRecords spilled = reserve(size);
+        if (spilled == null)
+            return null;
+        try {
+            // the write is done outside of the lock, at the reserved position, so that concurrent spills and the
+            // metrics do not wait on the disk; a view is written so that a failed write leaves the batch intact
+            Utils.writeFully(spilled.segment.records.channel(), records.buffer().duplicate(), spilled.position);
+        } catch (IOException e) {
+            // nothing is read from the reserved range, whatever was partially written is dropped with the segment
+            release(spilled);
+            throw e;
+        }
+        long now = time.milliseconds();
+        spillSensor.record(size, now);
+        spillTimeSensor.record((time.nanoseconds() - startNs) / 1000000.0, now);
+        return spilled;
+    }
+
+    /**
+     * Reserve the range of the active segment the records of a batch are written to.
+     *
+     * @return The location of the records, or null if spilling them would exceed the maximum spill size
+     */
+    private synchronized SpilledRecords reserve(int size) throws IOException {
+        if (closed || spilledBytes.get() + size > maxBytes)
+            return null;
+        if (active == null || active.end >= segmentBytes)
+            roll();
+        Segment segment = active;
+        int position = segment.end;
+        segment.end += size;
+        segment.live++;
+        spilledBytes.addAndGet(size);
+        return new SpilledRecords(segment, position, size);
+    }
+
+    /**
+     * Read spilled records back into the given buffer, which must have room for them, and release them.
+     *
+     * @return The records read, backed by the buffer
+     */
+    public MemoryRecords replay(SpilledRecords spilled, ByteBuffer buffer) throws IOException {
+        try {
+            buffer.clear();
+            buffer.limit(spilled.size);
+            // positional reads do not interfere with the writes at the end of the segment
+            spilled.segment.records.readInto(buffer, spilled.position);
+            if (buffer.remaining() != spilled.size)
+                throw new IOException("Read " + buffer.remaining() + " bytes of a spilled batch of " + spilled.size +
+                        " bytes from " + spilled.segment.records.file());
+            replaySensor.record(spilled.size);
+            return MemoryRecords.readableRecords(buffer);
+        } finally {
+            release(spilled);
+        }
+    }
+
+    /**
+     * Release spilled records which are not needed anymore, e.g. because their batch expired.
+     */
+    public synchronized void release(SpilledRecords spilled) {
+        if (spilled.released)
+            return;
+        spilled.released = true;
+        spilledBytes.addAndGet(-spilled.size);
+        if (closed)
+            return;
+        Segment segment = spilled.segment;
+        if (--segment.live > 0)
+            return;
+        if (segment == active) {
+            // reuse the active segment from its start rather than growing it
+            try {
+                segment.records.truncateTo(0);
+                segment.end = 0;
+            } catch (IOException e) {
+                log.warn("Failed to truncate spill segment {}, rolling it", segment.records.file(), e);
+                active = null;
+                delete(segment);
+            }
+        } else {
+            delete(segment);
+        }
+    }
+
+    public long spilledBytes() {
+        return spilledBytes.get();
+    }
+
+    /**
+     * Delete all the segments. Batches still spilled can not be read back anymore.
+     */
+    public synchronized void close() {
+        closed = true;
+        for (Segment segment : new ArrayList<Segment>(segments))
+            delete(segment);
+        active = null;
+    }
+
+    private void roll() throws IOException {
+        File file = File.createTempFile(prefix, ".spill", dir);
+        file.deleteOnExit();
+        Segment segment = new Segment(FileRecords.open(file));
+        segments.add(segment);
+        Segment previous = active;
+        active = segment;
+        if (previous != null && previous.live == 0)
+            delete(previous);
+    }
+
+    private void delete(Segment segment) {
+        segments.remove(segment);
+        if (!segment.records.delete())
+            log.warn("Failed to delete spill segment {}", segment.records.file());
+    }
+
+    /**
+     * The location of the records of a spilled batch
+     */
+    public static final class SpilledRecords {
+        private final Segment segment;
+        private final int position;
+        private final int size;
+        private boolean released;
+
+        private SpilledRecords(Segment segment, int position, int size) {
+            this.segment = segment;
+            this.position = position;
+            this.size = size;
+            this.released = false;
+        }
+
+        public int sizeInBytes() {
+            return size;
+        }
+    }
+
+    private static final class Segment {
+        private final FileRecords records;
+        // the end of the range reserved by the spilled batches, their records may still be being written
+        private int end;
+        // the number of spilled batches in the segment which were not released yet
+        private int live;
+
+        Segment(FileRecords records) {
+            this.records = records;
+            this.end = 0;
+            this.live = 0;
+        }
+    }
+}
@@ -16,7 +16,12 @@
  */
 package org.apache.bi_kafka.clients.producer.internals;
 
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
@@ -27,13 +32,19 @@ import org.apache.bi_kafka.common.metrics.Metrics;
 import org.apache.bi_kafka.common.metrics.Sensor;
 import org.apache.bi_kafka.common.metrics.stats.Rate;
 import org.apache.bi_kafka.common.utils.Time;
+import org.bi_slf4j.Logger;
+import org.bi_slf4j.LoggerFactory;
 
 
 /**
  * A pool of ByteBuffers kept under a given memory limit. This class is fairly specific to the needs of the producer. In
  * particular it has the following properties:
  * <ol>
- * <li>There is a special "poolable size" and buffers of this size are kept in a free list and recycled
+ * <li>There is a special "poolable size" and buffers of this size are kept in a free list and recycled. Larger
+ * buffers are rounded up to a size class (the poolable size times a power of two, up to the total memory) with its
+ * own free list, so that they are recycled as well
+ * <li>It can hand out direct buffers instead of heap buffers, in which case direct buffers leaving the pool are
+ * released explicitly rather than when they are garbage collected
  * <li>It is fair. That is all memory is given to the longest waiting thread until it has sufficient memory. This
  * prevents starvation or deadlock when a thread asks for a large chunk of memory and needs to block until multiple
  * buffers are deallocated.
@@ -41,15 +52,45 @@ import org.apache.bi_kafka.common.utils.Time;
  */
 public final class BufferPool {
 
+    private static final Logger log = LoggerFactory.getLogger(BufferPool.class);
+
     private final long totalMemory;
     private final int poolableSize;
+    private final boolean direct;
     private final ReentrantLock lock;
-    private final org.apache.bi_kafka.common.utils.Deque<ByteBuffer> free;
+    // the buffer size of each size class, the first one being the poolable size
+    private final int[] sizeClasses;
+    // the free list of each size class
+    private final org.apache.bi_kafka.common.utils.Deque<ByteBuffer>[] free;
     private final org.apache.bi_kafka.common.utils.Deque<Condition> waiters;
     private long availableMemory;
+    // the memory held by the free lists
+    private long pooledMemory;
     private final Metrics metrics;
     private final Time time;
     private final Sensor waitTime;
+    private final Sensor[] hits;
+    private final Sensor[] misses;
+
+    // the cleaner of direct buffers, null if the JVM does not expose it
+    private static final Method CLEANER_METHOD;
+    private static final Method CLEAN_METHOD;
+
+    static {
+        Method cleanerMethod = null;
+        Method cleanMethod = null;
+        try {
+            cleanerMethod = ByteBuffer.allocateDirect(1).getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            cleanMethod = cleanerMethod.getReturnType().getMethod("clean");
+            cleanMethod.setAccessible(true);
+        } catch (Exception e) {
+            cleanerMethod = null;
+            cleanMethod = null;
+        }
+        CLEANER_METHOD = cleanerMethod;
+        CLEAN_METHOD = cleanMethod;
+    }
 
     /**
      * Create a new buffer pool
@@ -61,12 +102,37 @@ public final class BufferPool {
      * @param metricGrpName logical group name for metrics
      */
     public BufferPool(long memory, int poolableSize, Metrics metrics, Time time, String metricGrpName) {
+        this(memory, poolableSize, false, metrics, time, metricGrpName);
+    }
+
+    /**
+     * Create a new buffer pool
+     *
+     * @param memory The maximum amount of memory that this buffer pool can allocate
+     * @param poolableSize The buffer size to cache in the free list rather than deallocating
+     * @param direct Whether to allocate direct buffers rather than heap buffers
+     * @param metrics instance of Metrics
+     * @param time time instance
+     * @param metricGrpName logical group name for metrics
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(long memory, int poolableSize, boolean direct, Metrics metrics, Time time, String metricGrpName) {
         this.poolableSize = poolableSize;
+        this.direct = direct;
         this.lock = new ReentrantLock();
-        this.free = new org.apache.bi_kafka.common.utils.ArrayDeque<ByteBuffer>();
+        List<Integer> sizes = new ArrayList<Integer>();
+        for (long size = poolableSize; size <= memory && size <= Integer.MAX_VALUE; size *= 2)
+            sizes.add((int) size);
+        this.sizeClasses = new int[sizes.size()];
+        this.free = new org.apache.bi_kafka.common.utils.Deque[sizes.size()];
+        for (int i = 0; i < sizeClasses.length; i++) {
+            this.sizeClasses[i] = sizes.get(i);
+            this.free[i] = new org.apache.bi_kafka.common.utils.ArrayDeque<ByteBuffer>();
+        }
         this.waiters = new org.apache.bi_kafka.common.utils.ArrayDeque<Condition>();
         this.totalMemory = memory;
         this.availableMemory = memory;
+        this.pooledMemory = 0;
         this.metrics = metrics;
         this.time = time;
         this.waitTime = this.metrics.sensor("bufferpool-wait-time");
@@ -74,6 +140,19 @@ public final class BufferPool {
                                                    metricGrpName,
                                                    "The fraction of time an appender waits for space allocation.");
         this.waitTime.add(metricName, new Rate(TimeUnit.NANOSECONDS));
+        this.hits = new Sensor[sizeClasses.length];
+        this.misses = new Sensor[sizeClasses.length];
+        for (int i = 0; i < sizeClasses.length; i++) {
+            Map<String, String> tags = Collections.singletonMap("size", String.valueOf(sizeClasses[i]));
+            this.hits[i] = this.metrics.sensor("bufferpool-hits-" + sizeClasses[i]);
+            metricName = metrics.metricName("bufferpool-hit-rate", metricGrpName,
+                    "The average per-second number of allocations of this size class served from its free list.", tags);
+            this.hits[i].add(metricName, new Rate());
+            this.misses[i] = this.metrics.sensor("bufferpool-misses-" + sizeClasses[i]);
+            metricName = metrics.metricName("bufferpool-miss-rate", metricGrpName,
+                    "The average per-second number of allocations of this size class that had to allocate a new buffer.", tags);
+            this.misses[i].add(metricName, new Rate());
+        }
     }
 
     /**
@@ -82,7 +161,7 @@ public final class BufferPool {
      * 
      * @param size The buffer size to allocate in bytes
      * @param maxTimeToBlockMs The maximum time in milliseconds to block for buffer memory to be available
-     * @return The buffer
+     * @return The buffer, whose capacity is the size rounded up to its size class if it has one
      * @throws InterruptedException If the thread is interrupted while blocked
      * @throws IllegalArgumentException if size is larger than the total memory controlled by the pool (and hence we would block
      *         forever)
@@ -94,22 +173,31 @@ public final class BufferPool {
                                                + this.totalMemory
                                                + " on memory allocations.");
 
+        // round the size up to its size class, if any
+        int sizeClass = sizeClass(size);
+        if (sizeClass >= 0)
+            size = this.sizeClasses[sizeClass];
+
         this.lock.lock();
         try {
             // check if we have a free buffer of the right size pooled
-            if (size == poolableSize && !this.free.isEmpty())
-                return this.free.pollFirst();
+            if (sizeClass >= 0) {
+                if (!this.free[sizeClass].isEmpty()) {
+                    this.hits[sizeClass].record();
+                    return pollFree(sizeClass);
+                }
+                this.misses[sizeClass].record();
+            }
 
             // now check if the request is immediately satisfiable with the
             // memory on hand or if we need to block
-            int freeListSize = this.free.size() * this.poolableSize;
-            if (this.availableMemory + freeListSize >= size) {
+            if (this.availableMemory + this.pooledMemory >= size) {
                 // we have enough unallocated or pooled memory to immediately
                 // satisfy the request
                 freeUp(size);
                 this.availableMemory -= size;
                 lock.unlock();
-                return ByteBuffer.allocate(size);
+                return allocateBuffer(size);
             } else {
                 // we are out of memory and will have to block
                 int accumulated = 0;
@@ -142,9 +230,9 @@ public final class BufferPool {
                     remainingTimeToBlockNs -= timeNs;
                     // check if we can satisfy this request from the free list,
                     // otherwise allocate memory
-                    if (accumulated == 0 && size == this.poolableSize && !this.free.isEmpty()) {
+                    if (accumulated == 0 && sizeClass >= 0 && !this.free[sizeClass].isEmpty()) {
                         // just grab a buffer from the free list
-                        buffer = this.free.pollFirst();
+                        buffer = pollFree(sizeClass);
                         accumulated = size;
                     } else {
                         // we'll need to allocate memory, but we may only get
@@ -164,7 +252,7 @@ public final class BufferPool {
 
                 // signal any additional waiters if there is more memory left
                 // over for them
-                if (this.availableMemory > 0 || !this.free.isEmpty()) {
+                if (this.availableMemory > 0 || this.pooledMemory > 0) {
                     if (!this.waiters.isEmpty())
                         this.waiters.peekFirst().signal();
                 }
@@ -172,7 +260,7 @@ public final class BufferPool {
                 // unlock and return the buffer
                 lock.unlock();
                 if (buffer == null)
-                    return ByteBuffer.allocate(size);
+                    return allocateBuffer(size);
                 else
                     return buffer;
             }
@@ -182,29 +270,130 @@ public final class BufferPool {
         }
     }
 
+    /**
+     * Allocate a buffer of the given size if the memory is available right away, ahead of the threads waiting for
+     * memory. This is used by the sender to read spilled batches back, which must make progress for any memory to be
+     * freed.
+     *
+     * @param size The buffer size to allocate in bytes
+     * @return The buffer, whose capacity is the size rounded up to its size class if it has one, or null if there is
+     *         not enough memory available
+     */
+    public ByteBuffer tryAllocate(int size) {
+        int sizeClass = sizeClass(size);
+        if (sizeClass >= 0)
+            size = this.sizeClasses[sizeClass];
+        this.lock.lock();
+        try {
+            if (sizeClass >= 0 && !this.free[sizeClass].isEmpty()) {
+                this.hits[sizeClass].record();
+                return pollFree(sizeClass);
+            }
+            if (this.availableMemory + this.pooledMemory < size)
+                return null;
+            if (sizeClass >= 0)
+                this.misses[sizeClass].record();
+            freeUp(size);
+            this.availableMemory -= size;
+        } finally {
+            lock.unlock();
+        }
+        return allocateBuffer(size);
+    }
+
+    /**
+     * Reserve memory without allocating a buffer for it, if it is available right away
+     *
+     * @param size The number of bytes to reserve
+     * @return Whether the memory was reserved, in which case it must be returned with {@link #unreserve(int)}
+     */
+    public boolean tryReserve(int size) {
+        this.lock.lock();
+        try {
+            if (this.availableMemory + this.pooledMemory < size)
+                return false;
+            freeUp(size);
+            this.availableMemory -= size;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return memory reserved with {@link #tryReserve(int)}
+     */
+    public void unreserve(int size) {
+        lock.lock();
+        try {
+            this.availableMemory += size;
+            Condition moreMem = this.waiters.peekFirst();
+            if (moreMem != null)
+                moreMem.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Attempt to ensure we have at least the requested number of bytes of memory for allocation by deallocating pooled
      * buffers (if needed)
      */
     private void freeUp(int size) {
-        while (!this.free.isEmpty() && this.availableMemory < size)
-            this.availableMemory += this.free.pollLast().capacity();
+        // release the largest buffers first
+        for (int i = this.free.length - 1; i >= 0 && this.availableMemory < size; i--) {
+            while (!this.free[i].isEmpty() && this.availableMemory < size) {
+                ByteBuffer buffer = this.free[i].pollLast();
+                int capacity = buffer.capacity();
+                release(buffer);
+                this.pooledMemory -= capacity;
+                this.availableMemory += capacity;
+            }
+        }
+    }
+
+    private ByteBuffer allocateBuffer(int size) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    private ByteBuffer pollFree(int sizeClass) {
+        ByteBuffer buffer = this.free[sizeClass].pollFirst();
+        this.pooledMemory -= buffer.capacity();
+        return buffer;
     }
 
     /**
-     * Return buffers to the pool. If they are of the poolable size add them to the free list, otherwise just mark the
-     * memory as free.
+     * The index of the smallest size class fitting the given size, or -1 if the size is below the poolable size or
+     * above the largest size class
+     */
+    private int sizeClass(int size) {
+        if (size < this.poolableSize)
+            return -1;
+        for (int i = 0; i < this.sizeClasses.length; i++) {
+            if (size <= this.sizeClasses[i])
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Return buffers to the pool. If they are of the size of a size class add them to its free list, otherwise just mark
+     * the memory as free.
      * 
      * @param buffer The buffer to return
      * @param size The size of the buffer to mark as deallocated, note that this may be smaller than buffer.capacity
      *             since the buffer may re-allocate itself during in-place compression
      */
     public void deallocate(ByteBuffer buffer, int size) {
+        boolean pooled = false;
         lock.lock();
         try {
-            if (size == this.poolableSize && size == buffer.capacity()) {
+            int sizeClass = sizeClass(size);
+            if (sizeClass >= 0 && size == this.sizeClasses[sizeClass] && size == buffer.capacity()) {
                 buffer.clear();
-                this.free.add(buffer);
+                this.free[sizeClass].add(buffer);
+                this.pooledMemory += size;
+                pooled = true;
             } else {
                 this.availableMemory += size;
             }
@@ -214,6 +403,24 @@ public final class BufferPool {
         } finally {
             lock.unlock();
         }
+        if (!pooled)
+            release(buffer);
+    }
+
+    /**
+     * Free the native memory of a direct buffer which is no longer used rather than waiting for it to be garbage
+     * collected. Heap buffers are left to the garbage collector.
+     */
+    private static void release(ByteBuffer buffer) {
+        if (!buffer.isDirect() || CLEANER_METHOD == null)
+            return;
+        try {
+            Object cleaner = CLEANER_METHOD.invoke(buffer);
+            if (cleaner != null)
+                CLEAN_METHOD.invoke(cleaner);
+        } catch (Exception e) {
+            log.debug("Failed to release direct buffer, leaving it to the garbage collector", e);
+        }
     }
 
     public void deallocate(ByteBuffer buffer) {
@@ -226,7 +433,7 @@ public final class BufferPool {
     public long availableMemory() {
         lock.lock();
         try {
-            return this.availableMemory + this.free.size() * this.poolableSize;
+            return this.availableMemory + this.pooledMemory;
         } finally {
             lock.unlock();
         }
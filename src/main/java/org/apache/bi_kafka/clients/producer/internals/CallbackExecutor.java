@@ -0,0 +1,201 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.bi_kafka.clients.producer.internals;
+
+import org.apache.bi_kafka.common.MetricName;
+import org.apache.bi_kafka.common.metrics.Measurable;
+import org.apache.bi_kafka.common.metrics.MetricConfig;
+import org.apache.bi_kafka.common.metrics.Metrics;
+import org.apache.bi_kafka.common.metrics.Sensor;
+import org.apache.bi_kafka.common.metrics.stats.Avg;
+import org.apache.bi_kafka.common.metrics.stats.Max;
+import org.apache.bi_kafka.common.utils.KafkaThread;
+import org.apache.bi_kafka.common.utils.Time;
+import org.apache.bi_kafka.common.utils.Utils;
+import org.bi_slf4j.Logger;
+import org.bi_slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the callbacks of completed batches on a fixed number of threads instead of the I/O thread, so that a slow
+ * callback does not hold up the network I/O of every broker.
+ * <p>
+ * Each partition is assigned to one thread, which runs the batches of the partition in the order they were completed,
+ * so the callbacks of a partition still run in offset order. Every thread has a bounded queue of completed batches.
+ * When it is full the I/O thread blocks until there is room, which bounds the memory held by completed batches and
+ * slows down the producer to the pace of the callbacks.
+ * <p>
+ * The produce future of a batch is completed once its callbacks have run, as it is when they run on the I/O thread.
+ */
+public final class CallbackExecutor {
+
+    private static final Logger log = LoggerFactory.getLogger(CallbackExecutor.class);
+
+    private static final long POLL_INTERVAL_MS = 100L;
+
+    private final List<BlockingQueue<RecordBatch>> queues;
+    private final List<Thread> threads;
+    // the batches handed to the executor whose callbacks have not run yet, awaited by a flush
+    private final ConcurrentMap<RecordBatch, Boolean> pending;
+    private final Sensor callbackTimeSensor;
+    private final Time time;
+    private volatile boolean closed;
+
+    /**
+     * Create and start the callback threads
+     *
+     * @param clientId The client id, appended to the name of the threads
+     * @param numThreads The number of callback threads
+     * @param queueSize The maximum number of batches waiting for their callbacks on each thread
+     * @param metrics The metrics
+     * @param time The time instance to use
+     */
+    public CallbackExecutor(String clientId, int numThreads, int queueSize, Metrics metrics, Time time) {
+        if (numThreads <= 0)
+            throw new IllegalArgumentException("The number of callback threads must be positive: " + numThreads);
+        this.queues = new ArrayList<BlockingQueue<RecordBatch>>(numThreads);
+        this.threads = new ArrayList<Thread>(numThreads);
+        this.pending = new ConcurrentHashMap<RecordBatch, Boolean>();
+        this.time = time;
+        this.closed = false;
+        String metricGrpName = "producer-metrics";
+        this.callbackTimeSensor = registerMetrics(metrics, metricGrpName);
+        for (int i = 0; i < numThreads; i++) {
+            final BlockingQueue<RecordBatch> queue = new ArrayBlockingQueue<RecordBatch>(queueSize);
+            queues.add(queue);
+            String name = "kafka-producer-callback-thread-" + i + (clientId.length() > 0 ? " | " + clientId : "");
+            Thread thread = new KafkaThread(name, new Runnable() {
+                public void run() {
+                    runCallbacks(queue);
+                }
+            }, true);
+            threads.add(thread);
+        }
+        for (Thread thread : threads)
+            thread.start();
+    }
+
+    private Sensor registerMetrics(Metrics metrics, String metricGrpName) {
+        MetricName metricName = metrics.metricName("callback-queue-size", metricGrpName, "The number of completed batches waiting for their callbacks to run");
+        Measurable queueSize = new Measurable() {
+            public double measure(MetricConfig config, long now) {
+                int size = 0;
+                for (BlockingQueue<RecordBatch> queue : queues)
+                    size += queue.size();
+                return size;
+            }
+        };
+        metrics.addMetric(metricName, queueSize);
+        Sensor sensor = metrics.sensor("callback-time");
+        metricName = metrics.metricName("callback-time-avg", metricGrpName, "The average time in ms spent running the callbacks of a batch");
+        sensor.add(metricName, new Avg());
+        metricName = metrics.metricName("callback-time-max", metricGrpName, "The maximum time in ms spent running the callbacks of a batch");
+        sensor.add(metricName, new Max());
+        return sensor;
+    }
+
+    /**
+     * Run the callbacks of the completed batch on the thread of its partition, blocking while the queue of the thread
+     * is full. The callbacks run on the calling thread once the executor is closed or if it is interrupted.
+     */
+    void execute(RecordBatch batch) {
+        if (closed) {
+            batch.fireCallbacks();
+            return;
+        }
+        BlockingQueue<RecordBatch> queue = queues.get(Utils.toPositive(batch.topicPartition.hashCode()) % queues.size());
+        pending.put(batch, Boolean.TRUE);
+        try {
+            queue.put(batch);
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while queueing the callbacks of a batch of topic-partition {}, running them now", batch.topicPartition);
+            Thread.currentThread().interrupt();
+            pending.remove(batch);
+            batch.fireCallbacks();
+            return;
+        }
+        // the thread may have found its queue empty and stopped since the check above
+        if (closed && queue.remove(batch)) {
+            pending.remove(batch);
+            batch.fireCallbacks();
+        }
+    }
+
+    private void runCallbacks(BlockingQueue<RecordBatch> queue) {
+        // keep running the queued batches after a close, until the queue is drained
+        while (!closed || !queue.isEmpty()) {
+            RecordBatch batch;
+            try {
+                batch = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (batch == null)
+                continue;
+            long startNs = time.nanoseconds();
+            try {
+                batch.fireCallbacks();
+            } catch (Exception e) {
+                log.error("Error running the callbacks of a batch of topic-partition '{}'", batch.topicPartition, e);
+            } finally {
+                pending.remove(batch);
+            }
+            callbackTimeSensor.record((time.nanoseconds() - startNs) / 1000000.0);
+        }
+    }
+
+    /**
+     * The batches whose callbacks have not run yet
+     */
+    List<RecordBatch> pending() {
+        return new ArrayList<RecordBatch>(pending.keySet());
+    }
+
+    /**
+     * Whether the given thread is one of the callback threads
+     */
+    public boolean isCallbackThread(Thread thread) {
+        return threads.contains(thread);
+    }
+
+    /**
+     * Stop accepting batches and wait for the callback threads to run the batches already queued
+     *
+     * @param timeoutMs The maximum time to wait
+     * @return true if all the queued callbacks ran
+     */
+    public boolean close(long timeoutMs) throws InterruptedException {
+        this.closed = true;
+        long deadlineMs = time.milliseconds() + timeoutMs;
+        for (Thread thread : threads) {
+            if (thread == Thread.currentThread())
+                continue;
+            long remainingMs = deadlineMs - time.milliseconds();
+            if (remainingMs <= 0)
+                break;
+            thread.join(remainingMs);
+        }
+        boolean drained = pending.isEmpty();
+        if (!drained)
+            log.warn("The callbacks of {} batch(es) have not run within the close timeout of {} ms", pending.size(), timeoutMs);
+        return drained;
+    }
+
+}
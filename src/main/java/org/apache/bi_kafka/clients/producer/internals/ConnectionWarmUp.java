@@ -0,0 +1,79 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.bi_kafka.clients.producer.internals;
+
+import org.apache.bi_kafka.common.Node;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The nodes the senders connect to ahead of their first produce request, which a thread waits to be ready
+ */
+final class ConnectionWarmUp {
+
+    private final Set<Node> pending;
+    private boolean cancelled;
+
+    ConnectionWarmUp(Collection<Node> nodes) {
+        this.pending = new HashSet<Node>(nodes);
+        this.cancelled = false;
+    }
+
+    /**
+     * The nodes which are not ready yet
+     */
+    synchronized List<Node> pending() {
+        return new ArrayList<Node>(pending);
+    }
+
+    /**
+     * Record that the sender of the node can send requests to it
+     */
+    synchronized void ready(Node node) {
+        if (pending.remove(node) && pending.isEmpty())
+            notifyAll();
+    }
+
+    /**
+     * Whether the senders can stop connecting, as all the nodes are ready or the waiting thread gave up
+     */
+    synchronized boolean isDone() {
+        return cancelled || pending.isEmpty();
+    }
+
+    synchronized void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Wait until all the nodes are ready
+     *
+     * @return false if some were not ready within the timeout
+     */
+    synchronized boolean await(long timeoutMs) throws InterruptedException {
+        long deadlineMs = System.currentTimeMillis() + timeoutMs;
+        if (deadlineMs < 0)
+            deadlineMs = Long.MAX_VALUE;
+        while (!pending.isEmpty()) {
+            long remainingMs = deadlineMs - System.currentTimeMillis();
+            if (remainingMs <= 0)
+                return false;
+            wait(remainingMs);
+        }
+        return true;
+    }
+}
@@ -23,9 +23,14 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.bi_kafka.clients.producer.Partitioner;
+import org.apache.bi_kafka.clients.producer.BatchAwarePartitioner;
+import org.apache.bi_kafka.clients.producer.LoadAwarePartitioner;
+import org.apache.bi_kafka.clients.producer.ProducerConfig;
+import org.apache.bi_kafka.clients.producer.ProducerLoad;
 import org.apache.bi_kafka.common.Cluster;
+import org.apache.bi_kafka.common.Node;
 import org.apache.bi_kafka.common.PartitionInfo;
+import org.apache.bi_kafka.common.TopicPartition;
 import org.apache.bi_kafka.common.utils.Utils;
 
 /**
@@ -33,13 +38,43 @@ import org.apache.bi_kafka.common.utils.Utils;
  * <ul>
  * <li>If a partition is specified in the record, use it
  * <li>If no partition is specified but a key is present choose a partition based on a hash of the key
- * <li>If no partition or key is present choose a partition in a round-robin fashion
+ * <li>If no partition or key is present choose a partition in a round-robin fashion, or with
+ * <code>partitioner.keyless.mode=sticky</code> stick to one partition of the topic until a new batch is needed for it
+ * and then switch to another available partition. With <code>partitioner.keyless.mode=load-aware</code> the next
+ * partition is chosen at random weighted by the load of the producer: partitions whose leader is slow, i.e. has a much
+ * higher request latency or more in-flight requests than the other leaders of the topic, and partitions with more
+ * queued bytes are picked less often
  */
-public class DefaultPartitioner implements Partitioner {
+public class DefaultPartitioner implements BatchAwarePartitioner, LoadAwarePartitioner {
+
+    // a leader is slow once its load is this many times the one of the least loaded leader of the topic...
+    private static final double SLOW_NODE_ENTER_RATIO = 2.0;
+    // ...and healthy again once its load is back under this ratio, so a leader close to a threshold does not flap
+    private static final double SLOW_NODE_EXIT_RATIO = 1.25;
+    // the weight of the partitions of a slow leader, which still get some records so its recovery is noticed
+    private static final double SLOW_NODE_WEIGHT = 0.1;
 
     private final ConcurrentMap<String, AtomicInteger> topicCounterMap = new ConcurrentHashMap<String, AtomicInteger>();
+    // the current partition of keyless records per topic in sticky mode
+    private final ConcurrentMap<String, Integer> stickyPartitions = new ConcurrentHashMap<String, Integer>();
+    private final Random random = new Random();
+    // the leaders currently considered slow in load-aware mode
+    private final ConcurrentMap<Integer, Boolean> slowNodes = new ConcurrentHashMap<Integer, Boolean>();
+    private boolean sticky = false;
+    private boolean loadAware = false;
+    private volatile ProducerLoad load;
+
+    public void configure(Map<String, ?> configs) {
+        Object mode = configs.get(ProducerConfig.PARTITIONER_KEYLESS_MODE_CONFIG);
+        String keylessMode = mode == null ? "" : mode.toString().trim();
+        this.loadAware = "load-aware".equals(keylessMode);
+        // load-aware mode sticks to a partition like sticky mode, only the choice of the next partition differs
+        this.sticky = "sticky".equals(keylessMode) || this.loadAware;
+    }
 
-    public void configure(Map<String, ?> configs) {}
+    public void setProducerLoad(ProducerLoad load) {
+        this.load = load;
+    }
 
     /**
      * Compute the partition for the given record.
@@ -54,7 +89,9 @@ public class DefaultPartitioner implements Partitioner {
     public int partition(String topic, Object key, byte[] keyBytes, Object value, byte[] valueBytes, Cluster cluster) {
         List<PartitionInfo> partitions = cluster.partitionsForTopic(topic);
         int numPartitions = partitions.size();
-        if (keyBytes == null) {
+        if (keyBytes == null && sticky) {
+            return stickyPartition(topic, cluster);
+        } else if (keyBytes == null) {
             int nextValue = nextValue(topic);
             List<PartitionInfo> availablePartitions = cluster.availablePartitionsForTopic(topic);
             if (availablePartitions.size() > 0) {
@@ -82,6 +119,122 @@ public class DefaultPartitioner implements Partitioner {
         return counter.getAndIncrement();
     }
 
+    /**
+     * Switch the sticky partition of the topic if the partition which needs a new batch is the current one. Appenders
+     * racing on the same full batch all call this, only the first one moves the topic to another partition.
+     */
+    public void onNewBatch(String topic, Cluster cluster, int prevPartition) {
+        if (!sticky)
+            return;
+        Integer current = stickyPartitions.get(topic);
+        if (current == null) {
+            stickyPartitions.putIfAbsent(topic, choosePartition(topic, cluster, -1));
+        } else if (current == prevPartition) {
+            stickyPartitions.replace(topic, current, choosePartition(topic, cluster, prevPartition));
+        }
+    }
+
+    private int stickyPartition(String topic, Cluster cluster) {
+        Integer partition = stickyPartitions.get(topic);
+        if (partition != null)
+            return partition;
+        Integer chosen = choosePartition(topic, cluster, -1);
+        Integer current = stickyPartitions.putIfAbsent(topic, chosen);
+        return current != null ? current : chosen;
+    }
+
+    /**
+     * Pick a random available partition of the topic other than the given one if there is such a partition
+     */
+    private int choosePartition(String topic, Cluster cluster, int exclude) {
+        List<PartitionInfo> availablePartitions = cluster.availablePartitionsForTopic(topic);
+        if (availablePartitions.isEmpty()) {
+            // no partitions are available, give a non-available partition
+            return Utils.toPositive(random.nextInt()) % cluster.partitionsForTopic(topic).size();
+        } else if (availablePartitions.size() == 1) {
+            return availablePartitions.get(0).partition();
+        } else if (loadAware && load != null) {
+            return chooseByLoad(availablePartitions, load, exclude);
+        }
+        int partition;
+        do {
+            partition = availablePartitions.get(random.nextInt(availablePartitions.size())).partition();
+        } while (partition == exclude);
+        return partition;
+    }
+
+    /**
+     * Pick a random partition other than the given one, weighted by the load of its leader and its queued bytes
+     */
+    private int chooseByLoad(List<PartitionInfo> partitions, ProducerLoad load, int exclude) {
+        int count = partitions.size();
+        double[] latencies = new double[count];
+        int[] inFlights = new int[count];
+        double minLatency = Double.MAX_VALUE;
+        int minInFlight = Integer.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            Node leader = partitions.get(i).leader();
+            latencies[i] = load.requestLatencyMs(leader);
+            inFlights[i] = load.inFlightRequests(leader);
+            if (latencies[i] >= 0)
+                minLatency = Math.min(minLatency, latencies[i]);
+            minInFlight = Math.min(minInFlight, inFlights[i]);
+        }
+
+        long[] queued = new long[count];
+        long totalQueued = 0;
+        for (int i = 0; i < count; i++) {
+            PartitionInfo part = partitions.get(i);
+            queued[i] = load.queuedBytes(new TopicPartition(part.topic(), part.partition()));
+            totalQueued += queued[i];
+        }
+        double meanQueued = (double) totalQueued / count;
+
+        double[] weights = new double[count];
+        double totalWeight = 0;
+        for (int i = 0; i < count; i++) {
+            PartitionInfo part = partitions.get(i);
+            if (part.partition() == exclude)
+                continue;
+            // a leader without a completed request yet is as fast as the fastest one
+            double latencyRatio = latencies[i] < 0 ? 1.0 : (latencies[i] + 1) / (minLatency + 1);
+            double inFlightRatio = (inFlights[i] + 1.0) / (minInFlight + 1.0);
+            boolean slow = isSlow(part.leader(), latencyRatio * inFlightRatio);
+            // a partition with the mean queued bytes gets half the weight of an empty one
+            weights[i] = (slow ? SLOW_NODE_WEIGHT : 1.0) * (meanQueued + 1) / (meanQueued + 1 + queued[i]);
+            totalWeight += weights[i];
+        }
+
+        double target = random.nextDouble() * totalWeight;
+        int last = -1;
+        for (int i = 0; i < count; i++) {
+            if (weights[i] <= 0)
+                continue;
+            last = i;
+            target -= weights[i];
+            if (target < 0)
+                break;
+        }
+        return partitions.get(last).partition();
+    }
+
+    /**
+     * Update the slow state of the leader given its load relative to the least loaded leader
+     */
+    private boolean isSlow(Node leader, double loadRatio) {
+        Integer id = leader.id();
+        if (slowNodes.containsKey(id)) {
+            if (loadRatio > SLOW_NODE_EXIT_RATIO)
+                return true;
+            slowNodes.remove(id);
+            return false;
+        } else if (loadRatio >= SLOW_NODE_ENTER_RATIO) {
+            slowNodes.put(id, Boolean.TRUE);
+            return true;
+        }
+        return false;
+    }
+
     public void close() {}
 
 }
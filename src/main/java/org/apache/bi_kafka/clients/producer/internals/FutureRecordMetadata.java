@@ -20,25 +20,20 @@ import java.util.concurrent.TimeoutException;
 import org.apache.bi_kafka.clients.producer.RecordMetadata;
 
 /**
- * The future result of a record send
+ * The future result of a record send. It only refers to the position of the record in its batch, the metadata of the
+ * record is kept by the {@link RecordCompletions} of the batch. If the batch is split after being rejected as too
+ * large, the future follows the future of the record in the batch it was moved to.
  */
 public final class FutureRecordMetadata implements Future<RecordMetadata> {
 
     private final ProduceRequestResult result;
-    private final long relativeOffset;
-    private final long createTimestamp;
-    private final long checksum;
-    private final int serializedKeySize;
-    private final int serializedValueSize;
+    private final RecordCompletions completions;
+    private final int index;
 
-    public FutureRecordMetadata(ProduceRequestResult result, long relativeOffset, long createTimestamp,
-                                long checksum, int serializedKeySize, int serializedValueSize) {
+    public FutureRecordMetadata(ProduceRequestResult result, RecordCompletions completions, int index) {
         this.result = result;
-        this.relativeOffset = relativeOffset;
-        this.createTimestamp = createTimestamp;
-        this.checksum = checksum;
-        this.serializedKeySize = serializedKeySize;
-        this.serializedValueSize = serializedValueSize;
+        this.completions = completions;
+        this.index = index;
     }
 
     public boolean cancel(boolean interrupt) {
@@ -51,13 +46,20 @@ public final class FutureRecordMetadata implements Future<RecordMetadata> {
 
     public RecordMetadata get() throws InterruptedException, ExecutionException {
         this.result.await();
+        FutureRecordMetadata chained = completions.chained(index);
+        if (chained != null)
+            return chained.get();
         return valueOrError();
     }
 
     public RecordMetadata get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long startNs = System.nanoTime();
         boolean occurred = this.result.await(timeout, unit);
         if (!occurred)
             throw new TimeoutException("Timeout after waiting for " + TimeUnit.MILLISECONDS.convert(timeout, unit) + " ms.");
+        FutureRecordMetadata chained = completions.chained(index);
+        if (chained != null)
+            return chained.get(Math.max(0L, unit.toNanos(timeout) - (System.nanoTime() - startNs)), TimeUnit.NANOSECONDS);
         return valueOrError();
     }
 
@@ -69,16 +71,14 @@ public final class FutureRecordMetadata implements Future<RecordMetadata> {
     }
     
     RecordMetadata value() {
-        return new RecordMetadata(result.topicPartition(), this.result.baseOffset(), this.relativeOffset,
-                                  timestamp(), this.checksum, this.serializedKeySize, this.serializedValueSize);
-    }
-
-    private long timestamp() {
-        return result.hasLogAppendTime() ? result.logAppendTime() : createTimestamp;
+        return completions.metadata(result, index);
     }
 
     public boolean isDone() {
-        return this.result.completed();
+        if (!this.result.completed())
+            return false;
+        FutureRecordMetadata chained = completions.chained(index);
+        return chained == null || chained.isDone();
     }
 
 }
@@ -0,0 +1,480 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.bi_kafka.clients.producer.internals;
+
+import org.apache.bi_kafka.clients.producer.BatchAwarePartitioner;
+import org.apache.bi_kafka.clients.producer.BufferExhaustedException;
+import org.apache.bi_kafka.clients.producer.Callback;
+import org.apache.bi_kafka.clients.producer.Partitioner;
+import org.apache.bi_kafka.clients.producer.ProducerRecord;
+import org.apache.bi_kafka.clients.producer.RecordMetadata;
+import org.apache.bi_kafka.common.Cluster;
+import org.apache.bi_kafka.common.KafkaException;
+import org.apache.bi_kafka.common.MetricName;
+import org.apache.bi_kafka.common.TopicPartition;
+import org.apache.bi_kafka.common.errors.TimeoutException;
+import org.apache.bi_kafka.common.errors.TopicAuthorizationException;
+import org.apache.bi_kafka.common.metrics.Measurable;
+import org.apache.bi_kafka.common.metrics.MetricConfig;
+import org.apache.bi_kafka.common.metrics.Metrics;
+import org.apache.bi_kafka.common.metrics.Sensor;
+import org.apache.bi_kafka.common.metrics.stats.Rate;
+import org.apache.bi_kafka.common.utils.ArrayDeque;
+import org.apache.bi_kafka.common.utils.Deque;
+import org.apache.bi_kafka.common.utils.Time;
+import org.bi_slf4j.Logger;
+import org.bi_slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The records sent while the metadata of their topic is missing, so that the send does not block until the metadata
+ * is fetched. The serialized records are parked in a bounded queue per topic, with their size reserved in the buffer
+ * memory, until the sender updating the metadata finds the topic in the cluster, partitions them and appends them to
+ * the accumulator. A record which is not appended within the maximum blocking time fails through its callback, with
+ * the error a blocked send would have thrown.
+ * <p>
+ * Once a record of a topic is parked, the following records of the topic are parked as well until its queue is empty,
+ * so that the records are appended in the order they were sent.
+ */
+public final class MetadataWaitQueue<K, V> {
+
+    private static final Logger log = LoggerFactory.getLogger(MetadataWaitQueue.class);
+
+    private final RecordAccumulator accumulator;
+    private final Partitioner partitioner;
+    private final ProducerInterceptors<K, V> interceptors;
+    private final int maxRecordsPerTopic;
+    private final long maxWaitMs;
+    private final Time time;
+    private final Sensor expiredSensor;
+    private final Map<String, Deque<ParkedRecord<K, V>>> topics;
+    // the keys of the topics, read by the sends without the lock
+    private final ConcurrentMap<String, Boolean> parkedTopics;
+    // the records the sender took out of the queue of their topic and is appending to the accumulator
+    private final Map<String, List<ParkedRecord<K, V>>> appending;
+    private volatile int size;
+
+    /**
+     * @param accumulator The accumulator the records are appended to and their memory is reserved in
+     * @param partitioner The partitioner of the records without a partition
+     * @param interceptors The interceptors to notify when a record fails, may be null
+     * @param maxRecordsPerTopic The maximum number of records parked for a topic
+     * @param maxWaitMs The maximum time in ms a record waits to be appended
+     * @param metrics The metrics
+     * @param time The time instance to use
+     */
+    public MetadataWaitQueue(RecordAccumulator accumulator,
+                             Partitioner partitioner,
+                             ProducerInterceptors<K, V> interceptors,
+                             int maxRecordsPerTopic,
+                             long maxWaitMs,
+                             Metrics metrics,
+                             Time time) {
+        this.accumulator = accumulator;
+        this.partitioner = partitioner;
+        this.interceptors = interceptors;
+        this.maxRecordsPerTopic = maxRecordsPerTopic;
+        this.maxWaitMs = maxWaitMs;
+        this.time = time;
+        this.topics = new LinkedHashMap<String, Deque<ParkedRecord<K, V>>>();
+        this.parkedTopics = new ConcurrentHashMap<String, Boolean>();
+        this.appending = new HashMap<String, List<ParkedRecord<K, V>>>();
+        this.size = 0;
+
+        String metricGrpName = "producer-metrics";
+        MetricName metricName = metrics.metricName("metadata-wait-records", metricGrpName, "The number of records waiting for the metadata of their topic.");
+        metrics.addMetric(metricName, new Measurable() {
+            public double measure(MetricConfig config, long now) {
+                return size;
+            }
+        });
+        this.expiredSensor = metrics.sensor("metadata-wait-expired");
+        metricName = metrics.metricName("metadata-wait-expired-rate", metricGrpName, "The average per-second number of records failed because the metadata of their topic was not available in time.");
+        this.expiredSensor.add(metricName, new Rate());
+    }
+
+    /**
+     * Whether records of the topic are parked, in which case the records sent to it must be parked as well. A topic
+     * stays parked until its records taken by {@link #poll(Cluster, long)} are appended.
+     */
+    public boolean isParked(String topic) {
+        return parkedTopics.containsKey(topic);
+    }
+
+    /**
+     * Park a serialized record if the metadata of its topic is missing or records of its topic are already parked.
+     *
+     * @param record The record, used to partition it and to notify the interceptors
+     * @param key The serialized key
+     * @param value The serialized value
+     * @param timestamp The timestamp of the record
+     * @param sizeInBytes The size of the record in a batch, which is reserved in the buffer memory
+     * @param callback The callback of the record, may be null
+     * @param metadataReady Whether the metadata has the topic and the partition given with the record, if any
+     * @param waitedMs The time in ms the send already blocked for, which counts towards the maximum wait of the record
+     * @return The future of the parked record, or null if it is to be appended right away
+     * @throws BufferExhaustedException If the queue of the topic is full or the buffer memory is exhausted
+     */
+    public synchronized Future<RecordMetadata> park(ProducerRecord<K, V> record,
+                                                    byte[] key,
+                                                    byte[] value,
+                                                    long timestamp,
+                                                    int sizeInBytes,
+                                                    Callback callback,
+                                                    boolean metadataReady,
+                                                    long waitedMs) {
+        String topic = record.topic();
+        Deque<ParkedRecord<K, V>> queue = topics.get(topic);
+        if (queue == null) {
+            if (metadataReady)
+                return null;
+            queue = new ArrayDeque<ParkedRecord<K, V>>();
+            topics.put(topic, queue);
+            parkedTopics.put(topic, Boolean.TRUE);
+        } else if (queue.size() >= maxRecordsPerTopic) {
+            throw new BufferExhaustedException("There are already " + queue.size() + " records waiting for the metadata of topic " + topic + ".");
+        }
+        if (!accumulator.tryReserve(topic, sizeInBytes)) {
+            if (queue.isEmpty() && !appending.containsKey(topic))
+                remove(topic);
+            throw new BufferExhaustedException("Failed to reserve " + sizeInBytes + " bytes of buffer memory, or of the memory quota of topic " + topic + ", for a record waiting for its metadata.");
+        }
+        ParkedRecord<K, V> parked = new ParkedRecord<K, V>(record, key, value, timestamp, sizeInBytes, callback, time.milliseconds() - waitedMs);
+        queue.addLast(parked);
+        size++;
+        log.trace("Parked record {} until the metadata of topic {} is available", record, topic);
+        return parked.future;
+    }
+
+    /**
+     * Append the parked records of the topics the cluster has metadata for, and fail the records which waited too
+     * long. This is called by the sender updating the metadata. The records are taken out of their queue under the
+     * lock and appended outside of it, so that the sends checking whether their topic is parked do not wait for the
+     * appends.
+     *
+     * @return Whether any record was appended to the accumulator
+     */
+    public boolean poll(Cluster cluster, long now) {
+        if (size == 0)
+            return false;
+        boolean appended = false;
+        List<ParkedRecord<K, V>> failed = new ArrayList<ParkedRecord<K, V>>();
+        Map<String, List<ParkedRecord<K, V>>> ready = new LinkedHashMap<String, List<ParkedRecord<K, V>>>();
+        synchronized (this) {
+            for (Iterator<Map.Entry<String, Deque<ParkedRecord<K, V>>>> iter = topics.entrySet().iterator(); iter.hasNext(); ) {
+                Map.Entry<String, Deque<ParkedRecord<K, V>>> entry = iter.next();
+                String topic = entry.getKey();
+                Deque<ParkedRecord<K, V>> queue = entry.getValue();
+                if (cluster.unauthorizedTopics().contains(topic)) {
+                    RuntimeException e = new TopicAuthorizationException(topic);
+                    while (!queue.isEmpty())
+                        failed.add(queue.pollFirst().failed(null, e));
+                } else if (cluster.partitionCountForTopic(topic) != null) {
+                    // the topic stays parked until the records are appended, so that the records sent meanwhile are
+                    // parked behind them
+                    List<ParkedRecord<K, V>> records = new ArrayList<ParkedRecord<K, V>>(queue.size());
+                    while (!queue.isEmpty())
+                        records.add(queue.pollFirst());
+                    appending.put(topic, records);
+                    ready.put(topic, records);
+                    continue;
+                }
+                expire(queue, false, failed, now);
+                if (queue.isEmpty()) {
+                    iter.remove();
+                    parkedTopics.remove(topic);
+                }
+            }
+            size -= failed.size();
+        }
+
+        for (Map.Entry<String, List<ParkedRecord<K, V>>> entry : ready.entrySet()) {
+            String topic = entry.getKey();
+            List<ParkedRecord<K, V>> records = entry.getValue();
+            int partitions = cluster.partitionCountForTopic(topic);
+            int taken = 0;
+            while (taken < records.size()) {
+                ParkedRecord<K, V> record = records.get(taken);
+                if (record.record.partition() != null && record.record.partition() >= partitions) {
+                    failed.add(record.failed(null, new KafkaException(String.format(
+                            "Invalid partition given with record: %d is not in the range [0...%d).", record.record.partition(), partitions))));
+                } else if (append(record, cluster, failed)) {
+                    appended = true;
+                } else {
+                    break;
+                }
+                taken++;
+            }
+            synchronized (this) {
+                Deque<ParkedRecord<K, V>> queue = topics.get(topic);
+                // the records which could not be appended go back ahead of the records parked meanwhile
+                for (int i = records.size() - 1; i >= taken; i--)
+                    queue.addFirst(records.get(i));
+                appending.remove(topic);
+                int expired = expire(queue, true, failed, now);
+                if (queue.isEmpty())
+                    remove(topic);
+                size -= taken + expired;
+            }
+        }
+        complete(failed);
+        return appended;
+    }
+
+    /**
+     * Fail the records of a queue which could not be appended in time, as a blocked send would have. The caller must
+     * hold the lock.
+     *
+     * @param metadataReady Whether the cluster has the metadata of the topic, in which case the records waited for
+     *        buffer memory
+     * @return The number of records failed
+     */
+    private int expire(Deque<ParkedRecord<K, V>> queue, boolean metadataReady, List<ParkedRecord<K, V>> failed, long now) {
+        int expired = 0;
+        while (!queue.isEmpty() && now - queue.peekFirst().parkedMs >= maxWaitMs) {
+            String message = metadataReady ?
+                    "Failed to allocate memory within the configured max blocking time " + maxWaitMs + " ms." :
+                    "Failed to update metadata after " + maxWaitMs + " ms.";
+            failed.add(queue.pollFirst().failed(null, new TimeoutException(message)));
+            expiredSensor.record(1, now);
+            expired++;
+        }
+        return expired;
+    }
+
+    /**
+     * Remove the queue of a topic, whose records are not parked anymore. The caller must hold the lock.
+     */
+    private void remove(String topic) {
+        topics.remove(topic);
+        parkedTopics.remove(topic);
+    }
+
+    /**
+     * Append a parked record to the accumulator, without waiting for buffer memory
+     *
+     * @return false if the record is to be appended later, as there is not enough buffer memory available
+     */
+    private boolean append(ParkedRecord<K, V> record, Cluster cluster, List<ParkedRecord<K, V>> failed) {
+        String topic = record.record.topic();
+        int partition = record.record.partition() != null ? record.record.partition() :
+                partitioner.partition(topic, record.record.key(), record.key, record.record.value(), record.value, cluster);
+        TopicPartition tp = new TopicPartition(topic, partition);
+        // the reservation makes room for the record in the accumulator
+        if (record.reserved) {
+            accumulator.unreserve(record.record.topic(), record.sizeInBytes);
+            record.reserved = false;
+        }
+        try {
+            RecordAccumulator.RecordAppendResult result = accumulator.append(tp, record.timestamp, record.key, record.value, record.callback, 0L);
+            if (result.newBatchCreated && record.record.partition() == null && partitioner instanceof BatchAwarePartitioner)
+                ((BatchAwarePartitioner) partitioner).onNewBatch(topic, cluster, partition);
+            record.future.appended(result.future);
+            return true;
+        } catch (TimeoutException e) {
+            // no memory for a new batch yet, the record waits for the next poll
+            record.reserved = accumulator.tryReserve(topic, record.sizeInBytes);
+            return false;
+        } catch (InterruptedException e) {
+            // the sender does not wait for memory, it is only interrupted while closing
+            record.reserved = accumulator.tryReserve(topic, record.sizeInBytes);
+            return false;
+        } catch (RuntimeException e) {
+            failed.add(record.failed(tp, e));
+            // the record is removed from the queue once failed
+            return true;
+        }
+    }
+
+    /**
+     * The time in ms the next parked record expires at, or Long.MAX_VALUE if there is none
+     */
+    public synchronized long nextExpiryMs() {
+        long expiryMs = Long.MAX_VALUE;
+        for (Deque<ParkedRecord<K, V>> queue : topics.values()) {
+            ParkedRecord<K, V> first = queue.peekFirst();
+            if (first != null)
+                expiryMs = Math.min(expiryMs, first.parkedMs + maxWaitMs);
+        }
+        return expiryMs;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Wait until the records parked at the time of the call are appended or failed
+     *
+     * @return Whether they were within the timeout
+     */
+    public boolean awaitParked(long timeoutMs) throws InterruptedException {
+        List<ParkedFuture> futures = new ArrayList<ParkedFuture>();
+        synchronized (this) {
+            for (Deque<ParkedRecord<K, V>> queue : topics.values()) {
+                for (ParkedRecord<K, V> record : queue)
+                    futures.add(record.future);
+            }
+            for (List<ParkedRecord<K, V>> records : appending.values()) {
+                for (ParkedRecord<K, V> record : records)
+                    futures.add(record.future);
+            }
+        }
+        long deadlineMs = time.milliseconds() + timeoutMs;
+        if (deadlineMs < 0)
+            deadlineMs = Long.MAX_VALUE;
+        for (ParkedFuture future : futures) {
+            if (!future.await(Math.max(0, deadlineMs - time.milliseconds())))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Fail all the parked records, e.g. because the producer is closed
+     */
+    public void abort(RuntimeException e) {
+        List<ParkedRecord<K, V>> failed = new ArrayList<ParkedRecord<K, V>>();
+        synchronized (this) {
+            for (Deque<ParkedRecord<K, V>> queue : topics.values()) {
+                while (!queue.isEmpty())
+                    failed.add(queue.pollFirst().failed(null, e));
+            }
+            topics.clear();
+            parkedTopics.clear();
+            size = 0;
+        }
+        complete(failed);
+    }
+
+    /**
+     * Return the memory of failed records and run their callbacks, out of the lock as they may send records
+     */
+    private void complete(List<ParkedRecord<K, V>> failed) {
+        for (ParkedRecord<K, V> record : failed) {
+            if (record.reserved) {
+                accumulator.unreserve(record.record.topic(), record.sizeInBytes);
+                record.reserved = false;
+            }
+            log.debug("Failed record {} waiting for the metadata of its topic:", record.record, record.error);
+            if (record.callback != null) {
+                try {
+                    record.callback.onCompletion(null, record.error);
+                } catch (Exception e) {
+                    log.error("Error executing user-provided callback on message for topic-partition '{}'", record.record.topic(), e);
+                }
+            }
+            if (interceptors != null)
+                interceptors.onSendError(record.record, record.tp, record.error);
+            record.future.failed(record.error);
+        }
+    }
+
+    private static final class ParkedRecord<K, V> {
+        final ProducerRecord<K, V> record;
+        final byte[] key;
+        final byte[] value;
+        final long timestamp;
+        final int sizeInBytes;
+        final Callback callback;
+        final long parkedMs;
+        final ParkedFuture future;
+        // whether the size of the record is reserved in the buffer memory
+        boolean reserved;
+        TopicPartition tp;
+        Exception error;
+
+        ParkedRecord(ProducerRecord<K, V> record, byte[] key, byte[] value, long timestamp, int sizeInBytes,
+                     Callback callback, long parkedMs) {
+            this.record = record;
+            this.key = key;
+            this.value = value;
+            this.timestamp = timestamp;
+            this.sizeInBytes = sizeInBytes;
+            this.callback = callback;
+            this.parkedMs = parkedMs;
+            this.future = new ParkedFuture();
+            this.reserved = true;
+        }
+
+        ParkedRecord<K, V> failed(TopicPartition tp, Exception error) {
+            this.tp = tp;
+            this.error = error;
+            return this;
+        }
+    }
+
+    /**
+     * The future of a parked record, which completes with the future of the record once appended
+     */
+    private static final class ParkedFuture implements Future<RecordMetadata> {
+        private final CountDownLatch parked = new CountDownLatch(1);
+        private volatile Future<RecordMetadata> appended;
+        private volatile Exception error;
+
+        void appended(Future<RecordMetadata> future) {
+            this.appended = future;
+            parked.countDown();
+        }
+
+        void failed(Exception e) {
+            this.error = e;
+            parked.countDown();
+        }
+
+        boolean await(long timeoutMs) throws InterruptedException {
+            return parked.await(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        public boolean cancel(boolean interrupt) {
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+
+        public boolean isDone() {
+            return parked.getCount() == 0 && (error != null || appended.isDone());
+        }
+
+        public RecordMetadata get() throws InterruptedException, ExecutionException {
+            parked.await();
+            if (error != null)
+                throw new ExecutionException(error);
+            return appended.get();
+        }
+
+        public RecordMetadata get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, java.util.concurrent.TimeoutException {
+            long startNs = System.nanoTime();
+            if (!parked.await(timeout, unit))
+                throw new java.util.concurrent.TimeoutException("Timeout after waiting for " + TimeUnit.MILLISECONDS.convert(timeout, unit) + " ms.");
+            if (error != null)
+                throw new ExecutionException(error);
+            long remainingNs = Math.max(0, unit.toNanos(timeout) - (System.nanoTime() - startNs));
+            return appended.get(remainingNs, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.bi_kafka.clients.producer.internals;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.bi_kafka.clients.producer.ProducerLoad;
+import org.apache.bi_kafka.common.Node;
+import org.apache.bi_kafka.common.TopicPartition;
+
+/**
+ * The load of the producer per node, recorded by the senders as they send and complete produce requests. The queued
+ * bytes come from the record accumulator.
+ */
+public final class NodeLoadTracker implements ProducerLoad {
+
+    // the weight of the latest request in the moving average of the latency
+    private static final double LATENCY_ALPHA = 0.2;
+
+    private final RecordAccumulator accumulator;
+    private final ConcurrentMap<Integer, NodeLoad> nodes = new ConcurrentHashMap<Integer, NodeLoad>();
+
+    public NodeLoadTracker(RecordAccumulator accumulator) {
+        this.accumulator = accumulator;
+    }
+
+    /**
+     * Record that a produce request was sent to the node
+     */
+    void onRequestSent(int node) {
+        load(node).inFlight.incrementAndGet();
+    }
+
+    /**
+     * Record that a produce request to the node completed, with a response or not
+     *
+     * @param latencyMs The latency of the request, or -1 if it has none, e.g. it was disconnected or has acks=0
+     */
+    void onRequestCompleted(int node, long latencyMs) {
+        NodeLoad load = load(node);
+        load.inFlight.decrementAndGet();
+        if (latencyMs >= 0) {
+            // only the sender of the node updates the average, so there is a single writer
+            double average = load.latencyMs;
+            load.latencyMs = average < 0 ? latencyMs : average + LATENCY_ALPHA * (latencyMs - average);
+        }
+    }
+
+    public int inFlightRequests(Node node) {
+        NodeLoad load = nodes.get(node.id());
+        return load == null ? 0 : Math.max(0, load.inFlight.get());
+    }
+
+    public double requestLatencyMs(Node node) {
+        NodeLoad load = nodes.get(node.id());
+        return load == null ? -1 : load.latencyMs;
+    }
+
+    public long queuedBytes(TopicPartition tp) {
+        return accumulator.queuedBytes(tp);
+    }
+
+    private NodeLoad load(int node) {
+        NodeLoad load = nodes.get(node);
+        if (load == null) {
+            load = new NodeLoad();
+            NodeLoad current = nodes.putIfAbsent(node, load);
+            if (current != null)
+                load = current;
+        }
+        return load;
+    }
+
+    private static final class NodeLoad {
+        final AtomicInteger inFlight = new AtomicInteger();
+        volatile double latencyMs = -1;
+    }
+}
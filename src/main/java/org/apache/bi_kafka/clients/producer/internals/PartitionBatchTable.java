@@ -0,0 +1,260 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.bi_kafka.clients.producer.internals;
+
+import org.apache.bi_kafka.common.TopicPartition;
+import org.apache.bi_kafka.common.utils.ArrayDeque;
+import org.apache.bi_kafka.common.utils.Deque;
+import org.apache.bi_kafka.common.utils.TimerWheel;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+/**
+ * The batch queues of the record accumulator. Topics are interned once into a slot holding an array of partition
+ * entries indexed by partition number, so a lookup is a single hash of the topic name plus an array access and adding
+ * a partition only copies the partition array of its own topic.
+ * <p>
+ * Entries whose deque has batches are also kept in an active queue, which lets the sender thread iterate only the
+ * partitions that have data instead of every partition ever written to.
+ * <p>
+ * The entries of the topics matching one of the priority patterns are in the priority lane, which the accumulator
+ * drains first.
+ */
+final class PartitionBatchTable {
+
+    private final ConcurrentMap<String, TopicSlot> topics = new ConcurrentHashMap<String, TopicSlot>();
+    private final ConcurrentLinkedQueue<Entry> active = new ConcurrentLinkedQueue<Entry>();
+    private final ConcurrentLinkedQueue<Entry> signalled = new ConcurrentLinkedQueue<Entry>();
+    private final List<Pattern> priorityTopics;
+
+    PartitionBatchTable(List<Pattern> priorityTopics) {
+        this.priorityTopics = priorityTopics;
+    }
+
+    /**
+     * Get the entry of the given partition or null if nothing was ever appended to it.
+     */
+    Entry get(String topic, int partition) {
+        TopicSlot slot = topics.get(topic);
+        if (slot == null)
+            return null;
+        Entry[] partitions = slot.partitions;
+        return partition < partitions.length ? partitions[partition] : null;
+    }
+
+    Entry get(TopicPartition tp) {
+        return get(tp.topic(), tp.partition());
+    }
+
+    /**
+     * Get the entry of the given partition, creating it if necessary.
+     */
+    Entry getOrCreate(TopicPartition tp) {
+        Entry entry = get(tp.topic(), tp.partition());
+        if (entry != null)
+            return entry;
+        TopicSlot slot = topics.get(tp.topic());
+        if (slot == null) {
+            slot = new TopicSlot(isPriority(tp.topic()));
+            TopicSlot previous = topics.putIfAbsent(tp.topic(), slot);
+            if (previous != null)
+                slot = previous;
+        }
+        return slot.getOrCreate(tp);
+    }
+
+    /**
+     * Register the entry with the active queue. The caller must hold the lock of the entry's deque and have just
+     * added a batch to it.
+     */
+    void markActive(Entry entry) {
+        if (entry.active.compareAndSet(false, true))
+            active.add(entry);
+    }
+
+    /**
+     * Notify the sender thread that the entry may have become sendable, e.g. because a batch was added to it or one
+     * of its batches filled up. An entry is queued at most once until it is polled.
+     */
+    void signal(Entry entry) {
+        if (entry.signalled.compareAndSet(false, true))
+            signalled.add(entry);
+    }
+
+    /**
+     * Get the next signalled entry or null if there is none. This must only be used by the sender threads, under the
+     * lock of the accumulator.
+     */
+    Entry pollSignalled() {
+        Entry entry = signalled.poll();
+        if (entry != null)
+            entry.signalled.set(false);
+        return entry;
+    }
+
+    /**
+     * Iterate the entries that had a batch added since they were last found empty. Entries whose deque is found
+     * empty are dropped from the active queue. This must only be used by the sender threads, under the
+     * lock of the accumulator.
+     */
+    Iterable<Entry> active() {
+        return new Iterable<Entry>() {
+            public Iterator<Entry> iterator() {
+                return new ActiveIterator(active.iterator());
+            }
+        };
+    }
+
+    /**
+     * All the entries in the table.
+     */
+    List<Entry> all() {
+        List<Entry> all = new ArrayList<Entry>();
+        for (TopicSlot slot : topics.values()) {
+            for (Entry entry : slot.partitions) {
+                if (entry != null)
+                    all.add(entry);
+            }
+        }
+        return all;
+    }
+
+    void clear() {
+        topics.clear();
+        active.clear();
+        signalled.clear();
+    }
+
+    private boolean isPriority(String topic) {
+        for (Pattern pattern : priorityTopics) {
+            if (pattern.matcher(topic).matches())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * The batches and accumulator state of one partition
+     */
+    static final class Entry {
+        final TopicPartition topicPartition;
+        // whether the partition is in the priority lane
+        final boolean priority;
+        final Deque<RecordBatch> deque = new ArrayDeque<RecordBatch>();
+        // the batch open for concurrent appends, only used if concurrent appends are enabled
+        final AtomicReference<RecordBatch> open = new AtomicReference<RecordBatch>();
+        // the record counts of the last drained batch and the larger of the last two, guarded by the deque lock
+        int lastRecordCount;
+        int recordCountHint;
+        private final AtomicBoolean active = new AtomicBoolean(false);
+        private final AtomicBoolean signalled = new AtomicBoolean(false);
+        // The following variables are only accessed by the sender threads, under the lock of the accumulator
+        boolean muted;
+        // whether the entry is in the ready candidates of the accumulator
+        boolean readyCandidate;
+        // the pending check for readiness once the first batch is done lingering or backing off
+        TimerWheel.Timeout<Entry> readyCheck;
+        // whether the entry is in the expiry candidates of the accumulator
+        boolean expiryCandidate;
+        // the pending check for expiry of the first batch
+        TimerWheel.Timeout<Entry> expiryCheck;
+        // the linger time chosen by the adaptive linger, -1 until the first batch was drained, and its estimates
+        long lingerMs = -1L;
+        double recordsPerMs;
+        double bytesPerMs;
+        double fillRatio;
+
+        Entry(TopicPartition topicPartition, boolean priority) {
+            this.topicPartition = topicPartition;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * The interned partition array of a topic, grown (and copied) only when a higher partition is first written to.
+     */
+    private static final class TopicSlot {
+        final boolean priority;
+        volatile Entry[] partitions = new Entry[0];
+
+        TopicSlot(boolean priority) {
+            this.priority = priority;
+        }
+
+        synchronized Entry getOrCreate(TopicPartition tp) {
+            int partition = tp.partition();
+            Entry[] current = partitions;
+            if (partition < current.length && current[partition] != null)
+                return current[partition];
+            if (partition >= current.length) {
+                Entry[] grown = new Entry[Math.max(partition + 1, current.length * 2)];
+                System.arraycopy(current, 0, grown, 0, current.length);
+                current = grown;
+            }
+            Entry entry = new Entry(tp, priority);
+            current[partition] = entry;
+            // publish the entry through the volatile write
+            partitions = current;
+            return entry;
+        }
+    }
+
+    /**
+     * Skips, and removes from the active queue, entries with an empty deque. The active flag is cleared under the
+     * deque lock, so an appender adding a batch afterwards registers the entry again.
+     */
+    private static final class ActiveIterator implements Iterator<Entry> {
+        private final Iterator<Entry> iterator;
+        private Entry next;
+
+        ActiveIterator(Iterator<Entry> iterator) {
+            this.iterator = iterator;
+        }
+
+        public boolean hasNext() {
+            while (next == null && iterator.hasNext()) {
+                Entry entry = iterator.next();
+                synchronized (entry.deque) {
+                    if (entry.deque.isEmpty()) {
+                        entry.active.set(false);
+                        iterator.remove();
+                    } else {
+                        next = entry;
+                    }
+                }
+            }
+            return next != null;
+        }
+
+        public Entry next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Entry entry = next;
+            next = null;
+            return entry;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -13,24 +13,31 @@
 package org.apache.bi_kafka.clients.producer.internals;
 
 import org.apache.bi_kafka.clients.producer.Callback;
+import org.apache.bi_kafka.clients.producer.ProducerConfig;
 import org.apache.bi_kafka.common.*;
+import org.apache.bi_kafka.common.config.ConfigException;
 import org.apache.bi_kafka.common.metrics.Measurable;
 import org.apache.bi_kafka.common.metrics.MetricConfig;
 import org.apache.bi_kafka.common.metrics.Metrics;
 import org.apache.bi_kafka.common.metrics.Sensor;
+import org.apache.bi_kafka.common.metrics.stats.Avg;
+import org.apache.bi_kafka.common.metrics.stats.Max;
 import org.apache.bi_kafka.common.metrics.stats.Rate;
 import org.apache.bi_kafka.common.record.*;
-import org.apache.bi_kafka.common.utils.CopyOnWriteMap;
 import org.apache.bi_kafka.common.utils.Deque;
 import org.apache.bi_kafka.common.utils.Time;
+import org.apache.bi_kafka.common.utils.TimerWheel;
 import org.apache.bi_kafka.common.utils.Utils;
 import org.bi_slf4j.Logger;
 import org.bi_slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * This class acts as a queue that accumulates records into {@link MemoryRecords}
@@ -42,58 +49,137 @@ import java.util.concurrent.atomic.AtomicInteger;
 public final class RecordAccumulator {
 
     private static final Logger log = LoggerFactory.getLogger(RecordAccumulator.class);
+    // a first level spanning half a second covers the usual linger and backoff times, so their checks are exact
+    private static final int TIMER_WHEEL_SIZE = 512;
 
     private volatile boolean closed;
     private final AtomicInteger flushesInProgress;
     private final AtomicInteger appendsInProgress;
     private final int batchSize;
     private final CompressionType compression;
+    private final CompressionConfig compressionConfig;
+    private final boolean deferCompression;
+    private final CompressionRatioEstimator compressionRatios;
     private final long lingerMs;
+    private final AdaptiveLinger adaptiveLinger;
+    private final long priorityLingerMs;
+    private final Sensor lingerSensor;
     private final long retryBackoffMs;
     private final BufferPool free;
     private final Time time;
-    private final ConcurrentMap<TopicPartition, org.apache.bi_kafka.common.utils.Deque<RecordBatch>> batches;
+    private final boolean concurrentAppends;
+    private final ProducerInterceptors<?, ?> interceptors;
+    private final CallbackExecutor callbackExecutor;
+    private final BatchSpill spill;
+    private final TopicMemoryQuotas quotas;
+    // serializes the appenders spilling batches, taken before the deque locks
+    private final Object spillLock;
+    private int spillIndex;
+    private final PartitionBatchTable batches;
     private final IncompleteRecordBatches incomplete;
-    // The following variables are only accessed by the sender thread, so we don't need to protect them.
-    private final Set<TopicPartition> muted;
+    // The following variables are only accessed by the sender threads, under the lock of the accumulator.
     private int drainIndex;
+    private List<PartitionBatchTable.Entry> readyCandidates;
+    private final TimerWheel<PartitionBatchTable.Entry> readyChecks;
+    private List<PartitionBatchTable.Entry> expiryCandidates;
+    private final TimerWheel<PartitionBatchTable.Entry> expiryChecks;
 
     /**
      * Create a new record accumulator
      * 
      * @param batchSize The size to use when allocating {@link MemoryRecords} instances
      * @param totalSize The maximum memory the record accumulator can use.
-     * @param compression The compression codec for the records
+     * @param compression The compression codec for the records and its settings
+     * @param deferCompression Whether the records are appended uncompressed and compressed once their batch is drained,
+     *        see {@link BatchCompressor}
      * @param lingerMs An artificial delay time to add before declaring a records instance that isn't full ready for
      *        sending. This allows time for more records to arrive. Setting a non-zero lingerMs will trade off some
      *        latency for potentially better throughput due to more batching (and hence fewer, larger requests).
+     *        This is the upper bound of the delay if it adapts to the traffic of each partition.
+     * @param minLingerMs The lower bound of the delay if it adapts to the traffic of each partition. The delay is fixed
+     *        to lingerMs if this is not less than lingerMs.
+     * @param priorityTopics The names or regular expressions of the topics in the priority lane, whose batches are
+     *        drained into the requests before the batches of the other topics
+     * @param priorityLingerMs The fixed delay of the batches of the topics in the priority lane
      * @param retryBackoffMs An artificial delay time to retry the produce request upon receiving an error. This avoids
      *        exhausting all retries in a short period of time.
+     * @param concurrentAppends Whether appends reserve space in the open batch of a partition without taking the
+     *        deque lock, so that only the creation of a new batch is serialized. Only used without compression or
+     *        with deferred compression.
+     * @param directBuffers Whether the batches are direct byte buffers rather than heap byte buffers
+     * @param interceptors The interceptors to notify when the records are acknowledged, may be null
+     * @param callbackExecutor The executor running the callbacks of the completed batches, null to run them on the
+     *        thread completing the batch
+     * @param spill The disk tier the closed batches are spilled to when the memory is exhausted, null to block the
+     *        appends until memory is available
+     * @param quotas The byte budgets of the topics on top of the total memory, null if there are none
      * @param metrics The metrics
      * @param time The time instance to use
      */
     public RecordAccumulator(int batchSize,
                              long totalSize,
-                             CompressionType compression,
+                             CompressionConfig compression,
+                             boolean deferCompression,
                              long lingerMs,
+                             long minLingerMs,
+                             List<String> priorityTopics,
+                             long priorityLingerMs,
                              long retryBackoffMs,
+                             boolean concurrentAppends,
+                             boolean directBuffers,
+                             ProducerInterceptors<?, ?> interceptors,
+                             CallbackExecutor callbackExecutor,
+                             BatchSpill spill,
+                             TopicMemoryQuotas quotas,
                              Metrics metrics,
                              Time time) {
         this.drainIndex = 0;
+        this.readyCandidates = new ArrayList<PartitionBatchTable.Entry>();
+        this.readyChecks = new TimerWheel<PartitionBatchTable.Entry>(1L, TIMER_WHEEL_SIZE, time.milliseconds());
+        this.expiryCandidates = new ArrayList<PartitionBatchTable.Entry>();
+        this.expiryChecks = new TimerWheel<PartitionBatchTable.Entry>(1L, TIMER_WHEEL_SIZE, time.milliseconds());
         this.closed = false;
         this.flushesInProgress = new AtomicInteger(0);
         this.appendsInProgress = new AtomicInteger(0);
         this.batchSize = batchSize;
-        this.compression = compression;
+        this.compression = compression.type();
+        this.compressionConfig = compression;
+        this.deferCompression = deferCompression && this.compression != CompressionType.NONE;
+        this.compressionRatios = new CompressionRatioEstimator();
         this.lingerMs = lingerMs;
+        this.adaptiveLinger = minLingerMs < lingerMs ? new AdaptiveLinger(Math.max(minLingerMs, 0L), lingerMs, batchSize) : null;
+        this.priorityLingerMs = priorityLingerMs;
         this.retryBackoffMs = retryBackoffMs;
-        this.batches = new CopyOnWriteMap<TopicPartition, Deque<RecordBatch>>();
+        this.batches = new PartitionBatchTable(compilePriorityTopics(priorityTopics));
+        if (concurrentAppends && this.compression != CompressionType.NONE && !this.deferCompression) {
+            log.info("Concurrent appends are not supported with compression type {}, appends will synchronize on the partition", this.compression);
+            concurrentAppends = false;
+        }
+        this.concurrentAppends = concurrentAppends;
+        this.interceptors = interceptors;
+        this.callbackExecutor = callbackExecutor;
+        this.spill = spill;
+        this.quotas = quotas;
+        this.spillLock = new Object();
+        this.spillIndex = 0;
         String metricGrpName = "producer-metrics";
-        this.free = new BufferPool(totalSize, batchSize, metrics, time, metricGrpName);
+        this.free = new BufferPool(totalSize, batchSize, directBuffers, metrics, time, metricGrpName);
         this.incomplete = new IncompleteRecordBatches();
-        this.muted = new HashSet<TopicPartition>();
         this.time = time;
         registerMetrics(metrics, metricGrpName);
+        this.lingerSensor = this.adaptiveLinger == null ? null : registerLingerMetrics(metrics, metricGrpName);
+    }
+
+    private static List<Pattern> compilePriorityTopics(List<String> priorityTopics) {
+        List<Pattern> patterns = new ArrayList<Pattern>(priorityTopics.size());
+        for (String topic : priorityTopics) {
+            try {
+                patterns.add(Pattern.compile(topic.trim()));
+            } catch (PatternSyntaxException e) {
+                throw new ConfigException(ProducerConfig.PRIORITY_TOPICS_CONFIG, topic, "Invalid topic pattern");
+            }
+        }
+        return patterns;
     }
 
     private void registerMetrics(Metrics metrics, String metricGrpName) {
@@ -126,6 +212,15 @@ public final class RecordAccumulator {
         bufferExhaustedRecordSensor.add(metricName, new Rate());
     }
 
+    private Sensor registerLingerMetrics(Metrics metrics, String metricGrpName) {
+        Sensor lingerSensor = metrics.sensor("batch-linger");
+        MetricName metricName = metrics.metricName("linger-ms-avg", metricGrpName, "The average linger time chosen for the batches sent, in ms");
+        lingerSensor.add(metricName, new Avg());
+        metricName = metrics.metricName("linger-ms-max", metricGrpName, "The maximum linger time chosen for the batches sent, in ms");
+        lingerSensor.add(metricName, new Max());
+        return lingerSensor;
+    }
+
     /**
      * Add a record to the accumulator, return the append result
      * <p>
@@ -145,59 +240,550 @@ public final class RecordAccumulator {
                                      byte[] value,
                                      Callback callback,
                                      long maxTimeToBlock) throws InterruptedException {
+        return append(tp, timestamp, key, value, callback, maxTimeToBlock, false);
+    }
+
+    /**
+     * Add a record to the accumulator, or return a result with <code>abortForNewBatch</code> set without appending
+     * anything if <code>abortOnNewBatch</code> is true and a new batch would have to be created for the record. This
+     * lets the caller pick another partition before any memory is allocated for the new batch.
+     *
+     * @param tp The topic/partition to which this record is being sent
+     * @param timestamp The timestamp of the record
+     * @param key The key for the record
+     * @param value The value for the record
+     * @param callback The user-supplied callback to execute when the request is complete
+     * @param maxTimeToBlock The maximum time in milliseconds to block for buffer memory to be available
+     * @param abortOnNewBatch Whether to return instead of creating a new batch
+     */
+    public RecordAppendResult append(TopicPartition tp,
+                                     long timestamp,
+                                     byte[] key,
+                                     byte[] value,
+                                     Callback callback,
+                                     long maxTimeToBlock,
+                                     boolean abortOnNewBatch) throws InterruptedException {
+        return append(tp, timestamp, key, value, null, callback, maxTimeToBlock, abortOnNewBatch);
+    }
+
+    /**
+     * Add a record whose value is written straight into the batch buffer by the given writer, see
+     * {@link #append(TopicPartition, long, byte[], byte[], Callback, long, boolean)}. This is only supported if
+     * {@link #supportsValueWriters()} is true.
+     *
+     * @param tp The topic/partition to which this record is being sent
+     * @param timestamp The timestamp of the record
+     * @param key The key for the record
+     * @param value The writer of the value for the record
+     * @param callback The user-supplied callback to execute when the request is complete
+     * @param maxTimeToBlock The maximum time in milliseconds to block for buffer memory to be available
+     * @param abortOnNewBatch Whether to return instead of creating a new batch
+     */
+    public RecordAppendResult append(TopicPartition tp,
+                                     long timestamp,
+                                     byte[] key,
+                                     RecordValueWriter value,
+                                     Callback callback,
+                                     long maxTimeToBlock,
+                                     boolean abortOnNewBatch) throws InterruptedException {
+        if (!supportsValueWriters())
+            throw new IllegalStateException("Value writers are not supported with compression or concurrent appends");
+        return append(tp, timestamp, key, null, value, callback, maxTimeToBlock, abortOnNewBatch);
+    }
+
+    /**
+     * Whether records can be appended with a {@link RecordValueWriter}, which requires batches written uncompressed
+     * (without compression or deferring it) that are appended to under the deque lock
+     */
+    public boolean supportsValueWriters() {
+        return (compression == CompressionType.NONE || deferCompression) && !concurrentAppends;
+    }
+
+    private RecordAppendResult append(TopicPartition tp,
+                                      long timestamp,
+                                      byte[] key,
+                                      byte[] value,
+                                      RecordValueWriter valueWriter,
+                                      Callback callback,
+                                      long maxTimeToBlock,
+                                      boolean abortOnNewBatch) throws InterruptedException {
         // We keep track of the number of appending thread to make sure we do not miss batches in
         // abortIncompleteBatches().
         appendsInProgress.incrementAndGet();
         try {
-            // check if we have an in-progress batch
-            org.apache.bi_kafka.common.utils.Deque<RecordBatch> dq = getOrCreateDeque(tp);
-            synchronized (dq) {
-                if (closed)
-                    throw new IllegalStateException("Cannot send after the producer is closed.");
-                RecordAppendResult appendResult = tryAppend(timestamp, key, value, callback, dq);
-                if (appendResult != null)
-                    return appendResult;
-            }
+            PartitionBatchTable.Entry entry = batches.getOrCreate(tp);
+            RecordAppendResult result;
+            if (concurrentAppends)
+                result = appendConcurrently(entry, timestamp, key, value, callback, maxTimeToBlock, abortOnNewBatch);
+            else
+                result = appendSynchronized(entry, timestamp, key, value, valueWriter, callback, maxTimeToBlock, abortOnNewBatch);
+            // a new or full batch may make the partition sendable, let the sender re-check it
+            if (result.batchIsFull || result.newBatchCreated)
+                batches.signal(entry);
+            return result;
+        } finally {
+            appendsInProgress.decrementAndGet();
+        }
+    }
 
-            // we don't have an in-progress record batch try to allocate a new batch
-            int size = Math.max(this.batchSize, Records.LOG_OVERHEAD + Record.recordSize(key, value));
-            log.trace("Allocating a new {} byte message buffer for topic {} partition {}",
-                    new Object[]{size, tp.topic(), tp.partition()});
-            ByteBuffer buffer = free.allocate(size, maxTimeToBlock);
-            synchronized (dq) {
-                // Need to check if producer is closed again after grabbing the dequeue lock.
-                if (closed)
-                    throw new IllegalStateException("Cannot send after the producer is closed.");
-
-                RecordAppendResult appendResult = tryAppend(timestamp, key, value, callback, dq);
-                if (appendResult != null) {
-                    // Somebody else found us a batch, return the one we waited for! Hopefully this doesn't happen often...
-                    free.deallocate(buffer);
-                    return appendResult;
+    /**
+     * Add records of the same partition to the accumulator. The deque lock is taken once for all the records that fit
+     * in the open batch and once more for each new batch, rather than twice per record.
+     * <p>
+     * The future of each appended record is stored at its index in <code>futures</code> as soon as it is appended, so
+     * if an exception is thrown, e.g. because no memory could be allocated for a new batch in time, the records with a
+     * future have been appended and the others have not.
+     *
+     * @param tp The topic/partition to which the records are being sent
+     * @param timestamps The timestamps of the records
+     * @param keys The keys of the records
+     * @param values The values of the records
+     * @param callbacks The user-supplied callbacks to execute when the requests are complete
+     * @param futures The array receiving the future of each appended record
+     * @param maxTimeToBlock The maximum time in milliseconds to block for buffer memory to be available, for all the
+     *        batches allocated by the call
+     * @return The result of the last append, with the flags set if any batch filled up or any new batch was created
+     */
+    public RecordAppendResult appendAll(TopicPartition tp,
+                                        long[] timestamps,
+                                        byte[][] keys,
+                                        byte[][] values,
+                                        Callback[] callbacks,
+                                        FutureRecordMetadata[] futures,
+                                        long maxTimeToBlock) throws InterruptedException {
+        appendsInProgress.incrementAndGet();
+        PartitionBatchTable.Entry entry = batches.getOrCreate(tp);
+        boolean batchIsFull = false;
+        boolean newBatchCreated = false;
+        long startMs = time.milliseconds();
+        try {
+            if (concurrentAppends) {
+                for (int i = 0; i < futures.length; i++) {
+                    RecordAppendResult result = appendConcurrently(entry, timestamps[i], keys[i], values[i], callbacks[i],
+                            Math.max(0L, maxTimeToBlock - (time.milliseconds() - startMs)), false);
+                    futures[i] = result.future;
+                    batchIsFull |= result.batchIsFull;
+                    newBatchCreated |= result.newBatchCreated;
                 }
-                MemoryRecordsBuilder recordsBuilder = MemoryRecords.builder(buffer, compression, TimestampType.CREATE_TIME, this.batchSize);
-                RecordBatch batch = new RecordBatch(tp, recordsBuilder, time.milliseconds());
-                FutureRecordMetadata future = Utils.notNull(batch.tryAppend(timestamp, key, value, callback, time.milliseconds()));
+            } else {
+                Deque<RecordBatch> dq = entry.deque;
+                int next = 0;
+                while (next < futures.length) {
+                    synchronized (dq) {
+                        if (closed)
+                            throw new IllegalStateException("Cannot send after the producer is closed.");
+                        next = tryAppendAll(next, timestamps, keys, values, callbacks, futures, dq);
+                        batchIsFull |= isFull(dq);
+                    }
+                    if (next == futures.length)
+                        break;
 
-                dq.addLast(batch);
-                incomplete.add(batch);
-                return new RecordAppendResult(future, dq.size() > 1 || batch.isFull(), true);
+                    // the open batch is full, allocate a new one for the next record and fill it under the same lock
+                    int size = Math.max(this.batchSize, Records.LOG_OVERHEAD + Record.recordSize(keys[next], values[next]));
+                    log.trace("Allocating a new {} byte message buffer for topic {} partition {}",
+                            new Object[]{size, tp.topic(), tp.partition()});
+                    ByteBuffer buffer = allocate(tp.topic(), size, Math.max(0L, maxTimeToBlock - (time.milliseconds() - startMs)));
+                    synchronized (dq) {
+                        if (closed)
+                            throw new IllegalStateException("Cannot send after the producer is closed.");
+                        RecordAppendResult result = tryAppend(timestamps[next], keys[next], values[next], null, callbacks[next], dq);
+                        if (result != null) {
+                            deallocate(tp.topic(), buffer);
+                        } else {
+                            result = appendNewBatch(entry, buffer, timestamps[next], keys[next], values[next], null, callbacks[next]);
+                            newBatchCreated = true;
+                        }
+                        futures[next++] = result.future;
+                        next = tryAppendAll(next, timestamps, keys, values, callbacks, futures, dq);
+                        batchIsFull |= isFull(dq);
+                    }
+                }
             }
         } finally {
+            if (batchIsFull || newBatchCreated)
+                batches.signal(entry);
             appendsInProgress.decrementAndGet();
         }
+        FutureRecordMetadata last = futures.length == 0 ? null : futures[futures.length - 1];
+        return new RecordAppendResult(last, batchIsFull, newBatchCreated);
+    }
+
+    /**
+     * Append records to the last batch of the deque until one does not fit. The caller must hold the deque lock.
+     *
+     * @return The index of the first record which was not appended
+     */
+    private int tryAppendAll(int from, long[] timestamps, byte[][] keys, byte[][] values, Callback[] callbacks,
+                             FutureRecordMetadata[] futures, Deque<RecordBatch> dq) {
+        int next = from;
+        while (next < futures.length) {
+            RecordAppendResult result = tryAppend(timestamps[next], keys[next], values[next], null, callbacks[next], dq);
+            if (result == null)
+                break;
+            futures[next++] = result.future;
+        }
+        return next;
+    }
+
+    private static boolean isFull(Deque<RecordBatch> dq) {
+        RecordBatch last = dq.peekLast();
+        return dq.size() > 1 || (last != null && last.isFull());
+    }
+
+    private RecordAppendResult appendSynchronized(PartitionBatchTable.Entry entry,
+                                                  long timestamp,
+                                                  byte[] key,
+                                                  byte[] value,
+                                                  RecordValueWriter valueWriter,
+                                                  Callback callback,
+                                                  long maxTimeToBlock,
+                                                  boolean abortOnNewBatch) throws InterruptedException {
+        TopicPartition tp = entry.topicPartition;
+        // check if we have an in-progress batch
+        Deque<RecordBatch> dq = entry.deque;
+        synchronized (dq) {
+            if (closed)
+                throw new IllegalStateException("Cannot send after the producer is closed.");
+            RecordAppendResult appendResult = tryAppend(timestamp, key, value, valueWriter, callback, dq);
+            if (appendResult != null)
+                return appendResult;
+        }
+
+        // let the caller choose another partition before allocating a new batch for this one
+        if (abortOnNewBatch)
+            return new RecordAppendResult(null, false, false, true);
+
+        // we don't have an in-progress record batch try to allocate a new batch
+        int recordSize = valueWriter == null ? Record.recordSize(key, value) :
+                Record.recordSize(Record.CURRENT_MAGIC_VALUE, key == null ? 0 : key.length, Math.max(valueWriter.sizeUpperBound(), 0));
+        int size = Math.max(this.batchSize, Records.LOG_OVERHEAD + recordSize);
+        log.trace("Allocating a new {} byte message buffer for topic {} partition {}",
+                new Object[]{size, tp.topic(), tp.partition()});
+        ByteBuffer buffer = allocate(tp.topic(), size, maxTimeToBlock);
+        synchronized (dq) {
+            // Need to check if producer is closed again after grabbing the dequeue lock.
+            if (closed)
+                throw new IllegalStateException("Cannot send after the producer is closed.");
+
+            RecordAppendResult appendResult = tryAppend(timestamp, key, value, valueWriter, callback, dq);
+            if (appendResult != null) {
+                // Somebody else found us a batch, return the one we waited for! Hopefully this doesn't happen often...
+                deallocate(tp.topic(), buffer);
+                return appendResult;
+            }
+            return appendNewBatch(entry, buffer, timestamp, key, value, valueWriter, callback);
+        }
+    }
+
+    /**
+     * Append the record to a new batch built on the given buffer. The caller must hold the deque lock.
+     */
+    private RecordAppendResult appendNewBatch(PartitionBatchTable.Entry entry,
+                                              ByteBuffer buffer,
+                                              long timestamp,
+                                              byte[] key,
+                                              byte[] value,
+                                              RecordValueWriter valueWriter,
+                                              Callback callback) {
+        TopicPartition tp = entry.topicPartition;
+        Deque<RecordBatch> dq = entry.deque;
+        MemoryRecordsBuilder recordsBuilder;
+        if (deferCompression) {
+            recordsBuilder = MemoryRecords.deferredBuilder(buffer, compressionConfig, TimestampType.CREATE_TIME, this.batchSize, false);
+        } else {
+            recordsBuilder = MemoryRecords.builder(buffer, compressionConfig, TimestampType.CREATE_TIME, this.batchSize);
+            recordsBuilder.setEstimatedCompressionRatio(compressionRatios.estimation(tp.topic(), compression));
+        }
+        RecordBatch batch = new RecordBatch(tp, recordsBuilder, interceptors, callbackExecutor, time.milliseconds());
+        batch.quotaBytes = buffer.capacity();
+        batch.recordCountHint = entry.recordCountHint;
+        FutureRecordMetadata future;
+        try {
+            future = Utils.notNull(valueWriter == null ?
+                    batch.tryAppend(timestamp, key, value, callback, time.milliseconds()) :
+                    batch.tryAppend(timestamp, key, valueWriter, callback, time.milliseconds()));
+        } catch (RuntimeException e) {
+            // a value writer failed, the batch was never added so return its buffer
+            deallocate(tp.topic(), buffer);
+            throw e;
+        }
+
+        dq.addLast(batch);
+        batches.markActive(entry);
+        incomplete.add(batch);
+        return new RecordAppendResult(future, dq.size() > 1 || batch.isFull(), true);
+    }
+
+    /**
+     * Append to the open batch of the partition without taking the deque lock. Writers reserve space in the batch
+     * concurrently and the lock is only taken to roll over to a new batch once the open one is full.
+     */
+    private RecordAppendResult appendConcurrently(PartitionBatchTable.Entry entry,
+                                                  long timestamp,
+                                                  byte[] key,
+                                                  byte[] value,
+                                                  Callback callback,
+                                                  long maxTimeToBlock,
+                                                  boolean abortOnNewBatch) throws InterruptedException {
+        TopicPartition tp = entry.topicPartition;
+        AtomicReference<RecordBatch> open = entry.open;
+        if (closed)
+            throw new IllegalStateException("Cannot send after the producer is closed.");
+        RecordBatch batch = open.get();
+        if (batch != null) {
+            FutureRecordMetadata future = batch.tryAppendConcurrently(timestamp, key, value, callback, time.milliseconds());
+            if (future != null)
+                return new RecordAppendResult(future, batch.isFull(), false);
+        }
+
+        if (abortOnNewBatch)
+            return new RecordAppendResult(null, false, false, true);
+
+        // the open batch is full or sealed, allocate a new one and roll over under the lock
+        int size = Math.max(this.batchSize, Records.LOG_OVERHEAD + Record.recordSize(key, value));
+        log.trace("Allocating a new {} byte message buffer for topic {} partition {}",
+                new Object[]{size, tp.topic(), tp.partition()});
+        ByteBuffer buffer = allocate(tp.topic(), size, maxTimeToBlock);
+        Deque<RecordBatch> dq = entry.deque;
+        synchronized (dq) {
+            // Need to check if producer is closed again after grabbing the dequeue lock.
+            if (closed)
+                throw new IllegalStateException("Cannot send after the producer is closed.");
+
+            RecordBatch current = open.get();
+            if (current != null) {
+                FutureRecordMetadata future = current.tryAppendConcurrently(timestamp, key, value, callback, time.milliseconds());
+                if (future != null) {
+                    // Somebody else rolled over while we were allocating, return the buffer we waited for.
+                    deallocate(tp.topic(), buffer);
+                    return new RecordAppendResult(future, dq.size() > 1 || current.isFull(), false);
+                }
+                current.seal();
+            }
+            MemoryRecordsBuilder recordsBuilder = deferCompression ?
+                    MemoryRecords.deferredBuilder(buffer, compressionConfig, TimestampType.CREATE_TIME, this.batchSize, true) :
+                    MemoryRecords.concurrentBuilder(buffer, TimestampType.CREATE_TIME, this.batchSize);
+            RecordBatch newBatch = new RecordBatch(tp, recordsBuilder, interceptors, callbackExecutor, time.milliseconds());
+            newBatch.quotaBytes = buffer.capacity();
+            newBatch.recordCountHint = entry.recordCountHint;
+            FutureRecordMetadata future = Utils.notNull(newBatch.tryAppendConcurrently(timestamp, key, value, callback, time.milliseconds()));
+
+            dq.addLast(newBatch);
+            batches.markActive(entry);
+            incomplete.add(newBatch);
+            open.set(newBatch);
+            return new RecordAppendResult(future, dq.size() > 1 || newBatch.isFull(), true);
+        }
+    }
+
+    /**
+     * Reserve buffer memory for records of the topic held outside of the accumulator, if it is available right away
+     * in the pool and in the quota of the topic
+     */
+    public boolean tryReserve(String topic, int size) {
+        TopicMemoryQuotas.Quota quota = quotas == null ? null : quotas.quota(topic);
+        if (quota != null && !quota.tryAcquire(size))
+            return false;
+        if (free.tryReserve(size))
+            return true;
+        if (quota != null)
+            quota.release(size);
+        return false;
+    }
+
+    /**
+     * Return buffer memory reserved with {@link #tryReserve(String, int)}
+     */
+    public void unreserve(String topic, int size) {
+        free.unreserve(size);
+        releaseQuota(topic, size);
+    }
+
+    /**
+     * Allocate the buffer of a new batch of the topic, waiting for the quota of the topic first if it has one. The
+     * whole capacity of the buffer is charged to the quota.
+     */
+    private ByteBuffer allocate(String topic, int size, long maxTimeToBlock) throws InterruptedException {
+        TopicMemoryQuotas.Quota quota = quotas == null ? null : quotas.quota(topic);
+        if (quota == null)
+            return allocate(size, maxTimeToBlock);
+        long startMs = time.milliseconds();
+        quota.acquire(size, maxTimeToBlock);
+        ByteBuffer buffer = null;
+        try {
+            buffer = allocate(size, Math.max(0L, maxTimeToBlock - (time.milliseconds() - startMs)));
+        } finally {
+            if (buffer == null)
+                quota.release(size);
+        }
+        // the pool rounds the size up to its size class
+        if (buffer.capacity() > size)
+            quota.add(buffer.capacity() - size);
+        return buffer;
+    }
+
+    /**
+     * Allocate the buffer of a batch of the topic only if the memory and the quota of the topic are available right
+     * away. The whole capacity of the buffer is charged to the quota.
+     *
+     * @return The buffer, or null if the memory or the quota is exhausted
+     */
+    private ByteBuffer tryAllocate(String topic, int size) {
+        TopicMemoryQuotas.Quota quota = quotas == null ? null : quotas.quota(topic);
+        if (quota != null && !quota.tryAcquire(size))
+            return null;
+        ByteBuffer buffer = free.tryAllocate(size);
+        if (buffer == null) {
+            if (quota != null)
+                quota.release(size);
+            return null;
+        }
+        // the pool rounds the size up to its size class
+        if (quota != null && buffer.capacity() > size)
+            quota.add(buffer.capacity() - size);
+        return buffer;
+    }
+
+    /**
+     * Allocate the buffer of a new batch, spilling closed batches to disk first if the memory is exhausted
+     */
+    private ByteBuffer allocate(int size, long maxTimeToBlock) throws InterruptedException {
+        if (spill != null && free.availableMemory() < size)
+            spill(size);
+        return free.allocate(size, maxTimeToBlock);
+    }
+
+    /**
+     * Return the buffer of a batch of the topic which was not created after all
+     */
+    private void deallocate(String topic, ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        free.deallocate(buffer);
+        releaseQuota(topic, capacity);
+    }
+
+    private void releaseQuota(String topic, int size) {
+        TopicMemoryQuotas.Quota quota = quotas == null ? null : quotas.quota(topic);
+        if (quota != null)
+            quota.release(size);
+    }
+
+    /**
+     * Spill closed batches until the given size is available, along with a batch size for the spilled batches to be
+     * read back. The newest batches of each partition are spilled first since they are sent last. The last batch of a
+     * partition is kept in memory as it may still be appended to. If the spill is full the appender blocks as usual.
+     * The batches are only picked under the deque lock, they are compressed and written to disk outside of it.
+     */
+    private void spill(int size) {
+        long target = (long) size + this.batchSize;
+        synchronized (spillLock) {
+            List<PartitionBatchTable.Entry> entries = batches.all();
+            int count = entries.size();
+            for (int i = 0; i < count && free.availableMemory() < target; i++) {
+                PartitionBatchTable.Entry entry = entries.get((spillIndex + i) % count);
+                Deque<RecordBatch> dq = entry.deque;
+                long needed = target - free.availableMemory();
+                List<RecordBatch> victims = new ArrayList<RecordBatch>();
+                synchronized (dq) {
+                    Iterator<RecordBatch> iter = dq.descendingIterator();
+                    if (iter.hasNext())
+                        iter.next();
+                    while (iter.hasNext() && needed > 0) {
+                        RecordBatch batch = iter.next();
+                        // a batch read back is about to be drained
+                        if (batch.isSpilled() || batch.isReplayed() || batch.spilling)
+                            continue;
+                        clearOpenBatch(batch);
+                        closeBatch(batch);
+                        batch.spilling = true;
+                        victims.add(batch);
+                        needed -= batch.initialCapacity();
+                    }
+                }
+                for (int j = 0; j < victims.size(); j++) {
+                    if (!spill(dq, victims.get(j))) {
+                        synchronized (dq) {
+                            for (int k = j + 1; k < victims.size(); k++)
+                                victims.get(k).spilling = false;
+                        }
+                        return;
+                    }
+                }
+            }
+            spillIndex = count == 0 ? 0 : (spillIndex + 1) % count;
+        }
+    }
+
+    /**
+     * Write a batch picked by {@link #spill(int)} to disk and return its buffer to the pool. The batch is not
+     * drained, expired or aborted while it is being spilled.
+     *
+     * @return false if the batch could not be spilled
+     */
+    private boolean spill(Deque<RecordBatch> dq, RecordBatch batch) {
+        ByteBuffer buffer = null;
+        int capacity = 0;
+        BatchSpill.SpilledRecords spilled = null;
+        try {
+            // a batch deferring its compression is compressed before it is written
+            batch.close();
+            buffer = batch.buffer();
+            capacity = batch.initialCapacity();
+            spilled = spill.spill(batch.records());
+        } catch (IOException e) {
+            log.warn("Failed to spill a batch of {} to disk, waiting for memory instead", batch.topicPartition, e);
+        } finally {
+            synchronized (dq) {
+                batch.spilling = false;
+                if (spilled != null)
+                    batch.spilled(spilled);
+            }
+        }
+        if (spilled == null)
+            return false;
+        free.deallocate(buffer, capacity);
+        return true;
+    }
+
+    /**
+     * Read spilled batches back into buffer memory. The reads are done by the sender thread once it released the
+     * accumulator lock, and the batches are drained by a later drain. A batch which can not be read back fails once it
+     * is sent, a batch for which there is not enough memory yet waits for it in {@link #ready(Cluster, long)}.
+     */
+    private void replay(List<RecordBatch> spilledBatches) {
+        for (RecordBatch batch : spilledBatches) {
+            BatchSpill.SpilledRecords spilled = batch.spilledRecords();
+            ByteBuffer buffer = free.tryAllocate(spilled.sizeInBytes());
+            if (buffer == null)
+                continue;
+            MemoryRecords records;
+            try {
+                records = spill.replay(spilled, buffer);
+            } catch (IOException e) {
+                log.error("Failed to read back a spilled batch of {}", batch.topicPartition, e);
+                free.deallocate(buffer);
+                batch.replayFailed(new KafkaException("Failed to read back a spilled batch of " + batch.topicPartition, e));
+                continue;
+            }
+            PartitionBatchTable.Entry entry = batches.get(batch.topicPartition);
+            synchronized (entry.deque) {
+                batch.replayed(records, buffer);
+            }
+        }
     }
 
     /**
      * If `RecordBatch.tryAppend` fails (i.e. the record batch is full), close its memory records to release temporary
      * resources (like compression streams buffers).
      */
-    private RecordAppendResult tryAppend(long timestamp, byte[] key, byte[] value, Callback callback, org.apache.bi_kafka.common.utils.Deque<RecordBatch> deque) {
+    private RecordAppendResult tryAppend(long timestamp, byte[] key, byte[] value, RecordValueWriter valueWriter, Callback callback, org.apache.bi_kafka.common.utils.Deque<RecordBatch> deque) {
         RecordBatch last = deque.peekLast();
         if (last != null) {
-            FutureRecordMetadata future = last.tryAppend(timestamp, key, value, callback, time.milliseconds());
+            FutureRecordMetadata future = valueWriter == null ?
+                    last.tryAppend(timestamp, key, value, callback, time.milliseconds()) :
+                    last.tryAppend(timestamp, key, valueWriter, callback, time.milliseconds());
             if (future == null)
-                last.close();
+                closeBatch(last);
             else
                 return new RecordAppendResult(future, deque.size() > 1 || last.isFull(), false);
         }
@@ -209,48 +795,88 @@ public final class RecordAccumulator {
      * due to metadata being unavailable
      */
     public List<RecordBatch> abortExpiredBatches(int requestTimeout, long now) {
+        List<RecordBatch> expiredBatches = collectExpiredBatches(requestTimeout, now);
+        if (!expiredBatches.isEmpty()) {
+            log.trace("Expired {} batches in accumulator", expiredBatches.size());
+            // callbacks are invoked without holding the lock of the accumulator
+            for (RecordBatch batch : expiredBatches) {
+                releaseMemory(batch);
+                batch.expirationDone();
+                deallocate(batch);
+            }
+        }
+
+        return expiredBatches;
+    }
+
+    private synchronized List<RecordBatch> collectExpiredBatches(int requestTimeout, long now) {
         List<RecordBatch> expiredBatches = new ArrayList<RecordBatch>();
-        int count = 0;
-        for (Map.Entry<TopicPartition, org.apache.bi_kafka.common.utils.Deque<RecordBatch>> entry : this.batches.entrySet()) {
-            org.apache.bi_kafka.common.utils.Deque<RecordBatch> dq = entry.getValue();
-            TopicPartition tp = entry.getKey();
+        // Only the partitions whose first batch may have expired are checked: the ones signalled by appends or
+        // re-enqueued since the last call and the ones whose scheduled expiry check is due.
+        for (PartitionBatchTable.Entry entry : expiryChecks.advance(now)) {
+            entry.expiryCheck = null;
+            addExpiryCandidate(entry);
+        }
+        List<PartitionBatchTable.Entry> toCheck = this.expiryCandidates;
+        this.expiryCandidates = new ArrayList<PartitionBatchTable.Entry>();
+        for (PartitionBatchTable.Entry entry : toCheck) {
+            entry.expiryCandidate = false;
+            Deque<RecordBatch> dq = entry.deque;
             // We only check if the batch should be expired if the partition does not have a batch in flight.
             // This is to prevent later batches from being expired while an earlier batch is still in progress.
-            // Note that `muted` is only ever populated if `max.in.flight.request.per.connection=1` so this protection
+            // Note that partitions are only ever muted if `max.in.flight.request.per.connection=1` so this protection
             // is only active in this case. Otherwise the expiration order is not guaranteed.
-            if (!muted.contains(tp)) {
+            if (!entry.muted) {
                 synchronized (dq) {
                     // iterate over the batches and expire them if they have been in the accumulator for more than requestTimeOut
                     RecordBatch lastBatch = dq.peekLast();
                     Iterator<RecordBatch> batchIterator = dq.iterator();
                     while (batchIterator.hasNext()) {
                         RecordBatch batch = batchIterator.next();
+                        // a batch being spilled expires once it is on disk
+                        if (batch.spilling)
+                            break;
                         boolean isFull = batch != lastBatch || batch.isFull();
                         // Check if the batch has expired. Expired batches are closed by maybeExpire, but callbacks
                         // are invoked after completing the iterations, since sends invoked from callbacks
                         // may append more batches to the deque being iterated. The batch is deallocated after
                         // callbacks are invoked.
-                        if (batch.maybeExpire(requestTimeout, retryBackoffMs, now, this.lingerMs, isFull)) {
+                        if (batch.maybeExpire(requestTimeout, retryBackoffMs, now, maxLingerMs(entry), isFull)) {
                             expiredBatches.add(batch);
-                            count++;
                             batchIterator.remove();
+                            clearOpenBatch(batch);
                         } else {
                             // Stop at the first batch that has not expired.
                             break;
                         }
                     }
+                    RecordBatch first = dq.peekFirst();
+                    if (first != null)
+                        scheduleExpiryCheck(entry, first.expiryCheckMs(requestTimeout, retryBackoffMs, maxLingerMs(entry), first != lastBatch || first.isFull()));
+                    else if (entry.expiryCheck != null) {
+                        entry.expiryCheck.cancel();
+                        entry.expiryCheck = null;
+                    }
                 }
             }
         }
-        if (!expiredBatches.isEmpty()) {
-            log.trace("Expired {} batches in accumulator", count);
-            for (RecordBatch batch : expiredBatches) {
-                batch.expirationDone();
-                deallocate(batch);
-            }
+        return expiredBatches;
+    }
+
+    private void addExpiryCandidate(PartitionBatchTable.Entry entry) {
+        if (!entry.expiryCandidate) {
+            entry.expiryCandidate = true;
+            expiryCandidates.add(entry);
         }
+    }
 
-        return expiredBatches;
+    private void scheduleExpiryCheck(PartitionBatchTable.Entry entry, long timeMs) {
+        if (entry.expiryCheck != null) {
+            if (entry.expiryCheck.deadlineMs() == timeMs)
+                return;
+            entry.expiryCheck.cancel();
+        }
+        entry.expiryCheck = expiryChecks.schedule(entry, timeMs);
     }
 
     /**
@@ -261,10 +887,103 @@ public final class RecordAccumulator {
         batch.lastAttemptMs = now;
         batch.lastAppendTime = now;
         batch.setRetry();
-        org.apache.bi_kafka.common.utils.Deque<RecordBatch> deque = getOrCreateDeque(batch.topicPartition);
-        synchronized (deque) {
-            deque.addFirst(batch);
+        PartitionBatchTable.Entry entry = batches.getOrCreate(batch.topicPartition);
+        synchronized (entry.deque) {
+            entry.deque.addFirst(batch);
+            batches.markActive(entry);
         }
+        batches.signal(entry);
+    }
+
+    /**
+     * Split a batch the broker rejected as too large into smaller batches and put them back at the head of its
+     * partition, in the order of the records. The records are read back from the batch and appended again, to batches
+     * at most half its size so that a batch is split until it is accepted or down to a single record. The futures of
+     * the records follow their new batches, which also run their callbacks.
+     * <p>
+     * The buffers of the new batches are taken from the pool and charged to the quota of the topic only if they are
+     * available right away, as the sender must not block on memory. Otherwise the batch is left as it is, for the
+     * caller to send it again after backing off. The buffer of the split batch goes back to the pool once its records
+     * are copied.
+     *
+     * @return The number of batches the records were split into, or 0 if there is not enough memory to split it
+     */
+    public int splitAndReenqueue(RecordBatch bigBatch, long now) {
+        TopicPartition tp = bigBatch.topicPartition;
+        MemoryRecords records = bigBatch.records();
+        // the estimated compression ratio was too optimistic, which is why the batch ended up too large
+        if (!bigBatch.split)
+            compressionRatios.updateEstimation(tp.topic(), compression, (float) bigBatch.compressionRate());
+        int writeLimit = Math.max(1, Math.min(this.batchSize, records.sizeInBytes() / 2));
+        int maxRecords = Math.max(1, (bigBatch.recordCount + 1) / 2);
+
+        List<RecordBatch> parts = new ArrayList<RecordBatch>();
+        List<FutureRecordMetadata> futures = new ArrayList<FutureRecordMetadata>(bigBatch.recordCount);
+        RecordBatch part = null;
+        int index = 0;
+        for (LogEntry entry : records.deepEntries()) {
+            Record record = entry.record();
+            byte[] key = record.hasKey() ? Utils.toArray(record.key()) : null;
+            byte[] value = record.hasNullValue() ? null : Utils.toArray(record.value());
+            Callback callback = bigBatch.callback(index);
+            FutureRecordMetadata future = part == null || part.recordCount >= maxRecords ? null :
+                    part.tryAppend(record.timestamp(), key, value, callback, now);
+            if (future == null) {
+                if (part != null)
+                    part.closeForAppends();
+                part = newSplitBatch(bigBatch, writeLimit, key, value, now);
+                if (part == null) {
+                    for (RecordBatch batch : parts)
+                        releaseMemory(batch);
+                    return 0;
+                }
+                parts.add(part);
+                future = Utils.notNull(part.tryAppend(record.timestamp(), key, value, callback, now));
+            }
+            futures.add(future);
+            index++;
+        }
+        if (part != null)
+            part.closeForAppends();
+        for (int i = 0; i < futures.size(); i++)
+            bigBatch.chain(i, futures.get(i));
+
+        // the new batches are incomplete before the split one is completed, so that a flush waits for them
+        for (RecordBatch batch : parts)
+            incomplete.add(batch);
+        PartitionBatchTable.Entry entry = batches.getOrCreate(tp);
+        synchronized (entry.deque) {
+            for (int i = parts.size() - 1; i >= 0; i--)
+                entry.deque.addFirst(parts.get(i));
+            batches.markActive(entry);
+        }
+        batches.signal(entry);
+        bigBatch.splitDone();
+        deallocate(bigBatch);
+        return parts.size();
+    }
+
+    /**
+     * Create a batch for the records of a split batch, or return null if its buffer is not available right away
+     */
+    private RecordBatch newSplitBatch(RecordBatch bigBatch, int writeLimit, byte[] key, byte[] value, long now) {
+        TopicPartition tp = bigBatch.topicPartition;
+        ByteBuffer buffer = tryAllocate(tp.topic(), Math.max(writeLimit, Records.LOG_OVERHEAD + Record.recordSize(key, value)));
+        if (buffer == null)
+            return null;
+        MemoryRecordsBuilder recordsBuilder;
+        if (deferCompression) {
+            recordsBuilder = MemoryRecords.deferredBuilder(buffer, compressionConfig, TimestampType.CREATE_TIME, writeLimit, false);
+        } else {
+            recordsBuilder = MemoryRecords.builder(buffer, compressionConfig, TimestampType.CREATE_TIME, writeLimit);
+            recordsBuilder.setEstimatedCompressionRatio(compressionRatios.estimation(tp.topic(), compression));
+        }
+        RecordBatch batch = new RecordBatch(tp, recordsBuilder, interceptors, callbackExecutor, now);
+        batch.split = true;
+        batch.quotaBytes = buffer.capacity();
+        // the new batches are sent right away, with the retries of a new batch as the split is not a failed attempt
+        batch.setRetry();
+        return batch;
     }
 
     /**
@@ -288,65 +1007,145 @@ public final class RecordAccumulator {
      * </ul>
      * </ol>
      */
-    public ReadyCheckResult ready(Cluster cluster, long nowMs) {
+    public synchronized ReadyCheckResult ready(Cluster cluster, long nowMs) {
         Set<Node> readyNodes = new HashSet<Node>();
         long nextReadyCheckDelayMs = Long.MAX_VALUE;
         Set<String> unknownLeaderTopics = new HashSet<String>();
 
+        // Only the partitions that may have changed state are checked: the candidates of the previous call, the
+        // partitions signalled by appends and the partitions whose linger or retry backoff has elapsed.
+        List<PartitionBatchTable.Entry> toCheck = this.readyCandidates;
+        for (PartitionBatchTable.Entry entry = batches.pollSignalled(); entry != null; entry = batches.pollSignalled()) {
+            addReadyCandidate(toCheck, entry);
+            // a new or full batch may also expire earlier
+            addExpiryCandidate(entry);
+        }
+        for (PartitionBatchTable.Entry entry : readyChecks.advance(nowMs)) {
+            entry.readyCheck = null;
+            addReadyCandidate(toCheck, entry);
+        }
         boolean exhausted = this.free.queued() > 0;
-        for (Map.Entry<TopicPartition, org.apache.bi_kafka.common.utils.Deque<RecordBatch>> entry : this.batches.entrySet()) {
-            TopicPartition part = entry.getKey();
-            org.apache.bi_kafka.common.utils.Deque<RecordBatch> deque = entry.getValue();
+        if (exhausted || closed || flushInProgress()) {
+            // every partition with data is sendable in this case
+            for (PartitionBatchTable.Entry entry : batches.active())
+                addReadyCandidate(toCheck, entry);
+        }
+
+        List<PartitionBatchTable.Entry> candidates = new ArrayList<PartitionBatchTable.Entry>();
+        for (PartitionBatchTable.Entry entry : toCheck) {
+            TopicPartition part = entry.topicPartition;
+            Deque<RecordBatch> deque = entry.deque;
+            boolean candidate = false;
 
             Node leader = cluster.leaderFor(part);
             synchronized (deque) {
                 if (leader == null && !deque.isEmpty()) {
                     // This is a partition for which leader is not known, but messages are available to send.
-                    // Note that entries are currently not removed from batches when deque is empty.
                     unknownLeaderTopics.add(part.topic());
-                } else if (!readyNodes.contains(leader) && !muted.contains(part)) {
+                    candidate = true;
+                } else if (!readyNodes.contains(leader) && !entry.muted) {
                     RecordBatch batch = deque.peekFirst();
                     if (batch != null) {
                         boolean backingOff = batch.attempts > 0 && batch.lastAttemptMs + retryBackoffMs > nowMs;
                         long waitedTimeMs = nowMs - batch.lastAttemptMs;
-                        long timeToWaitMs = backingOff ? retryBackoffMs : lingerMs;
+                        long timeToWaitMs = backingOff ? retryBackoffMs : lingerMs(entry);
                         long timeLeftMs = Math.max(timeToWaitMs - waitedTimeMs, 0);
                         boolean full = deque.size() > 1 || batch.isFull();
                         boolean expired = waitedTimeMs >= timeToWaitMs;
                         boolean sendable = full || expired || exhausted || closed || flushInProgress();
-                        if (sendable && !backingOff) {
+                        // a batch being spilled waits for the spill to finish, a spilled batch for the memory to read it back
+                        boolean replayBlocked = batch.spilling ||
+                                (batch.needsReplay() && free.availableMemory() < batch.sizeInBytes());
+                        if (replayBlocked && !backingOff) {
+                            timeLeftMs = Math.max(retryBackoffMs, 1L);
+                            nextReadyCheckDelayMs = Math.min(timeLeftMs, nextReadyCheckDelayMs);
+                            scheduleReadyCheck(entry, nowMs + timeLeftMs);
+                        } else if (sendable && !backingOff) {
                             readyNodes.add(leader);
+                            candidate = true;
                         } else {
                             // Note that this results in a conservative estimate since an un-sendable partition may have
                             // a leader that will later be found to have sendable data. However, this is good enough
                             // since we'll just wake up and then sleep again for the remaining time.
                             nextReadyCheckDelayMs = Math.min(timeLeftMs, nextReadyCheckDelayMs);
+                            scheduleReadyCheck(entry, nowMs + timeLeftMs);
                         }
                     }
+                } else {
+                    // the leader is already known to be ready or the partition is muted, check it again next time
+                    candidate = !deque.isEmpty();
                 }
             }
+            if (candidate)
+                candidates.add(entry);
+            else
+                entry.readyCandidate = false;
         }
+        this.readyCandidates = candidates;
 
+        long nextReadyCheckMs = readyChecks.nextExpirationMs();
+        if (nextReadyCheckMs != Long.MAX_VALUE)
+            nextReadyCheckDelayMs = Math.min(Math.max(nextReadyCheckMs - nowMs, 0), nextReadyCheckDelayMs);
         return new ReadyCheckResult(readyNodes, nextReadyCheckDelayMs, unknownLeaderTopics);
     }
 
+    private long lingerMs(PartitionBatchTable.Entry entry) {
+        if (entry.priority)
+            return priorityLingerMs;
+        return adaptiveLinger == null ? lingerMs : adaptiveLinger.lingerMs(entry);
+    }
+
     /**
-     * @return Whether there is any unsent record in the accumulator.
+     * The upper bound of the linger time of the partition, which the expiry of its batches allows for
      */
-    public boolean hasUnsent() {
-        for (Map.Entry<TopicPartition, org.apache.bi_kafka.common.utils.Deque<RecordBatch>> entry : this.batches.entrySet()) {
-            org.apache.bi_kafka.common.utils.Deque<RecordBatch> deque = entry.getValue();
-            synchronized (deque) {
-                if (!deque.isEmpty())
-                    return true;
-            }
+    private long maxLingerMs(PartitionBatchTable.Entry entry) {
+        return entry.priority ? priorityLingerMs : lingerMs;
+    }
+
+    private void addReadyCandidate(List<PartitionBatchTable.Entry> candidates, PartitionBatchTable.Entry entry) {
+        if (!entry.readyCandidate) {
+            entry.readyCandidate = true;
+            candidates.add(entry);
         }
-        return false;
+    }
+
+    private void scheduleReadyCheck(PartitionBatchTable.Entry entry, long timeMs) {
+        if (entry.readyCheck != null) {
+            if (entry.readyCheck.deadlineMs() == timeMs)
+                return;
+            entry.readyCheck.cancel();
+        }
+        entry.readyCheck = readyChecks.schedule(entry, timeMs);
+    }
+
+    /**
+     * The bytes of the batches of the partition which have not been drained yet, including the open one
+     */
+    public long queuedBytes(TopicPartition tp) {
+        PartitionBatchTable.Entry entry = this.batches.get(tp);
+        if (entry == null)
+            return 0;
+        long bytes = 0;
+        synchronized (entry.deque) {
+            for (RecordBatch batch : entry.deque)
+                bytes += batch.sizeInBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return Whether there is any unsent record in the accumulator.
+     */
+    public synchronized boolean hasUnsent() {
+        // the active iterator drops the partitions it finds empty
+        return this.batches.active().iterator().hasNext();
     }
 
     /**
      * Drain all the data for the given nodes and collate them into a list of batches that will fit within the specified
-     * size on a per-node basis. This method attempts to avoid choosing the same topic-node over and over.
+     * size on a per-node basis. This method attempts to avoid choosing the same topic-node over and over. The batches
+     * of the priority lane are drained first, the other batches fill the rest of the request. A spilled batch at the
+     * head of its partition is read back by this call and drained by a later one.
      * 
      * @param cluster The current cluster metadata
      * @param nodes The list of node to drain
@@ -361,6 +1160,19 @@ public final class RecordAccumulator {
         if (nodes.isEmpty())
             return Collections.emptyMap();
 
+        // the spilled batches at the head of their partition are read back outside of the accumulator lock
+        List<RecordBatch> spilledBatches = new ArrayList<RecordBatch>();
+        Map<Integer, List<RecordBatch>> batches = drain(cluster, nodes, maxSize, now, spilledBatches);
+        if (!spilledBatches.isEmpty())
+            replay(spilledBatches);
+        return batches;
+    }
+
+    private synchronized Map<Integer, List<RecordBatch>> drain(Cluster cluster,
+                                                               Set<Node> nodes,
+                                                               int maxSize,
+                                                               long now,
+                                                               List<RecordBatch> spilledBatches) {
         Map<Integer, List<RecordBatch>> batches = new HashMap<Integer, List<RecordBatch>>();
         for (Node node : nodes) {
             int size = 0;
@@ -368,35 +1180,24 @@ public final class RecordAccumulator {
             List<RecordBatch> ready = new ArrayList<RecordBatch>();
             /* to make starvation less likely this loop doesn't start at 0 */
             int start = drainIndex = drainIndex % parts.size();
+            for (int i = 0; i < parts.size(); i++) {
+                PartitionInfo part = parts.get((start + i) % parts.size());
+                PartitionBatchTable.Entry entry = this.batches.get(part.topic(), part.partition());
+                if (entry == null || !entry.priority)
+                    continue;
+                int drained = drainFirst(entry, ready, size, maxSize, now, spilledBatches);
+                if (drained < 0)
+                    break;
+                size += drained;
+            }
             do {
                 PartitionInfo part = parts.get(drainIndex);
-                TopicPartition tp = new TopicPartition(part.topic(), part.partition());
-                // Only proceed if the partition has no in-flight batches.
-                if (!muted.contains(tp)) {
-                    org.apache.bi_kafka.common.utils.Deque<RecordBatch> deque = getDeque(new TopicPartition(part.topic(), part.partition()));
-                    if (deque != null) {
-                        synchronized (deque) {
-                            RecordBatch first = deque.peekFirst();
-                            if (first != null) {
-                                boolean backoff = first.attempts > 0 && first.lastAttemptMs + retryBackoffMs > now;
-                                // Only drain the batch if it is not during backoff period.
-                                if (!backoff) {
-                                    if (size + first.sizeInBytes() > maxSize && !ready.isEmpty()) {
-                                        // there is a rare case that a single batch size is larger than the request size due
-                                        // to compression; in this case we will still eventually send this batch in a single
-                                        // request
-                                        break;
-                                    } else {
-                                        RecordBatch batch = deque.pollFirst();
-                                        batch.close();
-                                        size += batch.sizeInBytes();
-                                        ready.add(batch);
-                                        batch.drainedMs = now;
-                                    }
-                                }
-                            }
-                        }
-                    }
+                PartitionBatchTable.Entry entry = this.batches.get(part.topic(), part.partition());
+                if (entry != null && !entry.priority) {
+                    int drained = drainFirst(entry, ready, size, maxSize, now, spilledBatches);
+                    if (drained < 0)
+                        break;
+                    size += drained;
                 }
                 this.drainIndex = (this.drainIndex + 1) % parts.size();
             } while (start != drainIndex);
@@ -405,31 +1206,110 @@ public final class RecordAccumulator {
         return batches;
     }
 
-    private org.apache.bi_kafka.common.utils.Deque<RecordBatch> getDeque(TopicPartition tp) {
-        return batches.get(tp);
+    /**
+     * Drain the first batch of the partition into a request unless the partition is muted or backing off. The caller
+     * must hold the accumulator lock.
+     *
+     * @param ready The batches drained into the request so far
+     * @param size The size of the batches drained into the request so far
+     * @param spilledBatches The spilled batches to read back, to which the first batch is added if it is spilled
+     * @return The size of the drained batch, 0 if none was drained, or -1 if the request is full
+     */
+    private int drainFirst(PartitionBatchTable.Entry entry, List<RecordBatch> ready, int size, int maxSize, long now,
+                           List<RecordBatch> spilledBatches) {
+        // Only proceed if the partition has no in-flight batches.
+        if (entry.muted)
+            return 0;
+        Deque<RecordBatch> deque = entry.deque;
+        synchronized (deque) {
+            RecordBatch first = deque.peekFirst();
+            if (first == null)
+                return 0;
+            boolean backoff = first.attempts > 0 && first.lastAttemptMs + retryBackoffMs > now;
+            // Only drain the batch if it is not during backoff period.
+            if (backoff)
+                return 0;
+            if (first.spilling)
+                return 0;
+            if (first.needsReplay()) {
+                spilledBatches.add(first);
+                return 0;
+            }
+            if (size + first.sizeInBytes() > maxSize && !ready.isEmpty()) {
+                // there is a rare case that a single batch size is larger than the request size due
+                // to compression; in this case we will still eventually send this batch in a single
+                // request
+                return -1;
+            }
+            RecordBatch batch = deque.pollFirst();
+            clearOpenBatch(batch);
+            closeBatch(batch);
+            entry.recordCountHint = Math.max(batch.recordCount, entry.lastRecordCount);
+            entry.lastRecordCount = batch.recordCount;
+            ready.add(batch);
+            batch.drainedMs = now;
+            if (adaptiveLinger != null && !entry.priority) {
+                lingerSensor.record(lingerMs(entry), now);
+                adaptiveLinger.onDrain(entry, batch, now);
+            }
+            return batch.sizeInBytes();
+        }
+    }
+
+    /**
+     * Close the batch and learn the compression ratio of its topic from it. A batch deferring its compression is only
+     * closed for appends, it is compressed once drained.
+     */
+    private void closeBatch(RecordBatch batch) {
+        if (batch.isClosed())
+            return;
+        if (deferCompression) {
+            batch.closeForAppends();
+            return;
+        }
+        batch.close();
+        if (compression != CompressionType.NONE)
+            compressionRatios.updateEstimation(batch.topicPartition.topic(), compression, (float) batch.compressionRate());
     }
 
     /**
-     * Get the deque for the given topic-partition, creating it if necessary.
+     * Stop concurrent appends to a batch which is leaving its deque. Appenders that already reserved space in it
+     * finish their copy before the batch can be closed.
      */
-    private org.apache.bi_kafka.common.utils.Deque<RecordBatch> getOrCreateDeque(TopicPartition tp) {
-        org.apache.bi_kafka.common.utils.Deque<RecordBatch> d = this.batches.get(tp);
-        if (d != null)
-            return d;
-        d = new org.apache.bi_kafka.common.utils.ArrayDeque<RecordBatch>();
-        org.apache.bi_kafka.common.utils.Deque<RecordBatch> previous = this.batches.putIfAbsent(tp, d);
-        if (previous == null)
-            return d;
-        else
-            return previous;
+    private void clearOpenBatch(RecordBatch batch) {
+        if (!concurrentAppends)
+            return;
+        batch.seal();
+        PartitionBatchTable.Entry entry = batches.get(batch.topicPartition);
+        if (entry != null)
+            entry.open.compareAndSet(batch, null);
     }
 
     /**
-     * Deallocate the record batch
+     * Deallocate the record batch, returning its memory if {@link #releaseMemory(RecordBatch)} was not called yet
      */
     public void deallocate(RecordBatch batch) {
+        releaseMemory(batch);
         incomplete.remove(batch);
-        free.deallocate(batch.buffer(), batch.initialCapacity());
+    }
+
+    /**
+     * Return the buffer of a batch which is about to be completed to the pool, and its bytes to the quota of its topic,
+     * before its callbacks run. The callbacks only read the completions of the batch, and an executor running them may
+     * block the completing thread, whose buffer a callback sending more records could be waiting for. The batch stays
+     * incomplete for flushes until it is deallocated.
+     */
+    public void releaseMemory(RecordBatch batch) {
+        if (batch.memoryReleased)
+            return;
+        batch.memoryReleased = true;
+        BatchSpill.SpilledRecords spilled = batch.spilledRecords();
+        // the buffer of a spilled batch was returned when it was spilled
+        if (spilled != null)
+            spill.release(spilled);
+        else
+            free.deallocate(batch.buffer(), batch.initialCapacity());
+        releaseQuota(batch.topicPartition.topic(), batch.quotaBytes);
     }
     
     /**
@@ -442,7 +1322,10 @@ public final class RecordAccumulator {
     }
 
     /* Visible for testing */
-    Map<TopicPartition, org.apache.bi_kafka.common.utils.Deque<RecordBatch>> batches() {
+    Map<TopicPartition, Deque<RecordBatch>> batches() {
+        Map<TopicPartition, Deque<RecordBatch>> batches = new HashMap<TopicPartition, Deque<RecordBatch>>();
+        for (PartitionBatchTable.Entry entry : this.batches.all())
+            batches.put(entry.topicPartition, entry.deque);
         return Collections.unmodifiableMap(batches);
     }
     
@@ -467,6 +1350,11 @@ public final class RecordAccumulator {
         try {
             for (RecordBatch batch : this.incomplete.all())
                 batch.produceFuture.await();
+            // batches leave the incomplete set once sent, but their produce future waits for their callbacks
+            if (callbackExecutor != null) {
+                for (RecordBatch batch : callbackExecutor.pending())
+                    batch.produceFuture.await();
+            }
         } finally {
             this.flushesInProgress.decrementAndGet();
         }
@@ -496,23 +1384,33 @@ public final class RecordAccumulator {
      */
     private void abortBatches() {
         for (RecordBatch batch : incomplete.all()) {
-            org.apache.bi_kafka.common.utils.Deque<RecordBatch> dq = getDeque(batch.topicPartition);
+            Deque<RecordBatch> dq = batches.get(batch.topicPartition).deque;
             // Close the batch before aborting
             synchronized (dq) {
+                // a batch is spilled by an appending thread, it is aborted on a later pass once it is on disk
+                if (batch.spilling)
+                    continue;
+                clearOpenBatch(batch);
                 batch.close();
                 dq.remove(batch);
             }
+            releaseMemory(batch);
             batch.done(-1L, Record.NO_TIMESTAMP, new IllegalStateException("Producer is closed forcefully."));
             deallocate(batch);
         }
     }
 
-    public void mutePartition(TopicPartition tp) {
-        muted.add(tp);
+    public synchronized void mutePartition(TopicPartition tp) {
+        batches.getOrCreate(tp).muted = true;
     }
 
-    public void unmutePartition(TopicPartition tp) {
-        muted.remove(tp);
+    public synchronized void unmutePartition(TopicPartition tp) {
+        PartitionBatchTable.Entry entry = batches.get(tp);
+        if (entry != null) {
+            entry.muted = false;
+            // batches of muted partitions are not expired, check them again
+            addExpiryCandidate(entry);
+        }
     }
 
     /**
@@ -529,11 +1427,17 @@ public final class RecordAccumulator {
         public final FutureRecordMetadata future;
         public final boolean batchIsFull;
         public final boolean newBatchCreated;
+        public final boolean abortForNewBatch;
 
         public RecordAppendResult(FutureRecordMetadata future, boolean batchIsFull, boolean newBatchCreated) {
+            this(future, batchIsFull, newBatchCreated, false);
+        }
+
+        public RecordAppendResult(FutureRecordMetadata future, boolean batchIsFull, boolean newBatchCreated, boolean abortForNewBatch) {
             this.future = future;
             this.batchIsFull = batchIsFull;
             this.newBatchCreated = newBatchCreated;
+            this.abortForNewBatch = abortForNewBatch;
         }
     }
 
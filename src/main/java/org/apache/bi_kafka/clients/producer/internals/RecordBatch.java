@@ -19,18 +19,20 @@ import org.apache.bi_kafka.common.errors.TimeoutException;
 import org.apache.bi_kafka.common.record.MemoryRecords;
 import org.apache.bi_kafka.common.record.MemoryRecordsBuilder;
 import org.apache.bi_kafka.common.record.Record;
+import org.apache.bi_kafka.common.record.RecordValueWriter;
+import org.apache.bi_kafka.common.record.Records;
 import org.bi_slf4j.Logger;
 import org.bi_slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A batch of records that is or will be sent.
  * 
- * This class is not thread safe and external synchronization must be used when modifying it
+ * This class is not thread safe and external synchronization must be used when modifying it, with the exception of
+ * {@link #tryAppendConcurrently(long, byte[], byte[], Callback, long)} on a batch built on a concurrent
+ * {@link MemoryRecordsBuilder}.
  */
 public final class RecordBatch {
 
@@ -40,7 +42,9 @@ public final class RecordBatch {
     final TopicPartition topicPartition;
     final ProduceRequestResult produceFuture;
 
-    private final List<Thunk> thunks = new ArrayList<Thunk>();
+    private final RecordCompletions completions;
+    private final ProducerInterceptors<?, ?> interceptors;
+    private final CallbackExecutor callbackExecutor;
     private final MemoryRecordsBuilder recordsBuilder;
 
     volatile int attempts;
@@ -48,12 +52,38 @@ public final class RecordBatch {
     int maxRecordSize;
     long drainedMs;
     long lastAttemptMs;
-    long lastAppendTime;
+    volatile long lastAppendTime;
+    // the bytes charged to the memory quota of the topic, see TopicMemoryQuotas
+    int quotaBytes;
+    // the number of records of the recent batches of the partition, 0 if unknown
+    int recordCountHint;
+    // whether the batch holds records of a batch which was split
+    boolean split;
+    // whether the batch is being written to disk, it stays in its deque meanwhile, guarded by the deque lock
+    boolean spilling;
+    // whether the buffer and quota bytes of the batch were returned, only accessed by the thread completing the batch
+    boolean memoryReleased;
     private String expiryErrorMessage;
     private AtomicBoolean completed;
     private boolean retry;
+    // the location of the records while they are spilled to disk, see BatchSpill
+    private volatile BatchSpill.SpilledRecords spilled;
+    // the records read back from disk and the buffer holding them, which replaces the buffer of the builder
+    private volatile MemoryRecords replayedRecords;
+    private volatile ByteBuffer replayBuffer;
+    private volatile RuntimeException replayError;
 
     public RecordBatch(TopicPartition tp, MemoryRecordsBuilder recordsBuilder, long now) {
+        this(tp, recordsBuilder, null, null, now);
+    }
+
+    /**
+     * @param interceptors The interceptors to notify of the completion of every record of the batch, may be null
+     * @param callbackExecutor The executor running the callbacks of the batch, null to run them on the thread
+     *        completing the batch
+     */
+    public RecordBatch(TopicPartition tp, MemoryRecordsBuilder recordsBuilder, ProducerInterceptors<?, ?> interceptors,
+                       CallbackExecutor callbackExecutor, long now) {
         this.createdMs = now;
         this.lastAttemptMs = now;
         this.recordsBuilder = recordsBuilder;
@@ -61,6 +91,9 @@ public final class RecordBatch {
         this.lastAppendTime = createdMs;
         this.produceFuture = new ProduceRequestResult(topicPartition);
         this.completed = new AtomicBoolean();
+        this.completions = new RecordCompletions();
+        this.interceptors = interceptors;
+        this.callbackExecutor = callbackExecutor;
     }
 
     /**
@@ -73,19 +106,90 @@ public final class RecordBatch {
             return null;
         } else {
             long checksum = this.recordsBuilder.append(timestamp, key, value);
-            this.maxRecordSize = Math.max(this.maxRecordSize, Record.recordSize(key, value));
+            int recordSize = Record.recordSize(key, value);
+            this.maxRecordSize = Math.max(this.maxRecordSize, recordSize);
+            this.lastAppendTime = now;
+            if (this.recordCount == 0)
+                reserveCompletions(recordSize);
+            completions.add(this.recordCount, timestamp, checksum, key == null ? -1 : key.length,
+                            value == null ? -1 : value.length, callback);
+            return new FutureRecordMetadata(this.produceFuture, this.completions, this.recordCount++);
+        }
+    }
+
+    /**
+     * Append the record to the current record set, letting the value writer write the value straight into the batch
+     * buffer, and return the relative offset within that record set
+     *
+     * @return The RecordSend corresponding to this record or null if there isn't sufficient room for the upper bound
+     *         of the value.
+     */
+    public FutureRecordMetadata tryAppend(long timestamp, byte[] key, RecordValueWriter value, Callback callback, long now) {
+        if (!recordsBuilder.hasRoomFor(key, value)) {
+            return null;
+        } else {
+            int sizeBefore = this.recordsBuilder.sizeInBytes();
+            long checksum = this.recordsBuilder.append(timestamp, key, value);
+            int recordSize = this.recordsBuilder.sizeInBytes() - sizeBefore - Records.LOG_OVERHEAD;
+            int valueSize = value.sizeUpperBound() < 0 ? -1 : recordSize - Record.recordSize(key, null);
+            this.maxRecordSize = Math.max(this.maxRecordSize, recordSize);
+            this.lastAppendTime = now;
+            if (this.recordCount == 0)
+                reserveCompletions(recordSize);
+            completions.add(this.recordCount, timestamp, checksum, key == null ? -1 : key.length, valueSize, callback);
+            return new FutureRecordMetadata(this.produceFuture, this.completions, this.recordCount++);
+        }
+    }
+
+    /**
+     * Append the record without holding the deque lock. Concurrent writers reserve disjoint regions of the batch
+     * buffer and copy their records in parallel; the batch can only be closed once all of them have committed.
+     * Callbacks run in offset order, as in the synchronized mode, so the callbacks of the records appended by one
+     * thread run in the order of its appends.
+     *
+     * @return The RecordSend corresponding to this record or null if the batch is sealed or there isn't sufficient room.
+     */
+    public FutureRecordMetadata tryAppendConcurrently(long timestamp, byte[] key, byte[] value, Callback callback, long now) {
+        long slot = recordsBuilder.reserve(timestamp, key, value);
+        if (slot < 0)
+            return null;
+        try {
+            long checksum = recordsBuilder.writeReserved(slot, timestamp, key, value);
+            int recordSize = Record.recordSize(key, value);
+            // racy update, this only feeds the record-size-max metric
+            if (recordSize > this.maxRecordSize)
+                this.maxRecordSize = recordSize;
             this.lastAppendTime = now;
-            FutureRecordMetadata future = new FutureRecordMetadata(this.produceFuture, this.recordCount,
-                                                                   timestamp, checksum,
-                                                                   key == null ? -1 : key.length,
-                                                                   value == null ? -1 : value.length);
-            if (callback != null)
-                thunks.add(new Thunk(callback, future));
-            this.recordCount++;
-            return future;
+            int index = MemoryRecordsBuilder.reservedIndex(slot);
+            if (index == 0)
+                reserveCompletions(recordSize);
+            completions.addConcurrently(index, timestamp, checksum, key == null ? -1 : key.length,
+                                        value == null ? -1 : value.length, callback);
+            return new FutureRecordMetadata(this.produceFuture, this.completions, index);
+        } finally {
+            recordsBuilder.commitReserved();
         }
     }
 
+    /**
+     * Size the completions for the number of records like the one of the given size that fit into the batch, at the
+     * estimated compression ratio. A partition whose batches are drained before they fill up, e.g. with a short linger,
+     * is sized for about as many records as its recent batches instead, and only grows to the full batch if needed.
+     */
+    private void reserveCompletions(int recordSize) {
+        float ratio = Math.max(recordsBuilder.estimatedCompressionRatio(), 0.05f);
+        int fitting = (int) (recordsBuilder.initialCapacity() / ((Records.LOG_OVERHEAD + recordSize) * ratio)) + 1;
+        int expected = recordCountHint <= 0 ? fitting : Math.min(fitting, recordCountHint + recordCountHint / 4 + 1);
+        completions.ensureCapacity(expected, fitting);
+    }
+
+    /**
+     * Stop accepting concurrent appends, the batch is left writable for the appends already in progress.
+     */
+    public void seal() {
+        recordsBuilder.seal();
+    }
+
     /**
      * Complete the request.
      * 
@@ -103,34 +207,63 @@ public final class RecordBatch {
         // Set the future before invoking the callbacks as we rely on its state for the `onCompletion` call
         produceFuture.set(baseOffset, logAppendTime, exception);
 
-        // execute callbacks
-        for (Thunk thunk : thunks) {
-            try {
-                if (exception == null) {
-                    RecordMetadata metadata = thunk.future.value();
-                    thunk.callback.onCompletion(metadata, null);
-                } else {
-                    thunk.callback.onCompletion(null, exception);
-                }
-            } catch (Exception e) {
-                log.error("Error executing user-provided callback on message for topic-partition '{}'", topicPartition, e);
-            }
-        }
+        if (callbackExecutor != null && (completions.hasCallbacks() || interceptors != null))
+            callbackExecutor.execute(this);
+        else
+            fireCallbacks();
+    }
 
+    /**
+     * Complete the batch once its records were moved to the batches it was split into, which run their callbacks. The
+     * future of each record must have been chained to the future of the record in its new batch.
+     */
+    void splitDone() {
+        if (completed.getAndSet(true))
+            throw new IllegalStateException("Batch has already been completed");
+        produceFuture.set(-1L, Record.NO_TIMESTAMP, null);
         produceFuture.done();
     }
 
     /**
-     * A callback and the associated FutureRecordMetadata argument to pass to it.
+     * The callback of the record at the given index, or null if it has none
      */
-    final private static class Thunk {
-        final Callback callback;
-        final FutureRecordMetadata future;
+    Callback callback(int index) {
+        return completions.callback(index);
+    }
+
+    /**
+     * Let the future of the record at the given index follow the given future of a batch the record was moved to
+     */
+    void chain(int index, FutureRecordMetadata future) {
+        completions.chain(index, future);
+    }
 
-        public Thunk(Callback callback, FutureRecordMetadata future) {
-            this.callback = callback;
-            this.future = future;
+    /**
+     * Run the callbacks of the records and complete the produce future. The result of the batch must have been set.
+     */
+    void fireCallbacks() {
+        RuntimeException exception = produceFuture.error();
+        if (completions.hasCallbacks() || interceptors != null) {
+            // the interceptors are notified of every record, with a placeholder metadata if the batch failed
+            RecordMetadata failedMetadata = exception == null || interceptors == null ? null :
+                    new RecordMetadata(topicPartition, -1, -1, Record.NO_TIMESTAMP, -1, -1, -1);
+            for (int i = 0; i < completions.count(); i++) {
+                Callback callback = completions.callback(i);
+                if (callback == null && interceptors == null)
+                    continue;
+                try {
+                    RecordMetadata metadata = exception == null ? completions.metadata(produceFuture, i) : null;
+                    if (interceptors != null)
+                        interceptors.onAcknowledgement(metadata == null ? failedMetadata : metadata, exception);
+                    if (callback != null)
+                        callback.onCompletion(metadata, exception);
+                } catch (Exception e) {
+                    log.error("Error executing user-provided callback on message for topic-partition '{}'", topicPartition, e);
+                }
+            }
         }
+
+        produceFuture.done();
     }
 
     @Override
@@ -158,10 +291,23 @@ public final class RecordBatch {
 
         boolean expired = expiryErrorMessage != null;
         if (expired)
-            close();
+            closeForAppends();
         return expired;
     }
 
+    /**
+     * The earliest time at which {@link #maybeExpire(int, long, long, long, boolean)} can expire this batch. It only
+     * moves earlier if the batch fills up or is retried.
+     */
+    long expiryCheckMs(int requestTimeoutMs, long retryBackoffMs, long lingerMs, boolean isFull) {
+        if (this.inRetry())
+            return this.lastAttemptMs + retryBackoffMs + requestTimeoutMs + 1;
+        long expiryMs = this.createdMs + lingerMs + requestTimeoutMs + 1;
+        if (isFull)
+            expiryMs = Math.min(expiryMs, this.lastAppendTime + requestTimeoutMs + 1);
+        return expiryMs;
+    }
+
     /**
      * Completes the produce future with timeout exception and invokes callbacks.
      * This method should be invoked only if {@link #maybeExpire(int, long, long, long, boolean)}
@@ -189,10 +335,20 @@ public final class RecordBatch {
     }
 
     public MemoryRecords records() {
+        if (replayError != null)
+            throw replayError;
+        if (replayedRecords != null)
+            return replayedRecords;
+        if (spilled != null)
+            throw new IllegalStateException("The records of the batch are spilled to disk");
         return recordsBuilder.build();
     }
 
     public int sizeInBytes() {
+        if (replayedRecords != null)
+            return replayedRecords.sizeInBytes();
+        if (spilled != null)
+            return spilled.sizeInBytes();
         return recordsBuilder.sizeInBytes();
     }
 
@@ -204,16 +360,85 @@ public final class RecordBatch {
         return recordsBuilder.isFull();
     }
 
+    public boolean isClosed() {
+        return recordsBuilder.isClosed();
+    }
+
     public void close() {
         recordsBuilder.close();
+        if (recordsBuilder.isConcurrent())
+            this.recordCount = recordsBuilder.numRecords();
+    }
+
+    /**
+     * Stop appends to the batch. This closes it, unless it defers the compression of its records, which is then left
+     * to {@link #close()}.
+     */
+    public void closeForAppends() {
+        if (recordsBuilder.isCompressionDeferred())
+            recordsBuilder.closeForRecordAppends();
+        else
+            recordsBuilder.close();
+        if (recordsBuilder.isConcurrent())
+            this.recordCount = recordsBuilder.numRecords();
     }
 
     public ByteBuffer buffer() {
-        return recordsBuilder.buffer();
+        return replayBuffer != null ? replayBuffer : recordsBuilder.buffer();
     }
 
     public int initialCapacity() {
-        return recordsBuilder.initialCapacity();
+        return replayBuffer != null ? replayBuffer.capacity() : recordsBuilder.initialCapacity();
+    }
+
+    /**
+     * Record that the closed batch was written to disk and its buffer returned to the pool
+     */
+    void spilled(BatchSpill.SpilledRecords spilled) {
+        this.spilled = spilled;
+        this.replayedRecords = null;
+        this.replayBuffer = null;
+    }
+
+    /**
+     * The location of the records on disk, or null if the batch is not spilled or was read back
+     */
+    BatchSpill.SpilledRecords spilledRecords() {
+        return spilled;
+    }
+
+    boolean isSpilled() {
+        return spilled != null;
+    }
+
+    /**
+     * Whether the records of the batch are on disk and were not tried to be read back yet
+     */
+    boolean needsReplay() {
+        return spilled != null && replayError == null;
+    }
+
+    /**
+     * Whether the records of the batch were read back from disk
+     */
+    boolean isReplayed() {
+        return replayBuffer != null;
+    }
+
+    /**
+     * Record that the records of the spilled batch were read back into the given buffer from the pool
+     */
+    void replayed(MemoryRecords records, ByteBuffer buffer) {
+        this.replayedRecords = records;
+        this.replayBuffer = buffer;
+        this.spilled = null;
+    }
+
+    /**
+     * Record that the records of the spilled batch could not be read back, which fails the batch when it is sent
+     */
+    void replayFailed(RuntimeException e) {
+        this.replayError = e;
     }
 
     public boolean isWritable() {
@@ -0,0 +1,177 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.bi_kafka.clients.producer.internals;
+
+import org.apache.bi_kafka.clients.producer.Callback;
+import org.apache.bi_kafka.clients.producer.RecordMetadata;
+
+/**
+ * The per-record state needed to complete the records of a batch. It is kept in parallel arrays indexed by the
+ * position of the record in the batch, so appending a record does not allocate a holder for its metadata or
+ * callback, and the {@link FutureRecordMetadata} handed out for it is a flyweight over one index.
+ * <p>
+ * Records are added under the deque lock of their partition, except on a batch open for concurrent appends whose
+ * writers add their reserved index in any order through {@link #addConcurrently(int, long, long, int, int, Callback)}.
+ * The arrays are only read once the batch is completed, which happens after all the appends to it.
+ */
+public final class RecordCompletions {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // allocated on the first record, or sized up front by ensureCapacity
+    private long[] timestamps;
+    // the checksums are unsigned 32 bit values
+    private int[] checksums;
+    private int[] keySizes;
+    private int[] valueSizes;
+    // only allocated once a record with a callback is added
+    private Callback[] callbacks;
+    // the futures of the records in the batches this one was split into, see RecordAccumulator#splitAndReenqueue
+    private FutureRecordMetadata[] splitFutures;
+    private int count;
+    // the capacity to grow to once the expected one is exceeded, 0 to double the capacity
+    private int fullCapacity;
+
+    public RecordCompletions() {
+        this.count = 0;
+    }
+
+    /**
+     * Make room for the expected number of records, so that adding them does not grow the arrays again. This is meant
+     * to be called once per batch, when the number of records in it can first be estimated.
+     *
+     * @param capacity The expected number of records
+     * @param fullCapacity The number of records fitting into the batch, which the arrays grow to at once if more than
+     *        the expected number of records are added
+     */
+    public synchronized void ensureCapacity(int capacity, int fullCapacity) {
+        this.fullCapacity = fullCapacity;
+        if (timestamps == null || capacity > timestamps.length)
+            resize(capacity);
+    }
+
+    /**
+     * Add the record at the given index of the batch. The caller must hold the deque lock.
+     *
+     * @param index The position of the record in the batch, i.e. its relative offset
+     * @param timestamp The create time of the record
+     * @param checksum The checksum of the record
+     * @param serializedKeySize The size of the serialized key or -1 if the key is null
+     * @param serializedValueSize The size of the serialized value or -1 if the value is null
+     * @param callback The callback to invoke on completion, may be null
+     */
+    public void add(int index, long timestamp, long checksum, int serializedKeySize, int serializedValueSize, Callback callback) {
+        if (timestamps == null || index >= timestamps.length)
+            grow(index + 1);
+        timestamps[index] = timestamp;
+        checksums[index] = (int) checksum;
+        keySizes[index] = serializedKeySize;
+        valueSizes[index] = serializedValueSize;
+        if (callback != null) {
+            if (callbacks == null)
+                callbacks = new Callback[timestamps.length];
+            callbacks[index] = callback;
+        }
+        if (index >= count)
+            count = index + 1;
+    }
+
+    /**
+     * Add the record at its reserved index of a batch open for concurrent appends.
+     */
+    public synchronized void addConcurrently(int index, long timestamp, long checksum, int serializedKeySize,
+                                             int serializedValueSize, Callback callback) {
+        add(index, timestamp, checksum, serializedKeySize, serializedValueSize, callback);
+    }
+
+    private void grow(int minCapacity) {
+        int length = timestamps == null ? 0 : timestamps.length;
+        int capacity = fullCapacity > length ? fullCapacity : Math.max(length * 2, INITIAL_CAPACITY);
+        resize(Math.max(minCapacity, capacity));
+    }
+
+    private void resize(int capacity) {
+        int length = timestamps == null ? 0 : timestamps.length;
+        timestamps = copyOf(timestamps, capacity);
+        checksums = copyOf(checksums, capacity);
+        keySizes = copyOf(keySizes, capacity);
+        valueSizes = copyOf(valueSizes, capacity);
+        if (callbacks != null) {
+            Callback[] grown = new Callback[capacity];
+            System.arraycopy(callbacks, 0, grown, 0, length);
+            callbacks = grown;
+        }
+    }
+
+    private static long[] copyOf(long[] array, int length) {
+        long[] copy = new long[length];
+        if (array != null)
+            System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        int[] copy = new int[length];
+        if (array != null)
+            System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+
+    /**
+     * The number of records, i.e. one more than the highest index added
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Whether any record was added with a callback
+     */
+    public boolean hasCallbacks() {
+        return callbacks != null;
+    }
+
+    /**
+     * The callback of the record at the given index or null if it has none
+     */
+    public Callback callback(int index) {
+        return callbacks == null ? null : callbacks[index];
+    }
+
+    /**
+     * Let the future of the record at the given index follow the future of the record in the batch it was moved to
+     */
+    public synchronized void chain(int index, FutureRecordMetadata future) {
+        if (splitFutures == null)
+            splitFutures = new FutureRecordMetadata[count];
+        splitFutures[index] = future;
+    }
+
+    /**
+     * The future of the record at the given index in the batch it was moved to, or null if its batch was not split.
+     * Only meaningful once the batch is completed.
+     */
+    public FutureRecordMetadata chained(int index) {
+        return splitFutures == null ? null : splitFutures[index];
+    }
+
+    /**
+     * The metadata of the record at the given index of a batch completed with the given result
+     */
+    public RecordMetadata metadata(ProduceRequestResult result, int index) {
+        long timestamp = result.hasLogAppendTime() ? result.logAppendTime() : timestamps[index];
+        return new RecordMetadata(result.topicPartition(), result.baseOffset(), index, timestamp, checksums[index] & 0xffffffffL,
+                                  keySizes[index], valueSizes[index]);
+    }
+
+}
@@ -0,0 +1,271 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.bi_kafka.clients.producer.internals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.bi_kafka.common.MetricName;
+import org.apache.bi_kafka.common.errors.TimeoutException;
+import org.apache.bi_kafka.common.metrics.Measurable;
+import org.apache.bi_kafka.common.metrics.MetricConfig;
+import org.apache.bi_kafka.common.metrics.Metrics;
+import org.apache.bi_kafka.common.metrics.Quota;
+import org.apache.bi_kafka.common.metrics.QuotaViolationException;
+import org.apache.bi_kafka.common.metrics.Sensor;
+import org.apache.bi_kafka.common.metrics.stats.Avg;
+import org.apache.bi_kafka.common.metrics.stats.Max;
+import org.apache.bi_kafka.common.metrics.stats.Rate;
+import org.apache.bi_kafka.common.utils.Time;
+
+/**
+ * Paces the sends of the producer to a number of bytes and records per second, for the whole producer and for each
+ * topic, so that the producer does not burst above what the brokers would throttle it to anyway.
+ * <p>
+ * Each limit is a token bucket refilled at the rate of its quota, which holds at most {@link #BURST_MS} worth of tokens.
+ * A record takes its tokens even if the bucket does not hold enough of them, leaving it in debt, and the sender waits
+ * until the debt is paid back. This keeps the long term rate at the quota whatever the size of the records, while the
+ * sends of a thread are spread evenly rather than let through in bursts once per window. In reject mode a record is
+ * refused instead if any of its buckets lacks the tokens, unless that bucket is full, so a record larger than the burst
+ * still gets through.
+ */
+public final class SendRateLimiter {
+
+    /**
+     * The time worth of tokens a bucket holds when it is full
+     */
+    static final long BURST_MS = 100;
+
+    private final List<Bucket> buckets;
+    private final Quota topicBytesQuota;
+    private final Quota topicRecordsQuota;
+    private final ConcurrentMap<String, List<Bucket>> topicBuckets;
+    private final boolean reject;
+    private final Sensor throttleTime;
+    private final Sensor rejectedRecords;
+    private final Metrics metrics;
+    private final Time time;
+
+    /**
+     * @param bytesPerSec The bytes per second of the producer, 0 for no limit
+     * @param recordsPerSec The records per second of the producer, 0 for no limit
+     * @param topicBytesPerSec The bytes per second of each topic, 0 for no limit
+     * @param topicRecordsPerSec The records per second of each topic, 0 for no limit
+     * @param reject Whether to refuse the records which are over the limits rather than wait for them to be in
+     */
+    public SendRateLimiter(long bytesPerSec, long recordsPerSec, long topicBytesPerSec, long topicRecordsPerSec,
+                           boolean reject, Metrics metrics, Time time) {
+        this.metrics = metrics;
+        this.time = time;
+        this.reject = reject;
+        Map<String, String> noTags = Collections.emptyMap();
+        this.buckets = buckets(bytesPerSec > 0 ? Quota.upperBound(bytesPerSec) : null,
+                recordsPerSec > 0 ? Quota.upperBound(recordsPerSec) : null, "producer-metrics", noTags);
+        for (Bucket bucket : buckets)
+            bucket.registerMetric();
+        this.topicBytesQuota = topicBytesPerSec > 0 ? Quota.upperBound(topicBytesPerSec) : null;
+        this.topicRecordsQuota = topicRecordsPerSec > 0 ? Quota.upperBound(topicRecordsPerSec) : null;
+        this.topicBuckets = new ConcurrentHashMap<String, List<Bucket>>();
+
+        String metricGrpName = "producer-metrics";
+        this.throttleTime = metrics.sensor("send-throttle-time");
+        MetricName metricName = metrics.metricName("send-throttle-time-avg", metricGrpName,
+                "The average time in ms a send was delayed by the send rate limits");
+        this.throttleTime.add(metricName, new Avg());
+        metricName = metrics.metricName("send-throttle-time-max", metricGrpName,
+                "The maximum time in ms a send was delayed by the send rate limits");
+        this.throttleTime.add(metricName, new Max());
+        this.rejectedRecords = metrics.sensor("send-rate-limit-rejected-records");
+        metricName = metrics.metricName("send-rate-limit-rejected-rate", metricGrpName,
+                "The average per-second number of records refused for being over the send rate limits");
+        this.rejectedRecords.add(metricName, new Rate());
+    }
+
+    private List<Bucket> buckets(Quota bytesQuota, Quota recordsQuota, String metricGrpName, Map<String, String> tags) {
+        List<Bucket> buckets = new ArrayList<Bucket>(2);
+        long nowNs = time.nanoseconds();
+        if (bytesQuota != null) {
+            MetricName metricName = metrics.metricName("send-rate-limit-byte-tokens", metricGrpName,
+                    "The bytes the send rate limit lets through right away, negative while the sends are paced", tags);
+            buckets.add(new Bucket(bytesQuota, true, metricName, nowNs));
+        }
+        if (recordsQuota != null) {
+            MetricName metricName = metrics.metricName("send-rate-limit-record-tokens", metricGrpName,
+                    "The records the send rate limit lets through right away, negative while the sends are paced", tags);
+            buckets.add(new Bucket(recordsQuota, false, metricName, nowNs));
+        }
+        return buckets;
+    }
+
+    private List<Bucket> topicBuckets(String topic) {
+        if (topicBytesQuota == null && topicRecordsQuota == null)
+            return Collections.emptyList();
+        List<Bucket> buckets = topicBuckets.get(topic);
+        if (buckets != null)
+            return buckets;
+        buckets = buckets(topicBytesQuota, topicRecordsQuota, "producer-topic-metrics", Collections.singletonMap("topic", topic));
+        List<Bucket> current = topicBuckets.putIfAbsent(topic, buckets);
+        if (current != null)
+            return current;
+        // the gauges take the lock of the limiter, so they are registered outside of it
+        for (Bucket bucket : buckets)
+            bucket.registerMetric();
+        return buckets;
+    }
+
+    /**
+     * Take the tokens of a record of the given size, waiting until the sends are back within the limits
+     *
+     * @return The time in ms waited
+     * @throws TimeoutException If the record would have to wait longer than the given time, in which case it takes no
+     *         tokens
+     * @throws QuotaViolationException In reject mode, if the record is over a limit. Its value and bound are the
+     *         tokens the record needs and those left in the bucket of the limit.
+     */
+    public long acquire(String topic, int size, long maxTimeToBlockMs) throws InterruptedException {
+        List<Bucket> topicBuckets = topicBuckets(topic);
+        long delayNs = 0;
+        QuotaViolationException violation = null;
+        synchronized (this) {
+            long nowNs = time.nanoseconds();
+            for (Bucket bucket : buckets)
+                bucket.refill(nowNs);
+            for (Bucket bucket : topicBuckets)
+                bucket.refill(nowNs);
+            if (reject) {
+                Bucket exhausted = exhausted(buckets, size);
+                if (exhausted == null)
+                    exhausted = exhausted(topicBuckets, size);
+                if (exhausted != null)
+                    violation = new QuotaViolationException(exhausted.metricName, exhausted.amount(size), exhausted.tokens);
+            } else {
+                for (Bucket bucket : buckets)
+                    delayNs = Math.max(delayNs, bucket.delayNs(size));
+                for (Bucket bucket : topicBuckets)
+                    delayNs = Math.max(delayNs, bucket.delayNs(size));
+                if (delayNs > TimeUnit.MILLISECONDS.toNanos(maxTimeToBlockMs))
+                    throw new TimeoutException("Failed to send a record to topic " + topic + " within the configured max blocking time "
+                                               + maxTimeToBlockMs + " ms, the send rate limits would delay it for "
+                                               + TimeUnit.NANOSECONDS.toMillis(delayNs) + " ms.");
+            }
+            if (violation == null) {
+                for (Bucket bucket : buckets)
+                    bucket.take(size);
+                for (Bucket bucket : topicBuckets)
+                    bucket.take(size);
+            }
+        }
+        // the sensors take the lock of the metrics, which the gauges of the buckets are read under
+        if (violation != null) {
+            this.rejectedRecords.record();
+            throw violation;
+        }
+        long delayMs = TimeUnit.NANOSECONDS.toMillis(delayNs);
+        this.throttleTime.record(delayMs);
+        if (delayNs > 0)
+            TimeUnit.NANOSECONDS.sleep(delayNs);
+        return delayMs;
+    }
+
+    /**
+     * Give back the tokens a record took with {@link #acquire(String, int, long)} if it is not sent after all, e.g.
+     * because it failed to be appended. The time the record waited for them is not given back.
+     */
+    public void release(String topic, int size) {
+        List<Bucket> topicBuckets = topicBuckets(topic);
+        synchronized (this) {
+            long nowNs = time.nanoseconds();
+            for (Bucket bucket : buckets)
+                bucket.give(size, nowNs);
+            for (Bucket bucket : topicBuckets)
+                bucket.give(size, nowNs);
+        }
+    }
+
+    private static Bucket exhausted(List<Bucket> buckets, int size) {
+        for (Bucket bucket : buckets) {
+            if (bucket.tokens < Math.min(bucket.amount(size), bucket.burst))
+                return bucket;
+        }
+        return null;
+    }
+
+    /**
+     * The tokens of one limit, guarded by the lock of the limiter
+     */
+    private final class Bucket {
+        private final boolean perByte;
+        private final double tokensPerNs;
+        private final double burst;
+        private final MetricName metricName;
+        private double tokens;
+        private long lastRefillNs;
+
+        private Bucket(Quota quota, boolean perByte, MetricName metricName, long nowNs) {
+            this.perByte = perByte;
+            this.tokensPerNs = quota.bound() / TimeUnit.SECONDS.toNanos(1);
+            this.burst = quota.bound() * BURST_MS / 1000;
+            this.metricName = metricName;
+            this.tokens = burst;
+            this.lastRefillNs = nowNs;
+        }
+
+        private void registerMetric() {
+            metrics.addMetric(metricName, new Measurable() {
+                public double measure(MetricConfig config, long now) {
+                    synchronized (SendRateLimiter.this) {
+                        refill(time.nanoseconds());
+                        return tokens;
+                    }
+                }
+            });
+        }
+
+        private double amount(int size) {
+            return perByte ? size : 1;
+        }
+
+        private void refill(long nowNs) {
+            if (nowNs > lastRefillNs) {
+                tokens = Math.min(burst, tokens + (nowNs - lastRefillNs) * tokensPerNs);
+                lastRefillNs = nowNs;
+            }
+        }
+
+        /**
+         * The time until the bucket is out of debt once it gives the tokens of the record
+         */
+        private long delayNs(int size) {
+            double left = tokens - amount(size);
+            return left >= 0 ? 0 : (long) Math.ceil(-left / tokensPerNs);
+        }
+
+        private void take(int size) {
+            tokens -= amount(size);
+        }
+
+        private void give(int size, long nowNs) {
+            refill(nowNs);
+            tokens = Math.min(burst, tokens + amount(size));
+        }
+    }
+}
@@ -30,6 +30,7 @@ import org.apache.bi_kafka.common.metrics.stats.Max;
 import org.apache.bi_kafka.common.metrics.stats.Rate;
 import org.apache.bi_kafka.common.protocol.Errors;
 import org.apache.bi_kafka.common.record.MemoryRecords;
+import org.apache.bi_kafka.common.record.Record;
 import org.apache.bi_kafka.common.requests.ProduceRequest;
 import org.apache.bi_kafka.common.requests.ProduceResponse;
 import org.apache.bi_kafka.common.utils.Time;
@@ -39,6 +40,7 @@ import org.bi_slf4j.Logger;
 import org.bi_slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * The background thread that handles the sending of produce requests to the Kafka cluster. This thread makes metadata
@@ -84,6 +86,30 @@ public class Sender implements Runnable {
     /* the max time to wait for the server to respond to the request*/
     private final int requestTimeout;
 
+    /* the senders sharing the accumulator, each sending to its own subset of the nodes, null for a single sender */
+    private final SenderGroup group;
+
+    /* the index of this sender in its group */
+    private final int shard;
+
+    /* the compressor of the drained batches if their compression is deferred to compression threads, null otherwise */
+    private final BatchCompressor compressor;
+
+    /* the requests whose batches have been compressed, waiting to be sent */
+    private final ConcurrentLinkedQueue<CompressedRequest> compressedRequests;
+
+    /* the nodes with a request being compressed, which are not drained again until it is sent */
+    private final Set<Integer> compressingNodes;
+
+    /* the records waiting for the metadata of their topic, appended by the sender updating the metadata, may be null */
+    private final MetadataWaitQueue<?, ?> waitQueue;
+
+    /* the nodes to connect to ahead of the first produce request, see SenderGroup#awaitReady */
+    private final ConcurrentLinkedQueue<ConnectionWarmUp> warmUps;
+
+    /* the in-flight requests and latency per node, for a load-aware partitioner, may be null */
+    private final NodeLoadTracker load;
+
     public Sender(KafkaClient client,
                   Metadata metadata,
                   RecordAccumulator accumulator,
@@ -94,6 +120,25 @@ public class Sender implements Runnable {
                   Metrics metrics,
                   Time time,
                   int requestTimeout) {
+        this(client, metadata, accumulator, guaranteeMessageOrder, maxRequestSize, acks, retries, metrics, time,
+             requestTimeout, null, 0, null, null, null);
+    }
+
+    public Sender(KafkaClient client,
+                  Metadata metadata,
+                  RecordAccumulator accumulator,
+                  boolean guaranteeMessageOrder,
+                  int maxRequestSize,
+                  short acks,
+                  int retries,
+                  Metrics metrics,
+                  Time time,
+                  int requestTimeout,
+                  SenderGroup group,
+                  int shard,
+                  BatchCompressor compressor,
+                  MetadataWaitQueue<?, ?> waitQueue,
+                  NodeLoadTracker load) {
         this.client = client;
         this.accumulator = accumulator;
         this.metadata = metadata;
@@ -103,8 +148,16 @@ public class Sender implements Runnable {
         this.acks = acks;
         this.retries = retries;
         this.time = time;
-        this.sensors = new SenderMetrics(metrics);
         this.requestTimeout = requestTimeout;
+        this.group = group;
+        this.shard = shard;
+        this.compressor = compressor;
+        this.compressedRequests = new ConcurrentLinkedQueue<CompressedRequest>();
+        this.compressingNodes = new HashSet<Integer>();
+        this.waitQueue = waitQueue;
+        this.warmUps = new ConcurrentLinkedQueue<ConnectionWarmUp>();
+        this.load = load;
+        this.sensors = new SenderMetrics(metrics);
     }
 
     /**
@@ -127,14 +180,24 @@ public class Sender implements Runnable {
         // okay we stopped accepting requests but there may still be
         // requests in the accumulator or waiting for acknowledgment,
         // wait until these are completed.
-        while (!forceClose && (this.accumulator.hasUnsent() || this.client.inFlightRequestCount() > 0)) {
+        while (!forceClose && (this.accumulator.hasUnsent() || this.client.inFlightRequestCount() > 0 || !compressingNodes.isEmpty())) {
             try {
                 run(time.milliseconds());
             } catch (Exception e) {
                 log.error("Uncaught error in kafka producer I/O thread: ", e);
             }
         }
-        if (forceClose) {
+        if (waitQueue != null) {
+            // the accumulator no longer accepts appends
+            waitQueue.abort(new IllegalStateException("Producer is closed before the metadata of the topic was available."));
+        }
+        // with several senders, the last one to stop fails the batches left, once no other sender can complete them
+        boolean last = group == null || group.stopped();
+        if (group != null) {
+            // the other senders may be waiting for this one to drain or complete its batches before stopping
+            group.wakeup();
+        }
+        if (forceClose && last) {
             // We need to fail all the incomplete batches and wake up the threads waiting on
             // the futures.
             this.accumulator.abortIncompleteBatches();
@@ -155,7 +218,14 @@ public class Sender implements Runnable {
      *            The current POSIX time in milliseconds
      */
     void run(long now) {
+        if (compressor != null)
+            sendCompressedRequests(now);
+
         Cluster cluster = metadata.fetch();
+        // append the records which were waiting for the metadata of their topic
+        if (waitQueue != null && waitQueue.poll(cluster, now) && group != null)
+            group.wakeup();
+
         // get the list of partitions with data ready to send
         RecordAccumulator.ReadyCheckResult result = this.accumulator.ready(cluster, now);
 
@@ -166,7 +236,7 @@ public class Sender implements Runnable {
             // and request metadata update, since there are messages to send to the topic.
             for (String topic : result.unknownLeaderTopics)
                 this.metadata.add(topic);
-            this.metadata.requestUpdate();
+            requestMetadataUpdate();
         }
 
         // remove any nodes we aren't ready to send to
@@ -174,11 +244,21 @@ public class Sender implements Runnable {
         long notReadyTimeout = Long.MAX_VALUE;
         while (iter.hasNext()) {
             Node node = iter.next();
-            if (!this.client.ready(node, now)) {
+            if (group != null && running && group.shardOf(node) != shard) {
+                // the node is sent to by another sender, which may not know yet that it became ready. Once closing,
+                // any sender left sends to any node, as the sender of the node may already have stopped.
+                iter.remove();
+                group.wakeup(node);
+            } else if (compressingNodes.contains(node.id())) {
+                // the node is drained again once the request being compressed for it is sent
+                iter.remove();
+            } else if (!this.client.ready(node, now)) {
                 iter.remove();
                 notReadyTimeout = Math.min(notReadyTimeout, this.client.connectionDelay(node, now));
             }
         }
+        if (!warmUps.isEmpty())
+            notReadyTimeout = Math.min(notReadyTimeout, connectWarmUps(now));
 
         // create produce requests
         Map<Integer, List<RecordBatch>> batches = this.accumulator.drain(cluster,
@@ -198,18 +278,24 @@ public class Sender implements Runnable {
         for (RecordBatch expiredBatch : expiredBatches)
             this.sensors.recordErrors(expiredBatch.topicPartition.topic(), expiredBatch.recordCount);
 
-        sensors.updateProduceRequestMetrics(batches);
-
         // If we have any nodes that are ready to send + have sendable data, poll with 0 timeout so this can immediately
         // loop and try sending more data. Otherwise, the timeout is determined by nodes that have partitions with data
         // that isn't yet sendable (e.g. lingering, backing off). Note that this specifically does not include nodes
         // with sendable data that aren't ready to send since they would cause busy looping.
         long pollTimeout = Math.min(result.nextReadyCheckDelayMs, notReadyTimeout);
+        if (waitQueue != null && !waitQueue.isEmpty())
+            pollTimeout = Math.min(pollTimeout, Math.max(waitQueue.nextExpiryMs() - now, 0));
         if (!result.readyNodes.isEmpty()) {
             log.trace("Nodes with data ready to send: {}", result.readyNodes);
             pollTimeout = 0;
         }
-        sendProduceRequests(batches, now);
+        if (compressor != null) {
+            compressProduceRequests(result.readyNodes, batches);
+        } else {
+            sendProduceRequests(batches, now);
+            // the metrics are updated once sent, as batches deferring their compression are only compressed then
+            sensors.updateProduceRequestMetrics(batches);
+        }
 
         // if some partitions are already ready to be sent, the select time would be 0;
         // otherwise if some partition already has some data accumulated but not ready yet,
@@ -218,6 +304,41 @@ public class Sender implements Runnable {
         this.client.poll(pollTimeout, now);
     }
 
+    /**
+     * Connect to the nodes of this sender the warm up is waiting for, which are ready once their API versions are
+     * known as well
+     */
+    void warmUp(ConnectionWarmUp warmUp) {
+        warmUps.add(warmUp);
+        wakeup();
+    }
+
+    /**
+     * Make progress on the connections of the pending warm ups
+     *
+     * @return The time in ms to wait before connecting again to a node which is disconnected
+     */
+    private long connectWarmUps(long now) {
+        long delayMs = Long.MAX_VALUE;
+        for (Iterator<ConnectionWarmUp> iter = warmUps.iterator(); iter.hasNext(); ) {
+            ConnectionWarmUp warmUp = iter.next();
+            boolean pending = false;
+            for (Node node : warmUp.pending()) {
+                if (group != null && group.shardOf(node) != shard)
+                    continue;
+                if (this.client.ready(node, now)) {
+                    warmUp.ready(node);
+                } else {
+                    pending = true;
+                    delayMs = Math.min(delayMs, this.client.connectionDelay(node, now));
+                }
+            }
+            if (!pending || warmUp.isDone())
+                iter.remove();
+        }
+        return delayMs;
+    }
+
     /**
      * Start closing the sender (won't actually complete until all data is sent out)
      */
@@ -242,6 +363,9 @@ public class Sender implements Runnable {
      */
     private void handleProduceResponse(ClientResponse response, Map<TopicPartition, RecordBatch> batches, long now) {
         int correlationId = response.requestHeader().correlationId();
+        if (load != null)
+            load.onRequestCompleted(Integer.parseInt(response.destination()),
+                                    response.hasResponse() ? response.requestLatencyMs() : -1);
         if (response.wasDisconnected()) {
             log.trace("Cancelled request {} due to node {} being disconnected", response, response.destination());
             for (RecordBatch batch : batches.values())
@@ -284,7 +408,20 @@ public class Sender implements Runnable {
     private void completeBatch(RecordBatch batch, ProduceResponse.PartitionResponse response, long correlationId,
                                long now) {
         Errors error = response.error;
-        if (error != Errors.NONE && canRetry(batch, error)) {
+        boolean tooLarge = (error == Errors.MESSAGE_TOO_LARGE || error == Errors.RECORD_LIST_TOO_LARGE) && batch.recordCount > 1;
+        // the batch, e.g. compressed worse than estimated, is split rather than failing all its records
+        int parts = tooLarge ? this.accumulator.splitAndReenqueue(batch, now) : 0;
+        if (parts > 0) {
+            log.warn("Got error produce response with correlation id {} on topic-partition {}, splitting and retrying the batch of {} records in {} batches. Error: {}",
+                    new Object[]{correlationId, batch.topicPartition, batch.recordCount, parts, error});
+            this.sensors.recordBatchSplit();
+        } else if (tooLarge && batch.attempts < this.retries) {
+            // there is not enough buffer memory to split the batch now, it is split once it is rejected again
+            log.warn("Got error produce response with correlation id {} on topic-partition {}, retrying the batch of {} records as there is not enough buffer memory to split it ({} attempts left). Error: {}",
+                    new Object[]{correlationId, batch.topicPartition, batch.recordCount, this.retries - batch.attempts - 1, error});
+            this.accumulator.reenqueue(batch, now);
+            this.sensors.recordRetries(batch.topicPartition.topic(), batch.recordCount);
+        } else if (error != Errors.NONE && canRetry(batch, error)) {
             // retry
             log.warn("Got error produce response with correlation id {} on topic-partition {}, retrying ({} attempts left). Error: {}",
                     new Object[]{correlationId,
@@ -299,7 +436,8 @@ public class Sender implements Runnable {
                 exception = new TopicAuthorizationException(batch.topicPartition.topic());
             else
                 exception = error.exception();
-            // tell the user the result of their request
+            // tell the user the result of their request, the memory of the batch can be reused by their callbacks
+            this.accumulator.releaseMemory(batch);
             batch.done(response.baseOffset, response.logAppendTime, exception);
             this.accumulator.deallocate(batch);
             if (error != Errors.NONE)
@@ -309,7 +447,7 @@ public class Sender implements Runnable {
             if (error.exception() instanceof UnknownTopicOrPartitionException)
                 log.warn("Received unknown topic or partition error in produce request on partition {}. The " +
                         "topic/partition may not exist or the user may not have Describe access to it", batch.topicPartition);
-            metadata.requestUpdate();
+            requestMetadataUpdate();
         }
 
         // Unmute the completed partition.
@@ -317,6 +455,18 @@ public class Sender implements Runnable {
             this.accumulator.unmutePartition(batch.topicPartition);
     }
 
+    /**
+     * Fail a batch which could not be sent
+     */
+    private void failBatch(RecordBatch batch, RuntimeException exception) {
+        this.accumulator.releaseMemory(batch);
+        batch.done(-1L, Record.NO_TIMESTAMP, exception);
+        this.accumulator.deallocate(batch);
+        this.sensors.recordErrors(batch.topicPartition.topic(), batch.recordCount);
+        if (guaranteeMessageOrder)
+            this.accumulator.unmutePartition(batch.topicPartition);
+    }
+
     /**
      * We can retry a send if the error is transient and the number of attempts taken is fewer than the maximum allowed
      */
@@ -324,6 +474,53 @@ public class Sender implements Runnable {
         return batch.attempts < this.retries && error.exception() instanceof RetriableException;
     }
 
+    /**
+     * Hand the drained batches to the compressor, the request of a node is sent once all its batches are compressed
+     */
+    private void compressProduceRequests(Set<Node> nodes, Map<Integer, List<RecordBatch>> collated) {
+        for (final Node node : nodes) {
+            final List<RecordBatch> batches = collated.get(node.id());
+            if (batches == null || batches.isEmpty())
+                continue;
+            compressingNodes.add(node.id());
+            compressor.compress(batches, new BatchCompressor.Completion() {
+                public void onCompletion(Map<RecordBatch, RuntimeException> failures) {
+                    compressedRequests.add(new CompressedRequest(node, batches, failures));
+                    wakeup();
+                }
+            });
+        }
+    }
+
+    /**
+     * Send the requests whose batches have been compressed. The batches which failed to be compressed are failed, and
+     * the ones for a node which is no longer ready are retried as if it had been disconnected.
+     */
+    private void sendCompressedRequests(long now) {
+        for (CompressedRequest request = compressedRequests.poll(); request != null; request = compressedRequests.poll()) {
+            Node node = request.node;
+            compressingNodes.remove(node.id());
+            List<RecordBatch> batches = new ArrayList<RecordBatch>(request.batches.size());
+            for (RecordBatch batch : request.batches) {
+                RuntimeException exception = request.failures.get(batch);
+                if (exception == null)
+                    batches.add(batch);
+                else
+                    failBatch(batch, exception);
+            }
+            if (batches.isEmpty())
+                continue;
+            if (!this.client.ready(node, now)) {
+                log.trace("Node {} is not ready to send the compressed batches anymore", node);
+                for (RecordBatch batch : batches)
+                    completeBatch(batch, new ProduceResponse.PartitionResponse(Errors.NETWORK_EXCEPTION), -1L, now);
+                continue;
+            }
+            sendProduceRequest(now, node.id(), acks, requestTimeout, batches);
+            sensors.updateProduceRequestMetrics(Collections.singletonMap(node.id(), batches));
+        }
+    }
+
     /**
      * Transfer the record batches into a list of produce requests on a per-node basis
      */
@@ -340,9 +537,20 @@ public class Sender implements Runnable {
         final Map<TopicPartition, RecordBatch> recordsByPartition = new HashMap<TopicPartition, RecordBatch>(batches.size());
         for (RecordBatch batch : batches) {
             TopicPartition tp = batch.topicPartition;
-            produceRecordsByPartition.put(tp, batch.records());
+            MemoryRecords records;
+            try {
+                // this compresses a batch deferring its compression if there are no compression threads
+                records = batch.records();
+            } catch (RuntimeException e) {
+                log.error("Error building the records of a batch of topic-partition '{}'", tp, e);
+                failBatch(batch, e);
+                continue;
+            }
+            produceRecordsByPartition.put(tp, records);
             recordsByPartition.put(tp, batch);
         }
+        if (produceRecordsByPartition.isEmpty())
+            return;
 
         ProduceRequest.Builder requestBuilder =
                 new ProduceRequest.Builder(acks, timeout, produceRecordsByPartition);
@@ -355,6 +563,8 @@ public class Sender implements Runnable {
         String nodeId = Integer.toString(destination);
         ClientRequest clientRequest = client.newClientRequest(nodeId, requestBuilder, now, acks != 0, callback);
         client.send(clientRequest, now);
+        if (load != null)
+            load.onRequestSent(destination);
         log.trace("Sent produce request to {}: {}", nodeId, requestBuilder);
     }
 
@@ -365,26 +575,72 @@ public class Sender implements Runnable {
         this.client.wakeup();
     }
 
+    /**
+     * Request a metadata update, which is done by the first sender of a group
+     */
+    private void requestMetadataUpdate() {
+        this.metadata.requestUpdate();
+        if (group != null && shard != 0)
+            group.wakeupMetadataSender();
+    }
+
+    int inFlightRequestCount() {
+        return this.client.inFlightRequestCount();
+    }
+
+    /**
+     * The batches of a produce request once compressed
+     */
+    private static final class CompressedRequest {
+        final Node node;
+        final List<RecordBatch> batches;
+        final Map<RecordBatch, RuntimeException> failures;
+
+        CompressedRequest(Node node, List<RecordBatch> batches, Map<RecordBatch, RuntimeException> failures) {
+            this.node = node;
+            this.batches = batches;
+            this.failures = failures;
+        }
+    }
+
     /**
      * A collection of sensors for the sender
      */
     private class SenderMetrics {
 
         private final Metrics metrics;
-        public final Sensor retrySensor;
-        public final Sensor errorSensor;
+        // the sensors recording the metrics of the thread are children of the ones of the producer, if there are several
+        public Sensor retrySensor;
+        public Sensor errorSensor;
         public final Sensor queueTimeSensor;
-        public final Sensor requestTimeSensor;
-        public final Sensor recordsPerRequestSensor;
-        public final Sensor batchSizeSensor;
+        public Sensor requestTimeSensor;
+        public Sensor recordsPerRequestSensor;
+        public Sensor batchSizeSensor;
         public final Sensor compressionRateSensor;
         public final Sensor maxRecordSizeSensor;
         public final Sensor produceThrottleTimeSensor;
+        public final Sensor batchSplitSensor;
 
         public SenderMetrics(Metrics metrics) {
             this.metrics = metrics;
             String metricGrpName = "producer-metrics";
 
+            if (shard > 0) {
+                // the metrics of the producer were registered by the first sender of the group
+                this.batchSizeSensor = metrics.getSensor("batch-size");
+                this.compressionRateSensor = metrics.getSensor("compression-rate");
+                this.queueTimeSensor = metrics.getSensor("queue-time");
+                this.requestTimeSensor = metrics.getSensor("request-time");
+                this.produceThrottleTimeSensor = metrics.getSensor("produce-throttle-time");
+                this.recordsPerRequestSensor = metrics.getSensor("records-per-request");
+                this.retrySensor = metrics.getSensor("record-retries");
+                this.errorSensor = metrics.getSensor("errors");
+                this.maxRecordSizeSensor = metrics.getSensor("record-size-max");
+                this.batchSplitSensor = metrics.getSensor("batch-split");
+                registerThreadMetrics(metricGrpName);
+                return;
+            }
+
             this.batchSizeSensor = metrics.sensor("batch-size");
             MetricName m = metrics.metricName("batch-size-avg", metricGrpName, "The average number of bytes sent per partition per-request.");
             this.batchSizeSensor.add(m, new Avg());
@@ -433,10 +689,14 @@ public class Sender implements Runnable {
             m = metrics.metricName("record-size-avg", metricGrpName, "The average record size");
             this.maxRecordSizeSensor.add(m, new Avg());
 
+            this.batchSplitSensor = metrics.sensor("batch-split");
+            m = metrics.metricName("batch-split-rate", metricGrpName, "The average per-second number of batches split after being rejected as too large");
+            this.batchSplitSensor.add(m, new Rate());
+
             m = metrics.metricName("requests-in-flight", metricGrpName, "The current number of in-flight requests awaiting a response.");
             this.metrics.addMetric(m, new Measurable() {
                 public double measure(MetricConfig config, long now) {
-                    return client.inFlightRequestCount();
+                    return group == null ? client.inFlightRequestCount() : group.inFlightRequestCount();
                 }
             });
             m = metrics.metricName("metadata-age", metricGrpName, "The age in seconds of the current producer metadata being used.");
@@ -445,24 +705,68 @@ public class Sender implements Runnable {
                     return (now - metadata.lastSuccessfulUpdate()) / 1000.0;
                 }
             });
+            registerThreadMetrics(metricGrpName);
+        }
+
+        /**
+         * Register the metrics of this sender thread when there are several, recorded by child sensors of the metrics
+         * of the producer
+         */
+        private void registerThreadMetrics(String metricGrpName) {
+            if (group == null || group.numSenders() == 1)
+                return;
+            Map<String, String> metricTags = Collections.singletonMap("sender-thread", String.valueOf(shard));
+            String sensorPrefix = "sender-thread-" + shard + ".";
+
+            this.batchSizeSensor = metrics.sensor(sensorPrefix + "batch-size", this.batchSizeSensor);
+            MetricName m = metrics.metricName("batch-size-avg", metricGrpName, "The average number of bytes sent per partition per-request by the sender thread.", metricTags);
+            this.batchSizeSensor.add(m, new Avg());
+
+            this.requestTimeSensor = metrics.sensor(sensorPrefix + "request-time", this.requestTimeSensor);
+            m = metrics.metricName("request-latency-avg", metricGrpName, "The average request latency in ms of the sender thread", metricTags);
+            this.requestTimeSensor.add(m, new Avg());
+            m = metrics.metricName("request-latency-max", metricGrpName, "The maximum request latency in ms of the sender thread", metricTags);
+            this.requestTimeSensor.add(m, new Max());
+
+            this.recordsPerRequestSensor = metrics.sensor(sensorPrefix + "records-per-request", this.recordsPerRequestSensor);
+            m = metrics.metricName("record-send-rate", metricGrpName, "The average number of records sent per second by the sender thread.", metricTags);
+            this.recordsPerRequestSensor.add(m, new Rate());
+            m = metrics.metricName("records-per-request-avg", metricGrpName, "The average number of records per request of the sender thread.", metricTags);
+            this.recordsPerRequestSensor.add(m, new Avg());
+
+            this.retrySensor = metrics.sensor(sensorPrefix + "record-retries", this.retrySensor);
+            m = metrics.metricName("record-retry-rate", metricGrpName, "The average per-second number of retried record sends of the sender thread", metricTags);
+            this.retrySensor.add(m, new Rate());
+
+            this.errorSensor = metrics.sensor(sensorPrefix + "errors", this.errorSensor);
+            m = metrics.metricName("record-error-rate", metricGrpName, "The average per-second number of record sends of the sender thread that resulted in errors", metricTags);
+            this.errorSensor.add(m, new Rate());
+
+            m = metrics.metricName("requests-in-flight", metricGrpName, "The current number of in-flight requests of the sender thread awaiting a response.", metricTags);
+            this.metrics.addMetric(m, new Measurable() {
+                public double measure(MetricConfig config, long now) {
+                    return client.inFlightRequestCount();
+                }
+            });
         }
 
         private void maybeRegisterTopicMetrics(String topic) {
             // if one sensor of the metrics has been registered for the topic,
             // then all other sensors should have been registered; and vice versa
             String topicRecordsCountName = "topic." + topic + ".records-per-batch";
-            Sensor topicRecordCount = this.metrics.getSensor(topicRecordsCountName);
-            if (topicRecordCount == null) {
+            if (this.metrics.getSensor(topicRecordsCountName) != null)
+                return;
+            // the senders of a group register the metrics of a topic once, the records-per-batch sensor goes last as
+            // it marks the metrics as registered
+            synchronized (group == null ? this : group) {
+                if (this.metrics.getSensor(topicRecordsCountName) != null)
+                    return;
                 Map<String, String> metricTags = Collections.singletonMap("topic", topic);
                 String metricGrpName = "producer-topic-metrics";
 
-                topicRecordCount = this.metrics.sensor(topicRecordsCountName);
-                MetricName m = this.metrics.metricName("record-send-rate", metricGrpName, metricTags);
-                topicRecordCount.add(m, new Rate());
-
                 String topicByteRateName = "topic." + topic + ".bytes";
                 Sensor topicByteRate = this.metrics.sensor(topicByteRateName);
-                m = this.metrics.metricName("byte-rate", metricGrpName, metricTags);
+                MetricName m = this.metrics.metricName("byte-rate", metricGrpName, metricTags);
                 topicByteRate.add(m, new Rate());
 
                 String topicCompressionRateName = "topic." + topic + ".compression-rate";
@@ -479,6 +783,10 @@ public class Sender implements Runnable {
                 Sensor topicErrorSensor = this.metrics.sensor(topicErrorName);
                 m = this.metrics.metricName("record-error-rate", metricGrpName, metricTags);
                 topicErrorSensor.add(m, new Rate());
+
+                Sensor topicRecordCount = this.metrics.sensor(topicRecordsCountName);
+                m = this.metrics.metricName("record-send-rate", metricGrpName, metricTags);
+                topicRecordCount.add(m, new Rate());
             }
         }
 
@@ -526,6 +834,10 @@ public class Sender implements Runnable {
                 topicRetrySensor.record(count, now);
         }
 
+        public void recordBatchSplit() {
+            this.batchSplitSensor.record(1, time.milliseconds());
+        }
+
         public void recordErrors(String topic, int count) {
             long now = time.milliseconds();
             this.errorSensor.record(count, now);
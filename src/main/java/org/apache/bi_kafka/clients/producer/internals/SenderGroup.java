@@ -0,0 +1,219 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.bi_kafka.clients.producer.internals;
+
+import org.apache.bi_kafka.clients.ManualMetadataUpdater;
+import org.apache.bi_kafka.clients.Metadata;
+import org.apache.bi_kafka.common.Cluster;
+import org.apache.bi_kafka.common.Node;
+import org.apache.bi_kafka.common.TopicPartition;
+import org.apache.bi_kafka.common.utils.KafkaThread;
+import org.apache.bi_kafka.common.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The sender threads of a producer. Each broker node is assigned to one of the senders, which sends all the produce
+ * requests to the node over its own network client, while all of them drain the same record accumulator.
+ * <p>
+ * The first sender also keeps the cluster metadata up to date, the network clients of the others only request an
+ * update from it.
+ */
+public final class SenderGroup {
+
+    private final int numSenders;
+    private final List<Sender> senders;
+    private final List<Thread> threads;
+    private final AtomicInteger running;
+
+    public SenderGroup(int numSenders) {
+        if (numSenders <= 0)
+            throw new IllegalArgumentException("The number of senders must be positive: " + numSenders);
+        this.numSenders = numSenders;
+        this.senders = new ArrayList<Sender>(numSenders);
+        this.threads = new ArrayList<Thread>(numSenders);
+        this.running = new AtomicInteger(0);
+    }
+
+    public int numSenders() {
+        return numSenders;
+    }
+
+    /**
+     * Add the next sender, which must have been created with this group and the number of senders already added as
+     * its shard
+     */
+    public void add(Sender sender) {
+        if (senders.size() == numSenders)
+            throw new IllegalStateException("All the " + numSenders + " senders have been added");
+        senders.add(sender);
+    }
+
+    /**
+     * Start the sender threads
+     *
+     * @param threadNamePrefix The name of the thread of a single sender, the threads of several senders are numbered
+     * @param clientId The client id, appended to the name of the threads
+     */
+    public void start(String threadNamePrefix, String clientId) {
+        if (senders.size() != numSenders)
+            throw new IllegalStateException("Only " + senders.size() + " of the " + numSenders + " senders have been added");
+        for (int i = 0; i < numSenders; i++) {
+            String name = threadNamePrefix + (numSenders == 1 ? "" : "-" + i) + (clientId.length() > 0 ? " | " + clientId : "");
+            threads.add(new KafkaThread(name, senders.get(i), true));
+        }
+        running.set(numSenders);
+        for (Thread thread : threads)
+            thread.start();
+    }
+
+    /**
+     * The shard of the sender sending to the given node
+     */
+    int shardOf(Node node) {
+        return Utils.toPositive(node.id()) % numSenders;
+    }
+
+    /**
+     * Connect the senders to the given nodes ahead of their first produce request and wait until they can send to all
+     * of them, which includes the exchange of the supported API versions
+     *
+     * @return Whether all the nodes were ready within the timeout
+     */
+    public boolean awaitReady(Collection<Node> nodes, long timeoutMs) throws InterruptedException {
+        ConnectionWarmUp warmUp = new ConnectionWarmUp(nodes);
+        Set<Integer> shards = new HashSet<Integer>();
+        for (Node node : nodes)
+            shards.add(shardOf(node));
+        for (int shard : shards)
+            senders.get(shard).warmUp(warmUp);
+        try {
+            return warmUp.await(timeoutMs);
+        } finally {
+            warmUp.cancel();
+        }
+    }
+
+    /**
+     * Wake up every sender
+     */
+    public void wakeup() {
+        for (Sender sender : senders)
+            sender.wakeup();
+    }
+
+    /**
+     * Wake up the sender of the current leader of the partition, or the one updating the metadata if the leader is not
+     * known
+     */
+    public void wakeup(Cluster cluster, TopicPartition tp) {
+        Node leader = cluster.leaderFor(tp);
+        if (leader == null)
+            wakeupMetadataSender();
+        else
+            wakeup(leader);
+    }
+
+    void wakeup(Node node) {
+        senders.get(shardOf(node)).wakeup();
+    }
+
+    /**
+     * Wake up the sender updating the metadata, e.g. after an update was requested
+     */
+    public void wakeupMetadataSender() {
+        senders.get(0).wakeup();
+    }
+
+    /**
+     * The number of requests in flight over the network clients of all the senders
+     */
+    int inFlightRequestCount() {
+        int count = 0;
+        for (Sender sender : senders)
+            count += sender.inFlightRequestCount();
+        return count;
+    }
+
+    /**
+     * Record that a sender stopped sending
+     *
+     * @return true if it was the last sender running
+     */
+    boolean stopped() {
+        return running.decrementAndGet() == 0;
+    }
+
+    public void initiateClose() {
+        for (Sender sender : senders)
+            sender.initiateClose();
+    }
+
+    public void forceClose() {
+        for (Sender sender : senders)
+            sender.forceClose();
+    }
+
+    /**
+     * Wait for the sender threads to finish
+     *
+     * @param timeoutMs The maximum time to wait, 0 to wait forever
+     */
+    public void join(long timeoutMs) throws InterruptedException {
+        long deadlineMs = System.currentTimeMillis() + timeoutMs;
+        if (deadlineMs < 0)
+            deadlineMs = Long.MAX_VALUE;
+        for (Thread thread : threads) {
+            if (timeoutMs == 0) {
+                thread.join();
+            } else {
+                long remainingMs = deadlineMs - System.currentTimeMillis();
+                if (remainingMs <= 0)
+                    return;
+                thread.join(remainingMs);
+            }
+        }
+    }
+
+    public boolean isAlive() {
+        for (Thread thread : threads) {
+            if (thread.isAlive())
+                return true;
+        }
+        return false;
+    }
+
+    public boolean isSenderThread(Thread thread) {
+        return threads.contains(thread);
+    }
+
+    /**
+     * The metadata updater of the network clients of all the senders but the first one. Whenever such a client needs
+     * a metadata update, e.g. after a disconnection, it requests it and wakes up the first sender.
+     */
+    public ManualMetadataUpdater followerMetadataUpdater(final Metadata metadata) {
+        return new ManualMetadataUpdater() {
+            @Override
+            public void requestUpdate() {
+                metadata.requestUpdate();
+                wakeupMetadataSender();
+            }
+        };
+    }
+
+}
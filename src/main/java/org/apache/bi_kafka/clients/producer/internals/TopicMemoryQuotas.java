@@ -0,0 +1,218 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.bi_kafka.clients.producer.internals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.bi_kafka.clients.producer.ProducerConfig;
+import org.apache.bi_kafka.common.MetricName;
+import org.apache.bi_kafka.common.config.ConfigException;
+import org.apache.bi_kafka.common.errors.TimeoutException;
+import org.apache.bi_kafka.common.metrics.Measurable;
+import org.apache.bi_kafka.common.metrics.MetricConfig;
+import org.apache.bi_kafka.common.metrics.Metrics;
+import org.apache.bi_kafka.common.metrics.Sensor;
+import org.apache.bi_kafka.common.metrics.stats.Max;
+import org.apache.bi_kafka.common.metrics.stats.Rate;
+import org.apache.bi_kafka.common.utils.Time;
+
+/**
+ * Byte budgets per topic on top of the buffer pool of the accumulator. The memory of a new batch is charged to the
+ * quota of its topic before it is allocated from the pool, and returned when the batch is deallocated, so a topic which
+ * can not be sent, e.g. because its leader is unreachable, only blocks the appends to that topic once its quota is used
+ * up rather than all the appends once the pool is exhausted. The batches spilled to disk still count against the quota.
+ * <p>
+ * The quotas are given as <code>topic:bytes</code> entries where the topic is a name or a regular expression matched
+ * against the whole name, the first matching entry applies. Topics matching no entry get the default quota, if any.
+ */
+public final class TopicMemoryQuotas {
+
+    private final List<Pattern> patterns;
+    private final List<Long> limits;
+    private final long defaultLimit;
+    private final ConcurrentMap<String, Quota> quotas;
+    private final Metrics metrics;
+    private final Time time;
+
+    /**
+     * @param entries The <code>topic:bytes</code> entries
+     * @param defaultLimit The quota of the topics matching no entry, 0 for none
+     */
+    public TopicMemoryQuotas(List<String> entries, long defaultLimit, Metrics metrics, Time time) {
+        this.patterns = new ArrayList<Pattern>(entries.size());
+        this.limits = new ArrayList<Long>(entries.size());
+        for (String entry : entries) {
+            int separator = entry.lastIndexOf(':');
+            if (separator <= 0 || separator == entry.length() - 1)
+                throw new ConfigException(ProducerConfig.BUFFER_MEMORY_TOPIC_QUOTAS_CONFIG, entry, "Expected <topic>:<bytes>");
+            long limit;
+            try {
+                limit = Long.parseLong(entry.substring(separator + 1).trim());
+                patterns.add(Pattern.compile(entry.substring(0, separator).trim()));
+            } catch (NumberFormatException e) {
+                throw new ConfigException(ProducerConfig.BUFFER_MEMORY_TOPIC_QUOTAS_CONFIG, entry, "Invalid number of bytes");
+            } catch (PatternSyntaxException e) {
+                throw new ConfigException(ProducerConfig.BUFFER_MEMORY_TOPIC_QUOTAS_CONFIG, entry, "Invalid topic pattern");
+            }
+            if (limit <= 0)
+                throw new ConfigException(ProducerConfig.BUFFER_MEMORY_TOPIC_QUOTAS_CONFIG, entry, "The number of bytes must be positive");
+            limits.add(limit);
+        }
+        this.defaultLimit = defaultLimit;
+        this.quotas = new ConcurrentHashMap<String, Quota>();
+        this.metrics = metrics;
+        this.time = time;
+    }
+
+    /**
+     * The quota of the topic, or null if it has none
+     */
+    Quota quota(String topic) {
+        Quota quota = quotas.get(topic);
+        if (quota != null)
+            return quota.limit > 0 ? quota : null;
+        long limit = limit(topic);
+        quota = new Quota(topic, limit);
+        Quota current = quotas.putIfAbsent(topic, quota);
+        if (current != null)
+            quota = current;
+        else if (limit > 0)
+            quota.registerMetrics();
+        return quota.limit > 0 ? quota : null;
+    }
+
+    private long limit(String topic) {
+        for (int i = 0; i < patterns.size(); i++) {
+            if (patterns.get(i).matcher(topic).matches())
+                return limits.get(i);
+        }
+        return defaultLimit;
+    }
+
+    /**
+     * The memory used by a topic out of its quota. A quota of 0 marks a topic without quota, which is cached as well.
+     */
+    final class Quota {
+        private final String topic;
+        private final long limit;
+        private long used;
+        private Sensor waitTime;
+
+        private Quota(String topic, long limit) {
+            this.topic = topic;
+            this.limit = limit;
+            this.used = 0;
+        }
+
+        private void registerMetrics() {
+            Map<String, String> tags = Collections.singletonMap("topic", topic);
+            String metricGrpName = "producer-topic-metrics";
+            MetricName metricName = metrics.metricName("buffer-quota-used-bytes", metricGrpName,
+                    "The buffer memory used by the batches of the topic, out of its quota", tags);
+            metrics.addMetric(metricName, new Measurable() {
+                public double measure(MetricConfig config, long now) {
+                    return used();
+                }
+            });
+            metricName = metrics.metricName("buffer-quota-available-bytes", metricGrpName,
+                    "The buffer memory left in the quota of the topic", tags);
+            metrics.addMetric(metricName, new Measurable() {
+                public double measure(MetricConfig config, long now) {
+                    return Math.max(0, limit - used());
+                }
+            });
+            Sensor sensor = metrics.sensor("topic." + topic + ".buffer-quota-wait-time");
+            metricName = metrics.metricName("buffer-quota-wait-ratio", metricGrpName,
+                    "The fraction of time an appender waits for the quota of the topic", tags);
+            sensor.add(metricName, new Rate(TimeUnit.NANOSECONDS));
+            metricName = metrics.metricName("buffer-quota-wait-time-max", metricGrpName,
+                    "The maximum time in ns an appender waited for the quota of the topic", tags);
+            sensor.add(metricName, new Max());
+            synchronized (this) {
+                this.waitTime = sensor;
+            }
+        }
+
+        synchronized long used() {
+            return used;
+        }
+
+        /**
+         * A batch larger than the whole quota is let through once nothing else of the topic is buffered
+         */
+        private boolean hasRoom(int size) {
+            return used == 0 || used + size <= limit;
+        }
+
+        /**
+         * Charge the given size to the quota, blocking until there is room for it
+         *
+         * @throws TimeoutException If there is no room within the given time
+         */
+        synchronized void acquire(int size, long maxTimeToBlockMs) throws InterruptedException {
+            if (hasRoom(size)) {
+                used += size;
+                return;
+            }
+            long startNs = time.nanoseconds();
+            long remainingNs = TimeUnit.MILLISECONDS.toNanos(maxTimeToBlockMs);
+            try {
+                while (!hasRoom(size)) {
+                    if (remainingNs <= 0)
+                        throw new TimeoutException("Failed to allocate memory for topic " + topic + " within the configured max blocking time "
+                                                   + maxTimeToBlockMs + " ms, its quota of " + limit + " bytes is used up.");
+                    TimeUnit.NANOSECONDS.timedWait(this, remainingNs);
+                    remainingNs = TimeUnit.MILLISECONDS.toNanos(maxTimeToBlockMs) - (time.nanoseconds() - startNs);
+                }
+                used += size;
+            } finally {
+                if (waitTime != null)
+                    waitTime.record(Math.max(0L, time.nanoseconds() - startNs), time.milliseconds());
+            }
+        }
+
+        /**
+         * Charge the given size to the quota if there is room for it right away
+         */
+        synchronized boolean tryAcquire(int size) {
+            if (!hasRoom(size))
+                return false;
+            used += size;
+            return true;
+        }
+
+        /**
+         * Charge the given size to the quota even if it is used up, for memory which is already allocated
+         */
+        synchronized void add(int size) {
+            used += size;
+        }
+
+        synchronized void release(int size) {
+            used -= size;
+            notifyAll();
+        }
+    }
+}
@@ -35,6 +35,18 @@ public class ByteBufferOutputStream extends DataOutputStream {
         return ((UnderlyingOutputStream) out).buffer;
     }
 
+    /**
+     * Expand the buffer if it has less than the given number of bytes remaining, so that they can be written to the
+     * buffer directly rather than through the stream.
+     * @return The buffer of the stream
+     */
+    public ByteBuffer ensureRemaining(int remainingBytesRequired) {
+        UnderlyingOutputStream stream = (UnderlyingOutputStream) out;
+        if (stream.buffer.remaining() < remainingBytesRequired)
+            stream.expandBuffer(stream.buffer.position() + remainingBytesRequired);
+        return stream.buffer;
+    }
+
     public static class UnderlyingOutputStream extends OutputStream {
         private ByteBuffer buffer;
 
@@ -60,8 +72,11 @@ public class ByteBufferOutputStream extends DataOutputStream {
 
         private void expandBuffer(int size) {
             int expandSize = Math.max((int) (buffer.capacity() * REALLOCATION_FACTOR), size);
-            ByteBuffer temp = ByteBuffer.allocate(expandSize);
-            temp.put(buffer.array(), buffer.arrayOffset(), buffer.position());
+            // grow into a buffer of the same kind, so that direct buffers stay off heap
+            ByteBuffer temp = buffer.isDirect() ? ByteBuffer.allocateDirect(expandSize) : ByteBuffer.allocate(expandSize);
+            ByteBuffer written = buffer.duplicate();
+            written.flip();
+            temp.put(written);
             buffer = temp;
         }
     }
@@ -0,0 +1,138 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.bi_kafka.common.record;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Pools of the state the compression codecs would otherwise allocate for every compressed message set: the native
+ * zlib contexts of gzip, keyed by their compression level, and the block buffers of LZ4, keyed by their size. Borrowed
+ * state is reset when it is returned, and at most a few idle instances are kept per key; the others are released, or
+ * left to the garbage collector.
+ * <p>
+ * State which is borrowed but never returned, e.g. because a batch is aborted before its builder is closed, is simply
+ * not reused.
+ */
+final class CompressionCodecPool {
+
+    // the number of threads likely to compress or decompress at the same time
+    private static final int MAX_IDLE = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    // the maximum total size of the idle block buffers of one size
+    private static final int MAX_IDLE_BLOCK_BYTES = 16 * 1024 * 1024;
+
+    private static final ConcurrentMap<Integer, Pool<Deflater>> DEFLATERS = new ConcurrentHashMap<Integer, Pool<Deflater>>();
+    private static final Pool<Inflater> INFLATERS = new Pool<Inflater>(MAX_IDLE);
+    private static final ConcurrentMap<Integer, Pool<byte[]>> BLOCKS = new ConcurrentHashMap<Integer, Pool<byte[]>>();
+
+    private CompressionCodecPool() {
+    }
+
+    /**
+     * Borrow a deflater writing raw deflate data with the given compression level, as used by the gzip format
+     */
+    static Deflater borrowDeflater(int level) {
+        Deflater deflater = deflaters(level).poll();
+        return deflater != null ? deflater : new Deflater(level, true);
+    }
+
+    /**
+     * Return a deflater borrowed with the given compression level
+     */
+    static void releaseDeflater(Deflater deflater, int level) {
+        deflater.reset();
+        if (!deflaters(level).offer(deflater))
+            deflater.end();
+    }
+
+    /**
+     * Borrow an inflater reading raw deflate data, as used by the gzip format
+     */
+    static Inflater borrowInflater() {
+        Inflater inflater = INFLATERS.poll();
+        return inflater != null ? inflater : new Inflater(true);
+    }
+
+    static void releaseInflater(Inflater inflater) {
+        inflater.reset();
+        if (!INFLATERS.offer(inflater))
+            inflater.end();
+    }
+
+    /**
+     * Borrow a block buffer of exactly the given size. Its content is undefined.
+     */
+    static byte[] borrowBlock(int size) {
+        byte[] block = blocks(size).poll();
+        return block != null ? block : new byte[size];
+    }
+
+    static void releaseBlock(byte[] block) {
+        blocks(block.length).offer(block);
+    }
+
+    private static Pool<Deflater> deflaters(int level) {
+        Pool<Deflater> pool = DEFLATERS.get(level);
+        if (pool == null) {
+            pool = new Pool<Deflater>(MAX_IDLE);
+            Pool<Deflater> previous = DEFLATERS.putIfAbsent(level, pool);
+            if (previous != null)
+                pool = previous;
+        }
+        return pool;
+    }
+
+    private static Pool<byte[]> blocks(int size) {
+        Pool<byte[]> pool = BLOCKS.get(size);
+        if (pool == null) {
+            pool = new Pool<byte[]>(Math.max(1, Math.min(MAX_IDLE, MAX_IDLE_BLOCK_BYTES / Math.max(1, size))));
+            Pool<byte[]> previous = BLOCKS.putIfAbsent(size, pool);
+            if (previous != null)
+                pool = previous;
+        }
+        return pool;
+    }
+
+    /**
+     * A bounded queue of idle instances. The bound is approximate under contention.
+     */
+    private static final class Pool<T> {
+        private final ConcurrentLinkedQueue<T> idle = new ConcurrentLinkedQueue<T>();
+        private final AtomicInteger size = new AtomicInteger(0);
+        private final int maxIdle;
+
+        Pool(int maxIdle) {
+            this.maxIdle = maxIdle;
+        }
+
+        T poll() {
+            T instance = idle.poll();
+            if (instance != null)
+                size.decrementAndGet();
+            return instance;
+        }
+
+        boolean offer(T instance) {
+            if (size.incrementAndGet() > maxIdle) {
+                size.decrementAndGet();
+                return false;
+            }
+            idle.add(instance);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.bi_kafka.common.record;
+
+/**
+ * A compression type along with the settings of its codec used when writing records. The settings only change how
+ * the records are compressed, not the format of the compressed records, so they need not be known to read them.
+ */
+public final class CompressionConfig {
+
+    /**
+     * Use the default compression level of the codec
+     */
+    public static final int DEFAULT_LEVEL = -1;
+
+    /**
+     * The highest level of gzip, levels above it are only supported by LZ4
+     */
+    public static final int MAX_GZIP_LEVEL = 9;
+
+    /**
+     * The highest level of the LZ4 high compression compressor
+     */
+    public static final int MAX_LZ4_LEVEL = 17;
+
+    private static final CompressionConfig[] DEFAULTS;
+
+    static {
+        CompressionType[] types = CompressionType.values();
+        DEFAULTS = new CompressionConfig[types.length];
+        for (CompressionType type : types)
+            DEFAULTS[type.ordinal()] = new CompressionConfig(type, DEFAULT_LEVEL, KafkaLZ4BlockOutputStream.BLOCKSIZE_64KB);
+    }
+
+    private final CompressionType type;
+    private final int level;
+    private final int lz4BlockSize;
+
+    /**
+     * @param type The compression type
+     * @param level The compression level, {@link #DEFAULT_LEVEL} for the default of the codec. For gzip a deflate
+     *              level from 0 to 9. For LZ4 0 uses the fast compressor while a level from 1 to 17 uses the high
+     *              compression (HC) compressor at that level. It is ignored by snappy.
+     * @param lz4BlockSize The LZ4 block size, one of the {@code BLOCKSIZE_*} values of {@link KafkaLZ4BlockOutputStream}
+     */
+    public CompressionConfig(CompressionType type, int level, int lz4BlockSize) {
+        if (level < DEFAULT_LEVEL || level > (type == CompressionType.GZIP ? MAX_GZIP_LEVEL : MAX_LZ4_LEVEL))
+            throw new IllegalArgumentException("Invalid compression level " + level + " for compression type " + type);
+        if (lz4BlockSize < KafkaLZ4BlockOutputStream.BLOCKSIZE_64KB || lz4BlockSize > KafkaLZ4BlockOutputStream.BLOCKSIZE_4MB)
+            throw new IllegalArgumentException("Invalid LZ4 block size " + lz4BlockSize);
+        this.type = type;
+        this.level = level;
+        this.lz4BlockSize = lz4BlockSize;
+    }
+
+    /**
+     * The default settings of the given compression type
+     */
+    public static CompressionConfig of(CompressionType type) {
+        return DEFAULTS[type.ordinal()];
+    }
+
+    public CompressionType type() {
+        return type;
+    }
+
+    public int level() {
+        return level;
+    }
+
+    public int lz4BlockSize() {
+        return lz4BlockSize;
+    }
+
+    @Override
+    public String toString() {
+        return "CompressionConfig(type=" + type + ", level=" + level + ", lz4BlockSize=" + lz4BlockSize + ")";
+    }
+}
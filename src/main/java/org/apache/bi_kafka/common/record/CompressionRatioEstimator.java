@@ -0,0 +1,84 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.bi_kafka.common.record;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Learns the compression ratio of each topic and codec from the batches closed for it, so that a
+ * {@link MemoryRecordsBuilder} can tell when the compressed size of its records reaches the write limit.
+ * <p>
+ * An observed ratio worse than the estimate replaces it right away, since underestimating makes batches overshoot
+ * their buffer and expand it. A better ratio only moves the estimate a quarter of the way, so a single well compressed
+ * batch does not make the following ones overshoot. The estimate starts at the static rate of the codec.
+ * <p>
+ * This class is thread safe. Concurrent updates of the same topic may overwrite each other, which only loses a sample.
+ */
+public final class CompressionRatioEstimator {
+
+    private static final float IMPROVING_DAMPING_FACTOR = 0.75f;
+
+    private final ConcurrentMap<String, float[]> ratios = new ConcurrentHashMap<String, float[]>();
+
+    /**
+     * The estimated ratio of compressed to uncompressed size of the records of the topic
+     */
+    public float estimation(String topic, CompressionType type) {
+        return ratios(topic)[type.id];
+    }
+
+    /**
+     * Update the estimation of the topic with the ratio of a closed batch
+     *
+     * @param topic The topic of the batch
+     * @param type The codec of the batch
+     * @param observedRatio The ratio of compressed to uncompressed size of the batch
+     */
+    public void updateEstimation(String topic, CompressionType type, float observedRatio) {
+        // a batch closed without records has no ratio
+        if (type == CompressionType.NONE || !(observedRatio > 0) || Float.isInfinite(observedRatio))
+            return;
+        float[] topicRatios = ratios(topic);
+        float current = topicRatios[type.id];
+        if (observedRatio > current)
+            topicRatios[type.id] = observedRatio;
+        else
+            topicRatios[type.id] = current * IMPROVING_DAMPING_FACTOR + observedRatio * (1 - IMPROVING_DAMPING_FACTOR);
+    }
+
+    private float[] ratios(String topic) {
+        float[] topicRatios = ratios.get(topic);
+        if (topicRatios == null) {
+            topicRatios = initialRatios();
+            float[] previous = ratios.putIfAbsent(topic, topicRatios);
+            if (previous != null)
+                topicRatios = previous;
+        }
+        return topicRatios;
+    }
+
+    private static float[] initialRatios() {
+        int maxTypeId = -1;
+        for (CompressionType type : CompressionType.values())
+            maxTypeId = Math.max(maxTypeId, type.id);
+        float[] ratios = new float[maxTypeId + 1];
+        for (CompressionType type : CompressionType.values())
+            ratios[type.id] = type.rate;
+        return ratios;
+    }
+}
@@ -46,8 +46,8 @@ public final class KafkaLZ4BlockInputStream extends FilterInputStream {
 
     private final LZ4SafeDecompressor decompressor;
     private final XXHash32 checksum;
-    private final byte[] buffer;
-    private final byte[] compressedBuffer;
+    private byte[] buffer;
+    private byte[] compressedBuffer;
     private final int maxBlockSize;
     private final boolean ignoreFlagDescriptorChecksum;
     private FLG flg;
@@ -70,8 +70,8 @@ public final class KafkaLZ4BlockInputStream extends FilterInputStream {
         this.ignoreFlagDescriptorChecksum = ignoreFlagDescriptorChecksum;
         readHeader();
         maxBlockSize = bd.getBlockMaximumSize();
-        buffer = new byte[maxBlockSize];
-        compressedBuffer = new byte[maxBlockSize];
+        buffer = CompressionCodecPool.borrowBlock(maxBlockSize);
+        compressedBuffer = CompressionCodecPool.borrowBlock(maxBlockSize);
         bufferOffset = 0;
         bufferSize = 0;
         finished = false;
@@ -241,6 +241,14 @@ public final class KafkaLZ4BlockInputStream extends FilterInputStream {
 
     @Override
     public void close() throws IOException {
+        // the block buffers go back to the pool, so nothing can be read anymore
+        finished = true;
+        if (buffer != null) {
+            CompressionCodecPool.releaseBlock(buffer);
+            CompressionCodecPool.releaseBlock(compressedBuffer);
+            buffer = null;
+            compressedBuffer = null;
+        }
         in.close();
     }
 
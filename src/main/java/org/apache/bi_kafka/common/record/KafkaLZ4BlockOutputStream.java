@@ -51,8 +51,8 @@ public final class KafkaLZ4BlockOutputStream extends FilterOutputStream {
     private final boolean useBrokenFlagDescriptorChecksum;
     private final FLG flg;
     private final BD bd;
-    private final byte[] buffer;
-    private final byte[] compressedBuffer;
+    private byte[] buffer;
+    private byte[] compressedBuffer;
     private final int maxBlockSize;
     private int bufferOffset;
     private boolean finished;
@@ -70,16 +70,37 @@ public final class KafkaLZ4BlockOutputStream extends FilterOutputStream {
      * @throws IOException
      */
     public KafkaLZ4BlockOutputStream(OutputStream out, int blockSize, boolean blockChecksum, boolean useBrokenFlagDescriptorChecksum) throws IOException {
+        this(out, blockSize, blockChecksum, useBrokenFlagDescriptorChecksum, 0);
+    }
+
+    /**
+     * Create a new {@link OutputStream} that will compress data using the LZ4 algorithm.
+     *
+     * @param out The output stream to compress
+     * @param blockSize Default: 4. The block size used during compression. 4=64kb, 5=256kb, 6=1mb, 7=4mb. All other
+     *            values will generate an exception
+     * @param blockChecksum Default: false. When true, a XXHash32 checksum is computed and appended to the stream for
+     *            every block of data
+     * @param useBrokenFlagDescriptorChecksum Default: false. When true, writes an incorrect FrameDescriptor checksum
+     *            compatible with older kafka clients.
+     * @param compressionLevel Default: 0. When positive, the blocks are compressed by the high compression (HC)
+     *            compressor at this level, from 1 to 17, trading compression speed for a better ratio. The
+     *            decompression is unchanged.
+     * @throws IOException
+     */
+    public KafkaLZ4BlockOutputStream(OutputStream out, int blockSize, boolean blockChecksum, boolean useBrokenFlagDescriptorChecksum,
+                                     int compressionLevel) throws IOException {
         super(out);
-        compressor = LZ4Factory.fastestInstance().fastCompressor();
+        compressor = compressionLevel > 0 ? LZ4Factory.fastestInstance().highCompressor(compressionLevel) :
+                LZ4Factory.fastestInstance().fastCompressor();
         checksum = XXHashFactory.fastestInstance().hash32();
         this.useBrokenFlagDescriptorChecksum = useBrokenFlagDescriptorChecksum;
         bd = new BD(blockSize);
         flg = new FLG(blockChecksum);
         bufferOffset = 0;
         maxBlockSize = bd.getBlockMaximumSize();
-        buffer = new byte[maxBlockSize];
-        compressedBuffer = new byte[compressor.maxCompressedLength(maxBlockSize)];
+        buffer = CompressionCodecPool.borrowBlock(maxBlockSize);
+        compressedBuffer = CompressionCodecPool.borrowBlock(compressor.maxCompressedLength(maxBlockSize));
         finished = false;
         writeHeader();
     }
@@ -258,15 +279,31 @@ public final class KafkaLZ4BlockOutputStream extends FilterOutputStream {
 
     @Override
     public void close() throws IOException {
-        if (!finished) {
-            writeBlock();
-            writeEndMark();
-            flush();
+        try {
+            if (!finished) {
+                writeBlock();
+                writeEndMark();
+                flush();
+            }
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        } finally {
             finished = true;
+            releaseBuffers();
         }
-        if (out != null) {
-            out.close();
-            out = null;
+    }
+
+    /**
+     * Return the block buffers to the pool once the stream is finished, they must not be used afterwards.
+     */
+    private void releaseBuffers() {
+        if (buffer != null) {
+            CompressionCodecPool.releaseBlock(buffer);
+            CompressionCodecPool.releaseBlock(compressedBuffer);
+            buffer = null;
+            compressedBuffer = null;
         }
     }
 
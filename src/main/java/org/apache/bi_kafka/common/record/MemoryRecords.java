@@ -285,6 +285,46 @@ public class MemoryRecords extends AbstractRecords {
         return new MemoryRecordsBuilder(buffer, Record.CURRENT_MAGIC_VALUE, compressionType, timestampType, 0L, System.currentTimeMillis(), writeLimit);
     }
 
+    /**
+     * Create a builder compressing the records with the given codec settings as they are appended.
+     */
+    public static MemoryRecordsBuilder builder(ByteBuffer buffer,
+                                               CompressionConfig compressionConfig,
+                                               TimestampType timestampType,
+                                               int writeLimit) {
+        return new MemoryRecordsBuilder(buffer, Record.CURRENT_MAGIC_VALUE, compressionConfig, timestampType, 0L, System.currentTimeMillis(), writeLimit, false, false);
+    }
+
+    /**
+     * Create an uncompressed builder that accepts concurrent appends through
+     * {@link MemoryRecordsBuilder#reserve(long, byte[], byte[])}.
+     */
+    public static MemoryRecordsBuilder concurrentBuilder(ByteBuffer buffer,
+                                                         TimestampType timestampType,
+                                                         int writeLimit) {
+        return new MemoryRecordsBuilder(buffer, Record.CURRENT_MAGIC_VALUE, CompressionType.NONE, timestampType, 0L, System.currentTimeMillis(), writeLimit, true);
+    }
+
+    /**
+     * Create a builder writing the records uncompressed and compressing them with the given compression type once it
+     * is closed, optionally accepting concurrent appends through {@link MemoryRecordsBuilder#reserve(long, byte[], byte[])}.
+     */
+    public static MemoryRecordsBuilder deferredBuilder(ByteBuffer buffer,
+                                                       CompressionType compressionType,
+                                                       TimestampType timestampType,
+                                                       int writeLimit,
+                                                       boolean concurrentAppends) {
+        return deferredBuilder(buffer, CompressionConfig.of(compressionType), timestampType, writeLimit, concurrentAppends);
+    }
+
+    public static MemoryRecordsBuilder deferredBuilder(ByteBuffer buffer,
+                                                       CompressionConfig compressionConfig,
+                                                       TimestampType timestampType,
+                                                       int writeLimit,
+                                                       boolean concurrentAppends) {
+        return new MemoryRecordsBuilder(buffer, Record.CURRENT_MAGIC_VALUE, compressionConfig, timestampType, 0L, System.currentTimeMillis(), writeLimit, concurrentAppends, true);
+    }
+
     public static MemoryRecordsBuilder builder(ByteBuffer buffer,
                                                byte magic,
                                                CompressionType compressionType,
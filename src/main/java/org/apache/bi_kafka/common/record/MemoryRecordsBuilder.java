@@ -19,8 +19,8 @@ package org.apache.bi_kafka.common.record;
 import java.io.*;
 import java.lang.reflect.Constructor;
 import java.nio.ByteBuffer;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.bi_kafka.common.KafkaException;
 
@@ -31,21 +31,23 @@ import org.apache.bi_kafka.common.KafkaException;
  */
 public class MemoryRecordsBuilder {
 
-    static private final float COMPRESSION_RATE_DAMPING_FACTOR = 0.9f;
     static private final float COMPRESSION_RATE_ESTIMATION_FACTOR = 1.05f;
     static private final int COMPRESSION_DEFAULT_BUFFER_SIZE = 1024;
 
-    private static final float[] TYPE_TO_RATE;
+    // layout of the concurrent reservation state: [sealed:1][reserved records:31][reserved end position:32]
+    static private final long RESERVATION_SEALED = Long.MIN_VALUE;
+    static private final long RESERVATION_POSITION_MASK = 0xffffffffL;
 
-    static {
-        int maxTypeId = -1;
-        for (CompressionType type : CompressionType.values())
-            maxTypeId = Math.max(maxTypeId, type.id);
-        TYPE_TO_RATE = new float[maxTypeId + 1];
-        for (CompressionType type : CompressionType.values()) {
-            TYPE_TO_RATE[type.id] = type.rate;
+    static private final int DEFERRED_COMPRESSION_CHUNK_SIZE = 8192;
+
+    // the compressed records of a builder deferring its compression are written here before being copied back to the
+    // buffer of the builder, the buffer is kept by the thread for the next builder it compresses
+    private static final ThreadLocal<ByteBufferOutputStream> DEFERRED_COMPRESSION_OUTPUT = new ThreadLocal<ByteBufferOutputStream>() {
+        @Override
+        protected ByteBufferOutputStream initialValue() {
+            return new ByteBufferOutputStream(ByteBuffer.allocate(COMPRESSION_DEFAULT_BUFFER_SIZE));
         }
-    }
+    };
 
     // dynamically load the snappy and lz4 classes to avoid runtime dependency if we are not using compression
     // caching constructors to avoid invoking of Class.forName method for each batch
@@ -59,7 +61,7 @@ public class MemoryRecordsBuilder {
     private static MemoizingConstructorSupplier lz4OutputStreamSupplier = new MemoizingConstructorSupplier(new ConstructorSupplier() {
         public Constructor<?> get() throws ClassNotFoundException, NoSuchMethodException {
             return Class.forName("org.apache.bi_kafka.common.record.KafkaLZ4BlockOutputStream")
-                .getConstructor(OutputStream.class, Boolean.TYPE);
+                .getConstructor(OutputStream.class, Integer.TYPE, Boolean.TYPE, Boolean.TYPE, Integer.TYPE);
         }
     });
 
@@ -79,6 +81,7 @@ public class MemoryRecordsBuilder {
 
     private final TimestampType timestampType;
     private final CompressionType compressionType;
+    private final CompressionConfig compressionConfig;
     private final DataOutputStream appendStream;
     private final ByteBufferOutputStream bufferStream;
     private final byte magic;
@@ -87,15 +90,24 @@ public class MemoryRecordsBuilder {
     private final long logAppendTime;
     private final int writeLimit;
     private final int initialCapacity;
+    // the position of the first record, after the space left for the wrapper of compressed records
+    private final int recordsPos;
+    // whether the records are written uncompressed and compressed by close(), see deferredBuilder()
+    private final boolean deferCompression;
+    // only set for builders accepting concurrent appends, see reserve()
+    private final AtomicLong reservations;
+    private final AtomicInteger committedReservations;
 
     private long writtenUncompressed = 0;
     private long numRecords = 0;
     private float compressionRate = 1;
+    private float estimatedCompressionRatio;
     private long maxTimestamp = Record.NO_TIMESTAMP;
     private long offsetOfMaxTimestamp = -1;
     private long lastOffset = -1;
 
-    private MemoryRecords builtRecords;
+    private volatile boolean appendsClosed;
+    private volatile MemoryRecords builtRecords;
 
     /**
      * Construct a new builder.
@@ -118,14 +130,72 @@ public class MemoryRecordsBuilder {
                                 long baseOffset,
                                 long logAppendTime,
                                 int writeLimit) {
+        this(buffer, magic, compressionType, timestampType, baseOffset, logAppendTime, writeLimit, false);
+    }
+
+    /**
+     * Construct a new builder, optionally accepting concurrent appends through {@link #reserve(long, byte[], byte[])}.
+     * Concurrent appends are only supported without compression since every writer copies its record into its own
+     * region of the buffer; such a builder never expands its buffer.
+     */
+    public MemoryRecordsBuilder(ByteBuffer buffer,
+                                byte magic,
+                                CompressionType compressionType,
+                                TimestampType timestampType,
+                                long baseOffset,
+                                long logAppendTime,
+                                int writeLimit,
+                                boolean concurrentAppends) {
+        this(buffer, magic, compressionType, timestampType, baseOffset, logAppendTime, writeLimit, concurrentAppends, false);
+    }
+
+    /**
+     * Construct a new builder, optionally deferring the compression of the records until the builder is closed. Such
+     * a builder writes the records uncompressed, so the records appended are bounded by the write limit before
+     * compression, and it supports concurrent appends and value writers whatever its compression type. Closing it
+     * compresses the records into the same wrapper as a builder compressing them while they are appended.
+     */
+    public MemoryRecordsBuilder(ByteBuffer buffer,
+                                byte magic,
+                                CompressionType compressionType,
+                                TimestampType timestampType,
+                                long baseOffset,
+                                long logAppendTime,
+                                int writeLimit,
+                                boolean concurrentAppends,
+                                boolean deferCompression) {
+        this(buffer, magic, CompressionConfig.of(compressionType), timestampType, baseOffset, logAppendTime, writeLimit,
+                concurrentAppends, deferCompression);
+    }
+
+    /**
+     * Construct a new builder compressing the records with the given codec settings, e.g. its compression level.
+     */
+    public MemoryRecordsBuilder(ByteBuffer buffer,
+                                byte magic,
+                                CompressionConfig compressionConfig,
+                                TimestampType timestampType,
+                                long baseOffset,
+                                long logAppendTime,
+                                int writeLimit,
+                                boolean concurrentAppends,
+                                boolean deferCompression) {
+        CompressionType compressionType = compressionConfig.type();
+        deferCompression = deferCompression && compressionType != CompressionType.NONE;
+        if (concurrentAppends && compressionType != CompressionType.NONE && !deferCompression)
+            throw new IllegalArgumentException("Concurrent appends are not supported with compression type " + compressionType);
         this.magic = magic;
         this.timestampType = timestampType;
         this.compressionType = compressionType;
+        this.compressionConfig = compressionConfig;
         this.baseOffset = baseOffset;
         this.logAppendTime = logAppendTime;
         this.initPos = buffer.position();
         this.writeLimit = writeLimit;
         this.initialCapacity = buffer.capacity();
+        this.deferCompression = deferCompression;
+        // the records written by a builder deferring its compression take their uncompressed size in the buffer
+        this.estimatedCompressionRatio = deferCompression ? 1.0f : compressionType.rate;
 
         if (compressionType != CompressionType.NONE) {
             // for compressed records, leave space for the header and the shallow message metadata
@@ -133,9 +203,19 @@ public class MemoryRecordsBuilder {
             buffer.position(initPos + Records.LOG_OVERHEAD + Record.recordOverhead(magic));
         }
 
+        this.recordsPos = buffer.position();
+
         // create the stream
         bufferStream = new ByteBufferOutputStream(buffer);
-        appendStream = wrapForOutput(bufferStream, compressionType, magic, COMPRESSION_DEFAULT_BUFFER_SIZE);
+        appendStream = deferCompression ? bufferStream : wrapForOutput(bufferStream, compressionConfig, magic, COMPRESSION_DEFAULT_BUFFER_SIZE);
+
+        if (concurrentAppends) {
+            this.reservations = new AtomicLong(recordsPos);
+            this.committedReservations = new AtomicInteger(0);
+        } else {
+            this.reservations = null;
+            this.committedReservations = null;
+        }
     }
 
     public ByteBuffer buffer() {
@@ -150,6 +230,18 @@ public class MemoryRecordsBuilder {
         return compressionRate;
     }
 
+    /**
+     * Set the expected ratio of compressed to uncompressed size used to estimate the size of the records written so
+     * far, e.g. as learned by a {@link CompressionRatioEstimator}. It defaults to the static rate of the codec.
+     */
+    public void setEstimatedCompressionRatio(float estimatedCompressionRatio) {
+        this.estimatedCompressionRatio = estimatedCompressionRatio;
+    }
+
+    public float estimatedCompressionRatio() {
+        return estimatedCompressionRatio;
+    }
+
     /**
      * Close this builder and return the resulting buffer.
      * @return The built log buffer
@@ -173,11 +265,28 @@ public class MemoryRecordsBuilder {
             return new RecordsInfo(maxTimestamp, compressionType == CompressionType.NONE ? offsetOfMaxTimestamp : lastOffset);
     }
 
-    public void close() {
+    /**
+     * Stop accepting appends without building the records yet, which for a builder deferring its compression leaves
+     * the compression to {@link #close()}.
+     */
+    public synchronized void closeForRecordAppends() {
+        if (appendsClosed)
+            return;
+
+        if (reservations != null)
+            awaitReservations();
+        appendsClosed = true;
+    }
+
+    public synchronized void close() {
         if (builtRecords != null)
             return;
 
+        closeForRecordAppends();
+
         try {
+            if (deferCompression)
+                compressRecords();
             appendStream.close();
         } catch (IOException e) {
             throw new KafkaException(e);
@@ -192,6 +301,35 @@ public class MemoryRecordsBuilder {
         builtRecords = MemoryRecords.readableRecords(buffer.slice());
     }
 
+    /**
+     * Compress the records written uncompressed by a builder deferring its compression and write them back in their
+     * place, expanding the buffer in the rare case they got larger
+     */
+    private void compressRecords() throws IOException {
+        ByteBufferOutputStream output = DEFERRED_COMPRESSION_OUTPUT.get();
+        output.buffer().clear();
+        DataOutputStream compressStream = wrapForOutput(output, compressionConfig, magic, COMPRESSION_DEFAULT_BUFFER_SIZE);
+        ByteBuffer records = bufferStream.buffer().duplicate();
+        records.flip();
+        records.position(recordsPos);
+        if (records.hasArray()) {
+            compressStream.write(records.array(), records.arrayOffset() + records.position(), records.remaining());
+        } else {
+            byte[] chunk = new byte[Math.min(DEFERRED_COMPRESSION_CHUNK_SIZE, records.remaining())];
+            while (records.hasRemaining()) {
+                int length = Math.min(chunk.length, records.remaining());
+                records.get(chunk, 0, length);
+                compressStream.write(chunk, 0, length);
+            }
+        }
+        compressStream.close();
+
+        ByteBuffer compressed = output.buffer();
+        compressed.flip();
+        bufferStream.buffer().position(recordsPos);
+        bufferStream.write(compressed.array(), compressed.arrayOffset(), compressed.limit());
+    }
+
     private void writerCompressedWrapperHeader() {
         ByteBuffer buffer = bufferStream.buffer();
         int pos = buffer.position();
@@ -208,8 +346,6 @@ public class MemoryRecordsBuilder {
 
         // update the compression ratio
         this.compressionRate = (float) writtenCompressed / this.writtenUncompressed;
-        TYPE_TO_RATE[compressionType.id] = TYPE_TO_RATE[compressionType.id] * COMPRESSION_RATE_DAMPING_FACTOR +
-            compressionRate * (1 - COMPRESSION_RATE_DAMPING_FACTOR);
     }
 
     /**
@@ -250,6 +386,40 @@ public class MemoryRecordsBuilder {
         return appendWithOffset(lastOffset < 0 ? baseOffset : lastOffset + 1, timestamp, key, value);
     }
 
+    /**
+     * Append a new record at the next consecutive offset, letting the value writer write the value straight into the
+     * buffer of this builder. This is only supported for builders not accepting concurrent appends which write the
+     * records uncompressed, i.e. without compression or deferring it.
+     * @param timestamp The record timestamp
+     * @param key The record key
+     * @param value The writer of the record value
+     * @return crc of the record
+     */
+    public long append(long timestamp, byte[] key, RecordValueWriter value) {
+        if ((compressionType != CompressionType.NONE && !deferCompression) || reservations != null)
+            throw new IllegalStateException("Value writers are only supported by uncompressed builders without concurrent appends");
+        long offset = lastOffset < 0 ? baseOffset : lastOffset + 1;
+        if (timestampType == TimestampType.LOG_APPEND_TIME)
+            timestamp = logAppendTime;
+        int keySize = key == null ? 0 : key.length;
+        int sizeUpperBound = Records.LOG_OVERHEAD + Record.recordSize(magic, keySize, Math.max(value.sizeUpperBound(), 0));
+        ByteBuffer buffer = bufferStream.ensureRemaining(sizeUpperBound);
+        int start = buffer.position();
+        try {
+            buffer.position(start + Records.LOG_OVERHEAD);
+            long crc = Record.writeTo(buffer, magic, timestamp, key, value, timestampType);
+            int size = buffer.position() - start - Records.LOG_OVERHEAD;
+            buffer.putLong(start, toInnerOffset(offset));
+            buffer.putInt(start + Records.SIZE_OFFSET, size);
+            recordWritten(offset, timestamp, size + Records.LOG_OVERHEAD);
+            return crc;
+        } catch (RuntimeException e) {
+            // drop whatever the writer got to write, the record was not appended
+            buffer.position(start);
+            throw e;
+        }
+    }
+
     /**
      * Add the record at the next consecutive offset, converting to the desired magic value if necessary.
      * @param record The record to add
@@ -325,6 +495,118 @@ public class MemoryRecordsBuilder {
         appendWithOffset(lastOffset < 0 ? baseOffset : lastOffset + 1, record);
     }
 
+    /**
+     * Reserve a region of the buffer for a record at the next consecutive offset without taking any lock. The
+     * reservation has to be filled with {@link #writeReserved(long, long, byte[], byte[])} and then released with
+     * {@link #commitReserved()}; the builder will not close until every reservation has been committed.
+     *
+     * @param timestamp The record timestamp
+     * @param key The record key
+     * @param value The record value
+     * @return The reserved slot, or -1 if the builder is sealed or there is no room left for the record
+     */
+    public long reserve(long timestamp, byte[] key, byte[] value) {
+        if (reservations == null)
+            throw new IllegalStateException("This builder does not accept concurrent appends");
+        // validate before reserving, a reservation must never fail to be committed
+        if (timestamp < 0 && timestamp != Record.NO_TIMESTAMP)
+            throw new IllegalArgumentException("Invalid message timestamp " + timestamp);
+
+        int size = Records.LOG_OVERHEAD + Record.recordSize(magic, key, value);
+        int capacity = bufferStream.buffer().capacity();
+        while (true) {
+            long current = reservations.get();
+            if ((current & RESERVATION_SEALED) != 0)
+                return -1;
+            int count = (int) (current >>> 32);
+            int position = (int) (current & RESERVATION_POSITION_MASK);
+            long end = (long) position + size;
+            // the write limit is respected only after the first record, like hasRoomFor()
+            if (end > capacity || (count > 0 && end > writeLimit))
+                return -1;
+            if (reservations.compareAndSet(current, ((long) (count + 1) << 32) | end))
+                return ((long) count << 32) | position;
+        }
+    }
+
+    /**
+     * Write the record into a region returned by {@link #reserve(long, byte[], byte[])}. This can run concurrently
+     * with other writers since every reservation covers a disjoint region of the buffer.
+     * @return crc of the record
+     */
+    public long writeReserved(long slot, long timestamp, byte[] key, byte[] value) {
+        ByteBuffer target = bufferStream.buffer().duplicate();
+        target.position((int) (slot & RESERVATION_POSITION_MASK));
+        if (timestampType == TimestampType.LOG_APPEND_TIME)
+            timestamp = logAppendTime;
+        LogEntry.writeHeader(target, toInnerOffset(baseOffset + reservedIndex(slot)), Record.recordSize(magic, key, value));
+        return Record.writeTo(target, magic, timestamp, key, value, timestampType);
+    }
+
+    /**
+     * Mark one reservation as fully written.
+     */
+    public void commitReserved() {
+        committedReservations.incrementAndGet();
+    }
+
+    /**
+     * The index of the record relative to the base offset for a slot returned by {@link #reserve(long, byte[], byte[])}
+     */
+    public static int reservedIndex(long slot) {
+        return (int) (slot >>> 32);
+    }
+
+    /**
+     * Stop accepting new reservations. Reservations already handed out can still be written and committed.
+     */
+    public void seal() {
+        if (reservations == null)
+            return;
+        while (true) {
+            long current = reservations.get();
+            if ((current & RESERVATION_SEALED) != 0 || reservations.compareAndSet(current, current | RESERVATION_SEALED))
+                return;
+        }
+    }
+
+    public boolean isConcurrent() {
+        return reservations != null;
+    }
+
+    /**
+     * Seal the builder, wait for the writers still copying into their reservations and bring the bookkeeping
+     * up to date with what was written.
+     */
+    private void awaitReservations() {
+        seal();
+        long state = reservations.get();
+        int count = (int) ((state & ~RESERVATION_SEALED) >>> 32);
+        // writers hold no lock between reserve and commit, so this wait is only as long as a memory copy
+        while (committedReservations.get() < count)
+            Thread.yield();
+
+        ByteBuffer buffer = bufferStream.buffer();
+        int end = (int) (state & RESERVATION_POSITION_MASK);
+        buffer.position(end);
+        int position = recordsPos;
+        for (int i = 0; i < count; i++) {
+            int size = buffer.getInt(position + Records.SIZE_OFFSET);
+            long timestamp = magic > 0 ? buffer.getLong(position + Records.LOG_OVERHEAD + Record.TIMESTAMP_OFFSET) : Record.NO_TIMESTAMP;
+            recordWritten(baseOffset + i, timestamp, size + Records.LOG_OVERHEAD);
+            position += size + Records.LOG_OVERHEAD;
+        }
+    }
+
+    /**
+     * The number of records appended (or reserved, for a builder accepting concurrent appends) so far
+     */
+    public int numRecords() {
+        if (reservations != null && !appendsClosed)
+            return (int) ((reservations.get() & ~RESERVATION_SEALED) >>> 32);
+        return (int) numRecords;
+    }
+
     private long toInnerOffset(long offset) {
         // use relative offsets for compressed messages with magic v1
         if (magic > 0 && compressionType != CompressionType.NONE)
@@ -344,15 +626,17 @@ public class MemoryRecordsBuilder {
     }
 
     /**
-     * Get an estimate of the number of bytes written (based on the estimation factor hard-coded in {@link CompressionType}.
+     * Get an estimate of the number of bytes written (based on the estimated compression ratio plus a safety margin).
      * @return The estimated number of bytes written
      */
     private int estimatedBytesWritten() {
-        if (compressionType == CompressionType.NONE) {
+        if (reservations != null && !appendsClosed) {
+            return (int) (reservations.get() & RESERVATION_POSITION_MASK);
+        } else if (compressionType == CompressionType.NONE || deferCompression) {
             return buffer().position();
         } else {
             // estimate the written bytes to the underlying byte buffer based on uncompressed written bytes
-            return (int) (writtenUncompressed * TYPE_TO_RATE[compressionType.id] * COMPRESSION_RATE_ESTIMATION_FACTOR);
+            return (int) (writtenUncompressed * estimatedCompressionRatio * COMPRESSION_RATE_ESTIMATION_FACTOR);
         }
     }
 
@@ -374,13 +658,36 @@ public class MemoryRecordsBuilder {
                 this.writeLimit >= estimatedBytesWritten() + Records.LOG_OVERHEAD + Record.recordSize(magic, key, value));
     }
 
+    /**
+     * Check if we have room for a new record containing the given key and a value of at most the upper bound of the
+     * value writer, see {@link #hasRoomFor(byte[], byte[])}
+     */
+    public boolean hasRoomFor(byte[] key, RecordValueWriter value) {
+        int recordSize = Records.LOG_OVERHEAD + Record.recordSize(magic, key == null ? 0 : key.length, Math.max(value.sizeUpperBound(), 0));
+        return !isFull() && (numRecords == 0 ?
+                this.initialCapacity >= recordSize :
+                this.writeLimit >= estimatedBytesWritten() + recordSize);
+    }
+
+    /**
+     * Whether the builder stopped accepting appends, though its records may not be built yet if it defers compression
+     */
     public boolean isClosed() {
-        return builtRecords != null;
+        return appendsClosed;
+    }
+
+    public boolean isCompressionDeferred() {
+        return deferCompression;
     }
 
     public boolean isFull() {
         // note that the write limit is respected only after the first record is added which ensures we can always
         // create non-empty batches (this is used to disable batching when the producer's batch size is set to 0).
+        if (reservations != null && !isClosed()) {
+            long current = reservations.get();
+            return (current & RESERVATION_SEALED) != 0 ||
+                    ((current >>> 32) > 0 && this.writeLimit <= (int) (current & RESERVATION_POSITION_MASK));
+        }
         return isClosed() || (this.numRecords > 0 && this.writeLimit <= estimatedBytesWritten());
     }
 
@@ -388,13 +695,14 @@ public class MemoryRecordsBuilder {
         return builtRecords != null ? builtRecords.sizeInBytes() : estimatedBytesWritten();
     }
 
-    private static DataOutputStream wrapForOutput(ByteBufferOutputStream buffer, CompressionType type, byte messageVersion, int bufferSize) {
+    private static DataOutputStream wrapForOutput(ByteBufferOutputStream buffer, CompressionConfig config, byte messageVersion, int bufferSize) {
+        CompressionType type = config.type();
         try {
             switch (type) {
                 case NONE:
                     return buffer;
                 case GZIP:
-                    return new DataOutputStream(new GZIPOutputStream(buffer, bufferSize));
+                    return new DataOutputStream(new PooledGZIPOutputStream(buffer, bufferSize, config.level()));
                 case SNAPPY:
                     try {
                         OutputStream stream = (OutputStream) snappyOutputStreamSupplier.get().newInstance(buffer, bufferSize);
@@ -405,7 +713,7 @@ public class MemoryRecordsBuilder {
                 case LZ4:
                     try {
                         OutputStream stream = (OutputStream) lz4OutputStreamSupplier.get().newInstance(buffer,
-                                messageVersion == Record.MAGIC_VALUE_V0);
+                                config.lz4BlockSize(), false, messageVersion == Record.MAGIC_VALUE_V0, Math.max(0, config.level()));
                         return new DataOutputStream(stream);
                     } catch (Exception e) {
                         throw new KafkaException(e);
@@ -424,7 +732,7 @@ public class MemoryRecordsBuilder {
                 case NONE:
                     return buffer;
                 case GZIP:
-                    return new DataInputStream(new GZIPInputStream(buffer));
+                    return new DataInputStream(new PooledGZIPInputStream(buffer, COMPRESSION_DEFAULT_BUFFER_SIZE));
                 case SNAPPY:
                     try {
                         InputStream stream = (InputStream) snappyInputStreamSupplier.get().newInstance(buffer);
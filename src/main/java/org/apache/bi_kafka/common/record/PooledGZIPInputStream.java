@@ -0,0 +1,150 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.bi_kafka.common.record;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * A gzip input stream reading a single gzip member like {@link java.util.zip.GZIPInputStream}, but with an inflater
+ * borrowed from the {@link CompressionCodecPool} and returned to it on close instead of a new one for every stream.
+ */
+final class PooledGZIPInputStream extends InflaterInputStream {
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    // header flags
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final CRC32 crc = new CRC32();
+    private boolean eos;
+    private boolean closed;
+
+    PooledGZIPInputStream(InputStream in, int bufferSize) throws IOException {
+        super(in, CompressionCodecPool.borrowInflater(), bufferSize);
+        this.eos = false;
+        this.closed = false;
+        try {
+            readHeader(in);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed)
+            throw new IOException("Stream closed");
+        if (eos)
+            return -1;
+        int n = super.read(b, off, len);
+        if (n == -1) {
+            readTrailer();
+            eos = true;
+        } else {
+            crc.update(b, off, n);
+        }
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (closed)
+            throw new IOException("Stream closed");
+        return eos ? 0 : super.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        eos = true;
+        try {
+            super.close();
+        } finally {
+            CompressionCodecPool.releaseInflater(inf);
+        }
+    }
+
+    private void readHeader(InputStream stream) throws IOException {
+        CheckedInputStream in = new CheckedInputStream(stream, crc);
+        crc.reset();
+        if (readUShort(in) != GZIP_MAGIC)
+            throw new ZipException("Not in GZIP format");
+        if (readUByte(in) != 8)
+            throw new ZipException("Unsupported compression method");
+        int flags = readUByte(in);
+        // skip the modification time, extra flags and operating system
+        skipBytes(in, 6);
+        if ((flags & FEXTRA) == FEXTRA)
+            skipBytes(in, readUShort(in));
+        if ((flags & FNAME) == FNAME) {
+            while (readUByte(in) != 0) {
+            }
+        }
+        if ((flags & FCOMMENT) == FCOMMENT) {
+            while (readUByte(in) != 0) {
+            }
+        }
+        if ((flags & FHCRC) == FHCRC) {
+            int v = (int) crc.getValue() & 0xffff;
+            if (readUShort(in) != v)
+                throw new ZipException("Corrupt GZIP header");
+        }
+        crc.reset();
+    }
+
+    private void readTrailer() throws IOException {
+        InputStream in = this.in;
+        int n = inf.getRemaining();
+        // the trailer may have been read into the inflater's input buffer already
+        if (n > 0)
+            in = new SequenceInputStream(new ByteArrayInputStream(buf, len - n, n), in);
+        if (readUInt(in) != crc.getValue() || readUInt(in) != (inf.getBytesWritten() & 0xffffffffL))
+            throw new ZipException("Corrupt GZIP trailer");
+    }
+
+    private static long readUInt(InputStream in) throws IOException {
+        long s = readUShort(in);
+        return ((long) readUShort(in) << 16) | s;
+    }
+
+    private static int readUShort(InputStream in) throws IOException {
+        int b = readUByte(in);
+        return (readUByte(in) << 8) | b;
+    }
+
+    private static int readUByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1)
+            throw new EOFException();
+        return b;
+    }
+
+    private static void skipBytes(InputStream in, int n) throws IOException {
+        while (n-- > 0)
+            readUByte(in);
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.bi_kafka.common.record;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A gzip output stream writing the same bytes as {@link java.util.zip.GZIPOutputStream}, but with a deflater borrowed
+ * from the {@link CompressionCodecPool} and returned to it on close instead of a new one for every stream.
+ */
+final class PooledGZIPOutputStream extends DeflaterOutputStream {
+
+    private static final byte[] HEADER = {
+        (byte) 0x1f, (byte) 0x8b, // magic
+        8,                        // compression method: deflate
+        0,                        // flags
+        0, 0, 0, 0,               // modification time
+        0,                        // extra flags
+        0                         // operating system
+    };
+
+    private final CRC32 crc = new CRC32();
+    private final int level;
+    private boolean closed;
+
+    PooledGZIPOutputStream(OutputStream out, int bufferSize) throws IOException {
+        this(out, bufferSize, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param level The deflate compression level, or {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    PooledGZIPOutputStream(OutputStream out, int bufferSize, int level) throws IOException {
+        super(out, CompressionCodecPool.borrowDeflater(level), bufferSize);
+        this.level = level;
+        this.closed = false;
+        out.write(HEADER);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        super.write(b, off, len);
+        crc.update(b, off, len);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (def.finished())
+            return;
+        def.finish();
+        while (!def.finished())
+            deflate();
+        writeIntLE(out, (int) crc.getValue());
+        writeIntLE(out, def.getTotalIn());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            super.close();
+        } finally {
+            CompressionCodecPool.releaseDeflater(def, level);
+        }
+    }
+
+    private static void writeIntLE(OutputStream out, int value) throws IOException {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+}
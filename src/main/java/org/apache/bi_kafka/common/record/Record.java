@@ -569,6 +569,104 @@ public final class Record {
         }
     }
 
+    /**
+     * Write an uncompressed record directly into the buffer at its current position and return the computed crc.
+     * Unlike the stream based variants this does not allocate, and the buffer must have enough room remaining
+     * for the record since it will not be expanded.
+     *
+     * @param buffer The buffer to write to
+     * @param magic The magic value to be used
+     * @param timestamp The timestamp of the record
+     * @param key The record key
+     * @param value The record value
+     * @param timestampType The timestamp type
+     * @return the computed CRC for this record.
+     */
+    public static long writeTo(ByteBuffer buffer,
+                               byte magic,
+                               long timestamp,
+                               byte[] key,
+                               byte[] value,
+                               TimestampType timestampType) {
+        if (magic != MAGIC_VALUE_V0 && magic != MAGIC_VALUE_V1)
+            throw new IllegalArgumentException("Invalid magic value " + magic);
+        if (timestamp < 0 && timestamp != NO_TIMESTAMP)
+            throw new IllegalArgumentException("Invalid message timestamp " + timestamp);
+
+        byte attributes = computeAttributes(magic, CompressionType.NONE, timestampType);
+        long crc = computeChecksum(magic, attributes, timestamp, key, value);
+        buffer.putInt((int) (crc & 0xffffffffL));
+        buffer.put(magic);
+        buffer.put(attributes);
+        if (magic > 0)
+            buffer.putLong(timestamp);
+        if (key == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(key.length);
+            buffer.put(key);
+        }
+        if (value == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(value.length);
+            buffer.put(value);
+        }
+        return crc;
+    }
+
+    /**
+     * Write an uncompressed record whose value is written by the given writer directly into the buffer at its current
+     * position. The value size and the crc are filled in once the value has been written, the crc being computed
+     * over the written region. The buffer must have room for the record with a value of the writer's upper bound.
+     *
+     * @param buffer The buffer to write to
+     * @param magic The magic value to be used
+     * @param timestamp The timestamp of the record
+     * @param key The record key
+     * @param value The writer of the record value
+     * @param timestampType The timestamp type
+     * @return the computed CRC for this record.
+     */
+    public static long writeTo(ByteBuffer buffer,
+                               byte magic,
+                               long timestamp,
+                               byte[] key,
+                               RecordValueWriter value,
+                               TimestampType timestampType) {
+        if (magic != MAGIC_VALUE_V0 && magic != MAGIC_VALUE_V1)
+            throw new IllegalArgumentException("Invalid magic value " + magic);
+        if (timestamp < 0 && timestamp != NO_TIMESTAMP)
+            throw new IllegalArgumentException("Invalid message timestamp " + timestamp);
+
+        int start = buffer.position();
+        buffer.putInt(0);
+        buffer.put(magic);
+        buffer.put(computeAttributes(magic, CompressionType.NONE, timestampType));
+        if (magic > 0)
+            buffer.putLong(timestamp);
+        if (key == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(key.length);
+            buffer.put(key);
+        }
+        int valueSizePosition = buffer.position();
+        buffer.putInt(-1);
+        int sizeUpperBound = value.sizeUpperBound();
+        if (sizeUpperBound >= 0) {
+            int valuePosition = buffer.position();
+            value.writeTo(buffer);
+            int valueSize = buffer.position() - valuePosition;
+            if (valueSize > sizeUpperBound)
+                throw new IllegalStateException("The value writer wrote " + valueSize + " bytes, more than its upper bound of " + sizeUpperBound);
+            buffer.putInt(valueSizePosition, valueSize);
+        }
+        long crc = Utils.computeChecksum(buffer, start + MAGIC_OFFSET, buffer.position() - start - MAGIC_OFFSET);
+        buffer.putInt(start, (int) (crc & 0xffffffffL));
+        return crc;
+    }
+
     public static int recordSize(byte[] key, byte[] value) {
         return recordSize(CURRENT_MAGIC_VALUE, key, value);
     }
@@ -577,7 +675,7 @@ public final class Record {
         return recordSize(magic, key == null ? 0 : key.length, value == null ? 0 : value.length);
     }
 
-    private static int recordSize(byte magic, int keySize, int valueSize) {
+    public static int recordSize(byte magic, int keySize, int valueSize) {
         return recordOverhead(magic) + keySize + valueSize;
     }
 
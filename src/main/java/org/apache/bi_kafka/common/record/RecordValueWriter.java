@@ -0,0 +1,37 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.bi_kafka.common.record;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the value of a record straight into the buffer of a {@link MemoryRecordsBuilder}, so that the value does not
+ * have to be materialized as an array first.
+ */
+public interface RecordValueWriter {
+
+    /**
+     * An upper bound of the size of the value, or -1 if the value is null
+     */
+    int sizeUpperBound();
+
+    /**
+     * Write the value at the current position of the buffer, advancing the position past it. The buffer has at least
+     * {@link #sizeUpperBound()} bytes remaining. This is not called for a null value.
+     */
+    void writeTo(ByteBuffer buffer);
+}
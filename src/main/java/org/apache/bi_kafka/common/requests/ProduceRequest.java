@@ -21,10 +21,13 @@ import java.util.Map;
 
 import org.apache.bi_kafka.common.TopicPartition;
 import org.apache.bi_kafka.common.errors.UnsupportedVersionException;
+import org.apache.bi_kafka.common.network.ByteBufferSend;
+import org.apache.bi_kafka.common.network.Send;
 import org.apache.bi_kafka.common.protocol.ApiKeys;
 import org.apache.bi_kafka.common.protocol.Errors;
 import org.apache.bi_kafka.common.protocol.ProtoUtils;
 import org.apache.bi_kafka.common.protocol.types.Struct;
+import org.apache.bi_kafka.common.protocol.types.Type;
 import org.apache.bi_kafka.common.record.MemoryRecords;
 import org.apache.bi_kafka.common.utils.CollectionUtils;
 import org.apache.bi_kafka.common.utils.Utils;
@@ -122,6 +125,57 @@ public class ProduceRequest extends AbstractRequest {
         timeout = struct.getInt(TIMEOUT_KEY_NAME);
     }
 
+    /**
+     * Write the request without serializing it into a single buffer: the request framing is written into a heap buffer
+     * and the record sets are written from their own buffers in the same gathering write, so that direct buffers are
+     * sent without being copied.
+     */
+    @Override
+    public Send toSend(String destination, RequestHeader header) {
+        Object[] topicDatas = struct.getArray(TOPIC_DATA_KEY_NAME);
+        int recordsSize = 0;
+        for (Object topicData : topicDatas) {
+            for (Object partitionData : ((Struct) topicData).getArray(PARTITION_DATA_KEY_NAME))
+                recordsSize += ((Struct) partitionData).getRecords(RECORD_SET_KEY_NAME).sizeInBytes();
+        }
+
+        // all versions of the request share the same layout
+        int size = header.sizeOf() + struct.sizeOf();
+        ByteBuffer framing = ByteBuffer.allocate(4 + size - recordsSize);
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        framing.putInt(size);
+        header.writeTo(framing);
+        framing.putShort(struct.getShort(ACKS_KEY_NAME));
+        framing.putInt(struct.getInt(TIMEOUT_KEY_NAME));
+        framing.putInt(topicDatas.length);
+        int start = 0;
+        for (Object topicDataObj : topicDatas) {
+            Struct topicData = (Struct) topicDataObj;
+            Object[] partitionDatas = topicData.getArray(PARTITION_DATA_KEY_NAME);
+            Type.STRING.write(framing, topicData.getString(TOPIC_KEY_NAME));
+            framing.putInt(partitionDatas.length);
+            for (Object partitionDataObj : partitionDatas) {
+                Struct partitionData = (Struct) partitionDataObj;
+                MemoryRecords records = (MemoryRecords) partitionData.getRecords(RECORD_SET_KEY_NAME);
+                framing.putInt(partitionData.getInt(PARTITION_KEY_NAME));
+                framing.putInt(records.sizeInBytes());
+                buffers.add(slice(framing, start));
+                buffers.add(records.buffer());
+                start = framing.position();
+            }
+        }
+        if (framing.position() > start)
+            buffers.add(slice(framing, start));
+        return new ByteBufferSend(destination, buffers.toArray(new ByteBuffer[buffers.size()]));
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int start) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(buffer.position());
+        slice.position(start);
+        return slice;
+    }
+
     @Override
     public AbstractResponse getErrorResponse(Throwable e) {
         /* In case the producer doesn't actually want any response */
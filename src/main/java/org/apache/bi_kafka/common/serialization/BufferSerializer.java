@@ -0,0 +1,51 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.apache.bi_kafka.common.serialization;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A serializer which can also write the serialized data straight into a buffer, e.g. the buffer of the record batch
+ * the data is appended to, instead of returning a new array which is then copied.
+ * <p>
+ * The producer uses this for values when <code>value.serialization.mode</code> is <code>append</code> and the batches
+ * are neither compressed nor appended to concurrently, and falls back to {@link #serialize(String, Object)} otherwise.
+ * When it does, the partitioner is passed null as the serialized value since the value is only serialized once the
+ * record is appended, while holding the lock of the partition's batch queue.
+ *
+ * @param <T> Type to be serialized from.
+ */
+public interface BufferSerializer<T> extends Serializer<T> {
+
+    /**
+     * An upper bound of the number of bytes {@link #serialize(String, Object, ByteBuffer)} writes for the data.
+     *
+     * @param topic topic associated with data
+     * @param data typed data
+     * @return the upper bound, or -1 if the data is serialized to null
+     */
+    public int serializedSizeUpperBound(String topic, T data);
+
+    /**
+     * Write the serialized data into the buffer at its current position, advancing the position past the written
+     * bytes. The buffer has at least {@link #serializedSizeUpperBound(String, Object)} bytes remaining, and writing more
+     * fails the record. This is not called if the upper bound is -1.
+     *
+     * @param topic topic associated with data
+     * @param data typed data
+     * @param buffer the buffer to write to
+     */
+    public void serialize(String topic, T data, ByteBuffer buffer);
+
+}
@@ -13,6 +13,12 @@
 package org.apache.bi_kafka.common.serialization;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.util.Map;
 
 import org.apache.bi_kafka.common.errors.SerializationException;
@@ -20,9 +26,14 @@ import org.apache.bi_kafka.common.errors.SerializationException;
 /**
  *  String encoding defaults to UTF8 and can be customized by setting the property key.serializer.encoding,
  *  value.serializer.encoding or serializer.encoding. The first two take precedence over the last.
+ *  <p>
+ *  Strings can also be encoded straight into a buffer, the upper bound of their size being exact for UTF-8.
  */
-public class StringSerializer implements Serializer<String> {
+public class StringSerializer implements BufferSerializer<String> {
     private String encoding = "UTF8";
+    private volatile Charset charset;
+    // encoders are not thread safe, they are created per thread once the encoding is known
+    private final ThreadLocal<CharsetEncoder> encoders = new ThreadLocal<CharsetEncoder>();
 
     public void configure(Map<String, ?> configs, boolean isKey) {
         String propertyName = isKey ? "key.serializer.encoding" : "value.serializer.encoding";
@@ -31,6 +42,7 @@ public class StringSerializer implements Serializer<String> {
             encodingValue = configs.get("serializer.encoding");
         if (encodingValue != null && encodingValue instanceof String)
             encoding = (String) encodingValue;
+        charset = null;
     }
 
     public byte[] serialize(String topic, String data) {
@@ -44,6 +56,79 @@ public class StringSerializer implements Serializer<String> {
         }
     }
 
+    public int serializedSizeUpperBound(String topic, String data) {
+        if (data == null)
+            return -1;
+        CharsetEncoder encoder = encoder();
+        if (isUtf8(encoder.charset()))
+            return utf8Length(data);
+        return (int) Math.ceil(encoder.maxBytesPerChar() * data.length());
+    }
+
+    public void serialize(String topic, String data, ByteBuffer buffer) {
+        // encode the same way as String.getBytes, i.e. replacing malformed and unmappable input
+        CharsetEncoder encoder = encoder();
+        encoder.reset();
+        CharBuffer chars = CharBuffer.wrap(data);
+        CoderResult result = encoder.encode(chars, buffer, true);
+        if (!result.isOverflow())
+            result = encoder.flush(buffer);
+        if (result.isOverflow())
+            throw new SerializationException("Error when serializing string, its encoding exceeds the " + buffer.remaining() + " bytes remaining");
+    }
+
+    private CharsetEncoder encoder() {
+        Charset charset = charset();
+        CharsetEncoder encoder = encoders.get();
+        if (encoder == null || !encoder.charset().equals(charset)) {
+            encoder = charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            encoders.set(encoder);
+        }
+        return encoder;
+    }
+
+    private Charset charset() {
+        Charset charset = this.charset;
+        if (charset != null)
+            return charset;
+        try {
+            charset = Charset.forName(encoding);
+            this.charset = charset;
+            return charset;
+        } catch (IllegalArgumentException e) {
+            throw new SerializationException("Error when serializing string to byte[] due to unsupported encoding " + encoding);
+        }
+    }
+
+    private static boolean isUtf8(Charset charset) {
+        return "UTF-8".equals(charset.name());
+    }
+
+    /**
+     * The length of the UTF-8 encoding of the string, counting the replacement byte of unpaired surrogates
+     */
+    private static int utf8Length(String data) {
+        int length = 0;
+        for (int i = 0; i < data.length(); i++) {
+            char c = data.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < data.length() && Character.isLowSurrogate(data.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
     public void close() {
         // nothing to do
     }
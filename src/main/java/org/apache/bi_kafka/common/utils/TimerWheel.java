@@ -0,0 +1,296 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package org.apache.bi_kafka.common.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A hierarchical hashed timing wheel holding timeouts of arbitrary items.
+ * <p>
+ * The first level has <code>wheelSize</code> buckets of <code>tickMs</code> each. Timeouts beyond its span go to an
+ * overflow level whose tick is the span of the level below, which is created when first needed, and are moved down
+ * as the clock reaches their bucket. Only non-empty buckets are queued by expiration, so scheduling and cancelling a
+ * timeout is O(1) in the number of timeouts, advancing the clock only visits the buckets that are due and the next
+ * expiration is a peek.
+ * <p>
+ * Timeouts fire at the granularity of the first level tick, i.e. up to <code>tickMs - 1</code> milliseconds before
+ * their deadline, and the next expiration of a timeout held by an overflow level is the start of its bucket. A tick
+ * of one millisecond makes timeouts fire exactly at their deadline.
+ * <p>
+ * This class is not thread safe.
+ */
+public class TimerWheel<T> {
+
+    private final int wheelSize;
+    private final PriorityQueue<Bucket<T>> queue;
+    // timeouts scheduled at or before the current time, returned by the next call to advance
+    private final Bucket<T> overdue;
+    private final Level level;
+    private int size;
+
+    /**
+     * Create a new timer wheel
+     *
+     * @param tickMs The tick of the first level in milliseconds
+     * @param wheelSize The number of buckets of each level
+     * @param startMs The initial time of the wheel
+     */
+    public TimerWheel(long tickMs, int wheelSize, long startMs) {
+        if (tickMs <= 0)
+            throw new IllegalArgumentException("The tick must be positive: " + tickMs);
+        if (wheelSize <= 1)
+            throw new IllegalArgumentException("The wheel size must be greater than one: " + wheelSize);
+        this.wheelSize = wheelSize;
+        this.queue = new PriorityQueue<Bucket<T>>();
+        this.overdue = new Bucket<T>();
+        this.level = new Level(tickMs, startMs);
+        this.size = 0;
+    }
+
+    /**
+     * Schedule a timeout of the given item. A deadline which is not after the current time of the wheel expires on
+     * the next call to {@link #advance(long)}.
+     *
+     * @param item The item to return when the timeout expires
+     * @param deadlineMs The time at which the timeout expires
+     * @return The timeout, which can be used to cancel it
+     */
+    public Timeout<T> schedule(T item, long deadlineMs) {
+        Timeout<T> timeout = new Timeout<T>(this, item, deadlineMs);
+        if (!level.add(timeout))
+            overdue.add(timeout);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Advance the clock of the wheel to the given time and remove the timeouts that expired
+     *
+     * @param nowMs The current time
+     * @return The items of the expired timeouts
+     */
+    public List<T> advance(long nowMs) {
+        List<T> expired = new ArrayList<T>();
+        expire(overdue, expired);
+        Bucket<T> bucket = queue.peek();
+        while (bucket != null && bucket.expirationMs <= nowMs) {
+            queue.poll();
+            level.advanceClock(bucket.expirationMs);
+            bucket.expirationMs = -1L;
+            // timeouts of the lowest level expire, the others are moved to a lower level
+            Timeout<T> timeout = bucket.removeFirst();
+            while (timeout != null) {
+                if (!level.add(timeout)) {
+                    size--;
+                    expired.add(timeout.item);
+                }
+                timeout = bucket.removeFirst();
+            }
+            bucket = queue.peek();
+        }
+        level.advanceClock(nowMs);
+        return expired;
+    }
+
+    private void expire(Bucket<T> bucket, List<T> expired) {
+        Timeout<T> timeout = bucket.removeFirst();
+        while (timeout != null) {
+            size--;
+            expired.add(timeout.item);
+            timeout = bucket.removeFirst();
+        }
+    }
+
+    /**
+     * The earliest time at which a timeout may expire, or Long.MAX_VALUE if there is no timeout. This may be earlier
+     * than the actual deadline of any timeout, but never later.
+     */
+    public long nextExpirationMs() {
+        if (!overdue.isEmpty())
+            return level.currentTimeMs;
+        Bucket<T> bucket = queue.peek();
+        return bucket == null ? Long.MAX_VALUE : bucket.expirationMs;
+    }
+
+    /**
+     * The current time of the wheel, rounded down to the tick of the first level
+     */
+    public long currentTimeMs() {
+        return level.currentTimeMs;
+    }
+
+    /**
+     * The number of scheduled timeouts
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * A scheduled timeout of an item
+     */
+    public static final class Timeout<T> {
+        private final TimerWheel<T> wheel;
+        private final T item;
+        private final long deadlineMs;
+        private Bucket<T> bucket;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+
+        private Timeout(TimerWheel<T> wheel, T item, long deadlineMs) {
+            this.wheel = wheel;
+            this.item = item;
+            this.deadlineMs = deadlineMs;
+        }
+
+        public T item() {
+            return item;
+        }
+
+        public long deadlineMs() {
+            return deadlineMs;
+        }
+
+        /**
+         * Whether the timeout has neither expired nor been cancelled
+         */
+        public boolean isScheduled() {
+            return bucket != null;
+        }
+
+        /**
+         * Cancel the timeout
+         *
+         * @return true if the timeout was cancelled, false if it already expired or was cancelled before
+         */
+        public boolean cancel() {
+            if (bucket == null)
+                return false;
+            bucket.remove(this);
+            wheel.size--;
+            return true;
+        }
+    }
+
+    /**
+     * A doubly linked list of the timeouts falling into one tick of a level
+     */
+    private static final class Bucket<T> implements Comparable<Bucket<T>> {
+        private Timeout<T> head;
+        // the start time of the tick of the bucket, -1 if the bucket is not queued
+        private long expirationMs = -1L;
+
+        void add(Timeout<T> timeout) {
+            timeout.bucket = this;
+            timeout.prev = null;
+            timeout.next = head;
+            if (head != null)
+                head.prev = timeout;
+            head = timeout;
+        }
+
+        void remove(Timeout<T> timeout) {
+            if (timeout.prev == null)
+                head = timeout.next;
+            else
+                timeout.prev.next = timeout.next;
+            if (timeout.next != null)
+                timeout.next.prev = timeout.prev;
+            timeout.bucket = null;
+            timeout.prev = null;
+            timeout.next = null;
+        }
+
+        Timeout<T> removeFirst() {
+            Timeout<T> first = head;
+            if (first != null)
+                remove(first);
+            return first;
+        }
+
+        boolean isEmpty() {
+            return head == null;
+        }
+
+        public int compareTo(Bucket<T> other) {
+            return expirationMs < other.expirationMs ? -1 : (expirationMs == other.expirationMs ? 0 : 1);
+        }
+    }
+
+    /**
+     * One level of the wheel
+     */
+    private final class Level {
+        private final long levelTickMs;
+        private final long intervalMs;
+        private final Bucket<T>[] buckets;
+        private long currentTimeMs;
+        private Level overflow;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Level(long levelTickMs, long startMs) {
+            this.levelTickMs = levelTickMs;
+            // the span of the highest possible level is capped so that any deadline fits
+            this.intervalMs = levelTickMs > Long.MAX_VALUE / wheelSize ? Long.MAX_VALUE : levelTickMs * wheelSize;
+            this.buckets = new Bucket[wheelSize];
+            for (int i = 0; i < wheelSize; i++)
+                this.buckets[i] = new Bucket<T>();
+            this.currentTimeMs = startMs - (startMs % levelTickMs);
+        }
+
+        /**
+         * Add the timeout to the bucket of this or a higher level covering its deadline
+         *
+         * @return false if the timeout is already due
+         */
+        boolean add(Timeout<T> timeout) {
+            long deadlineMs = timeout.deadlineMs;
+            if (deadlineMs - currentTimeMs < levelTickMs) {
+                return false;
+            } else if (deadlineMs - currentTimeMs < intervalMs || intervalMs == Long.MAX_VALUE) {
+                long virtualId = deadlineMs / levelTickMs;
+                Bucket<T> bucket = buckets[(int) (virtualId % wheelSize)];
+                bucket.add(timeout);
+                long expirationMs = virtualId * levelTickMs;
+                if (bucket.expirationMs != expirationMs) {
+                    bucket.expirationMs = expirationMs;
+                    queue.offer(bucket);
+                }
+                return true;
+            } else {
+                if (overflow == null)
+                    overflow = new Level(intervalMs, currentTimeMs);
+                return overflow.add(timeout);
+            }
+        }
+
+        void advanceClock(long timeMs) {
+            if (timeMs >= currentTimeMs + levelTickMs) {
+                currentTimeMs = timeMs - (timeMs % levelTickMs);
+                if (overflow != null)
+                    overflow.advanceClock(currentTimeMs);
+            }
+        }
+    }
+}
@@ -795,7 +795,22 @@ public class Utils {
      * @param size The number of bytes to include
      */
     public static long computeChecksum(ByteBuffer buffer, int start, int size) {
-        return Crc32.crc32(buffer.array(), buffer.arrayOffset() + start, size);
+        if (buffer.hasArray())
+            return Crc32.crc32(buffer.array(), buffer.arrayOffset() + start, size);
+        // direct buffers are checksummed through a bounded temporary array
+        Crc32 crc = new Crc32();
+        byte[] chunk = new byte[Math.min(size, 4096)];
+        ByteBuffer data = buffer.duplicate();
+        data.clear();
+        data.position(start);
+        int remaining = size;
+        while (remaining > 0) {
+            int length = Math.min(remaining, chunk.length);
+            data.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+            remaining -= length;
+        }
+        return crc.getValue();
     }
 
     /**
@@ -849,4 +864,25 @@ public class Utils {
             currentPosition += bytesRead;
         } while (bytesRead != -1 && destinationBuffer.hasRemaining());
     }
+
+    /**
+     * Write all the remaining bytes of the given byte buffer to the channel, starting at the given file position.
+     * The position of the channel is not changed.
+     *
+     * @param channel File channel to write the data to
+     * @param sourceBuffer The buffer from which bytes are to be transferred
+     * @param position The file position at which the transfer is to begin; it must be non-negative
+     *
+     * @throws IllegalArgumentException If position is negative
+     * @throws IOException If an I/O error occurs, see {@link FileChannel#write(ByteBuffer, long)} for details on the
+     * possible exceptions
+     */
+    public static void writeFully(FileChannel channel, ByteBuffer sourceBuffer, long position) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("The file channel position cannot be negative, but it is " + position);
+        }
+        long currentPosition = position;
+        while (sourceBuffer.hasRemaining())
+            currentPosition += channel.write(sourceBuffer, currentPosition);
+    }
 }